@@ -2,10 +2,12 @@ package dk.kb.provide_dod_info;
 
 import dk.kb.provide_dod_info.config.Configuration;
 import dk.kb.provide_dod_info.metadata.AlmaMetadataRetriever;
+import dk.kb.provide_dod_info.metadata.MarcValidationReport;
+import dk.kb.provide_dod_info.metadata.MetadataValidator;
 import dk.kb.provide_dod_info.utils.DateUtils;
 import dk.kb.provide_dod_info.utils.ExcelUtils;
 import dk.kb.provide_dod_info.utils.FileUtils;
-import dk.kb.provide_dod_info.utils.ZipUtils;
+import dk.kb.provide_dod_info.utils.ZipArchive;
 import org.apache.commons.lang.StringUtils;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
@@ -17,7 +19,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Map;
-import java.util.zip.ZipOutputStream;
 
 import static dk.kb.provide_dod_info.utils.FileUtils.deleteDirectory;
 
@@ -53,45 +54,11 @@ public class AlmaExtract {
         XSSFWorkbook workbook = new XSSFWorkbook();
         try {
             Configuration conf = Configuration.createFromYAMLFile(confFile);
-            HttpClient httpClient = new HttpClient();
-
-            AlmaMetadataRetriever almaMetadataRetriever = new AlmaMetadataRetriever(conf, httpClient);
-            AlmaRetriever almaRetriever = new AlmaRetriever(conf, almaMetadataRetriever);
-            almaRetriever.retrieveAlmaMetadataForFiles(workbook);
-            workbook.close();
-            DataHandler dataHandler = new DataHandler(conf);
-            String excelFile = conf.getTempDir().getName() + "/"  + conf.getOutFileName();
-            File existingExcelFile = FileUtils.getExistingFile(excelFile);
-            String absolutePathExcelFile = existingExcelFile.getAbsolutePath();
-
-            if (conf.getIsTest()) {
-                dataHandler.addReadMeIDE();
-            } else {
-                dataHandler.addReadMe();
+            // The zip file is written during the run, when the texts are streamed to it. It is removed, if the run
+            // fails before it is finished
+            try (ZipArchive archive = new ZipArchive(new File(conf.getOutDir(), getZipFileName(conf)))) {
+                extract(conf, workbook, archive);
             }
-            Map<String, String> values;
-            if (StringUtils.isNotEmpty(absolutePathExcelFile)) {
-                values = ExcelUtils.getValues(absolutePathExcelFile);
-                dataHandler.sortDirectories(values);
-            }
-
-            String yyyyMMdd = DateUtils.getDate();
-            String sourceDir = conf.getTempDir().getAbsolutePath();
-            String outZipFilename;
-            if(conf.getElectronicCollection() == null){
-                outZipFilename = "/DOD_OCR_korpus_" + yyyyMMdd + ".zip";
-            } else {
-                outZipFilename = "/" + conf.getElectronicCollection() + "_" + yyyyMMdd + ".zip";
-            }
-
-            FileOutputStream fos = new FileOutputStream(conf.getOutDir().getAbsolutePath() + outZipFilename);
-            ZipOutputStream zipOut = new ZipOutputStream(fos);
-            File dirToZip = new File(sourceDir);
-            removeUnwantedFiles(conf, dirToZip);
-
-            ZipUtils.zipFile(dirToZip, dirToZip.getName(), zipOut);
-            zipOut.close();
-            fos.close();
             deleteDirectory( conf.getTempDir());
             log.debug("****************Output ready***************");
             System.exit(0); // make sure the program exits
@@ -101,6 +68,75 @@ public class AlmaExtract {
         }
     }
 
+    /**
+     * Retrieves the metadata and the texts, sorts the output data in directories, and zips it.
+     * @param conf The configuration.
+     * @param workbook The workbook for the Excel sheet.
+     * @param archive The zip file.
+     * @throws IOException If the output data cannot be written.
+     */
+    private static void extract(Configuration conf, XSSFWorkbook workbook, ZipArchive archive) throws IOException {
+        try (HttpClient httpClient = new HttpClient(conf)) {
+            AlmaMetadataRetriever almaMetadataRetriever = new AlmaMetadataRetriever(conf, httpClient);
+            ExcelRowCollector rows;
+            try (AlmaRetriever almaRetriever = new AlmaRetriever(conf, almaMetadataRetriever)) {
+                rows = almaRetriever.retrieveAlmaMetadataForFiles(workbook,
+                        conf.getStreamTextToZip() ? archive : null);
+            }
+            log.info("Barcodes: {} OK, {} failed, {} skipped, {} timed out", rows.getOk(), rows.getFailed(),
+                    rows.getSkipped(), rows.getTimedOut());
+            log.info("Received {} bytes from Alma ({} bytes uncompressed)", httpClient.getCompressedBytes(),
+                    httpClient.getUncompressedBytes());
+            log.info("Alma barcode lookups: {}", almaMetadataRetriever.getLookupStatistics());
+            if(almaMetadataRetriever.getCache() != null) {
+                log.info("SRU response cache: {} hits, {} misses", almaMetadataRetriever.getCache().getHits(),
+                        almaMetadataRetriever.getCache().getMisses());
+            }
+        }
+        workbook.close();
+        if(conf.getValidateMarc()) {
+            MarcValidationReport report = new MetadataValidator().validateMarcFiles(conf.getTempDir(),
+                    conf.getWorkerCount());
+            log.info("MARC validation: {}", report);
+        }
+        DataHandler dataHandler = new DataHandler(conf);
+        String excelFile = conf.getTempDir().getName() + "/"  + conf.getOutFileName();
+        File existingExcelFile = FileUtils.getExistingFile(excelFile);
+        String absolutePathExcelFile = existingExcelFile.getAbsolutePath();
+
+        if (conf.getIsTest()) {
+            dataHandler.addReadMeIDE();
+        } else {
+            dataHandler.addReadMe();
+        }
+        Map<String, String> values;
+        if (StringUtils.isNotEmpty(absolutePathExcelFile)) {
+            values = ExcelUtils.getValues(absolutePathExcelFile);
+            dataHandler.sortDirectories(values);
+        }
+
+        if(conf.getStreamTextToZip()) {
+            log.info("Streamed {} texts ({} bytes) to the zip file", archive.getEntries(), archive.getBytes());
+        }
+        File dirToZip = new File(conf.getTempDir().getAbsolutePath());
+        removeUnwantedFiles(conf, dirToZip);
+
+        archive.addDirectory(dirToZip, dirToZip.getName());
+        archive.finish();
+    }
+
+    /**
+     * @param conf The configuration.
+     * @return The name of the zip file, with the date of the run.
+     */
+    private static String getZipFileName(Configuration conf) {
+        String yyyyMMdd = DateUtils.getDate();
+        if(conf.getElectronicCollection() == null){
+            return "DOD_OCR_korpus_" + yyyyMMdd + ".zip";
+        }
+        return conf.getElectronicCollection() + "_" + yyyyMMdd + ".zip";
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private static void removeUnwantedFiles(Configuration conf, File dirToZip) {
         if(conf.getElectronicCollection() != null) { // Clean up all non e_collection xml files
@@ -3,25 +3,35 @@ package dk.kb.provide_dod_info;
 import dk.kb.provide_dod_info.config.Configuration;
 import dk.kb.provide_dod_info.exception.ArgumentCheck;
 import dk.kb.provide_dod_info.metadata.AlmaMetadataRetriever;
+import dk.kb.provide_dod_info.metadata.BibRecordCache;
+import dk.kb.provide_dod_info.metadata.ECollectionHarvester;
+import dk.kb.provide_dod_info.metadata.MarcFieldExtractor;
+import dk.kb.provide_dod_info.metadata.MarcFields;
 import dk.kb.provide_dod_info.metadata.MetadataValidator;
+import dk.kb.provide_dod_info.ocr.ExtractionTimeout;
+import dk.kb.provide_dod_info.ocr.ExtractionTimeoutException;
+import dk.kb.provide_dod_info.ocr.PageRangeTextExtractor;
+import dk.kb.provide_dod_info.ocr.PdfBoxTextExtractor;
+import dk.kb.provide_dod_info.ocr.PdfToTextExtractor;
+import dk.kb.provide_dod_info.ocr.TextExtractor;
+import dk.kb.provide_dod_info.ocr.TextQuarantine;
+import dk.kb.provide_dod_info.utils.CircuitBreaker;
 import dk.kb.provide_dod_info.utils.DateUtils;
 import dk.kb.provide_dod_info.utils.ExcelUtils;
 import dk.kb.provide_dod_info.utils.FileUtils;
-import dk.kb.provide_dod_info.utils.UxCmdUtils;
+import dk.kb.provide_dod_info.utils.OrderedExecutor;
+import dk.kb.provide_dod_info.utils.XmlUtils;
+import dk.kb.provide_dod_info.utils.ZipArchive;
 import org.apache.commons.lang.StringUtils;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
@@ -29,13 +39,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static dk.kb.provide_dod_info.Constants.*;
-import static dk.kb.provide_dod_info.Constants.ExtractInfo.*;
 
 /**
  * The AlmaRetriever has two possible functions depending on whether electronic_collection is present in the yaml file:
@@ -48,8 +61,12 @@ import static dk.kb.provide_dod_info.Constants.ExtractInfo.*;
  * The result of the Alma extract -whether it succeeded or failed- is saved to an excel-file together with specific
  * metadata from the MARC xml file above.
  * An OCR txt file is extracted from the pdf-files with 'pdftotext'
+ *
+ * The retriever keeps no state for a run or a barcode: each run has its own {@link ExtractRun}, and each barcode
+ * gives an immutable {@link BarcodeResult}. Thus a retriever can be shared by the worker threads, and by several
+ * runs at once.
  */
-public class AlmaRetriever {
+public class AlmaRetriever implements Closeable {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(AlmaRetriever.class);
     /** The configuration.*/
@@ -58,16 +75,14 @@ public class AlmaRetriever {
     protected final AlmaMetadataRetriever almaMetadataRetriever;
     /** The metadata validator.*/
     protected final MetadataValidator validator;
-    /** The document builder factory.*/
-    protected final DocumentBuilderFactory factory;
-    /** The XPath factory.*/
-    protected final XPathFactory xPathfactory;
-    /** The row used in the excel-sheet*/
-    private int row;
+    /** The extractor of the fields for the Excel sheet from the MARC records.*/
+    protected final MarcFieldExtractor marcFieldExtractor;
+    /** The extractor of the text from the pdf-files.*/
+    protected final TextExtractor textExtractor;
+    /** The pdf-files, whose text is not extracted, since it was not extracted in time.*/
+    protected final TextQuarantine quarantine;
     /** The value containing the 140 years cut for records without Copyrights*/
     private final int cutYear;
-    /** The year the item was released extracted from Field 008 */
-    private String releaseYear;
     /** The electronic collection */
     private final String eCollection;
     /**
@@ -80,123 +95,83 @@ public class AlmaRetriever {
         ArgumentCheck.checkNotNull(almaMetadataRetriever, "AlmaMetadataRetriever almaMetadataRetriever");
         this.conf = conf;
         this.almaMetadataRetriever = almaMetadataRetriever;
-        this.factory = DocumentBuilderFactory.newInstance();
-        this.xPathfactory = XPathFactory.newInstance();
         this.validator = new MetadataValidator();
-        this.row = 0;
+        this.marcFieldExtractor = new MarcFieldExtractor(conf.getExtractColumns(),
+                new BibRecordCache(conf.getBibCacheSize()));
+        this.textExtractor = createTextExtractor(conf);
+        try {
+            this.quarantine = new TextQuarantine(conf.getTextQuarantineFile());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the quarantine list '" + conf.getTextQuarantineFile()
+                    + "'", e);
+        }
         int cY = Integer.parseInt(DateUtils.getYear())-141;
         // Make sure cutYear is at least 140 years ago:
         this.cutYear = (conf.getCutYear() >= cY ) ? cY : conf.getCutYear();
         this.eCollection = conf.getElectronicCollection();
     }
 
-    public void retrieveAlmaMetadataForFiles(XSSFWorkbook workbook) {
-        /* */
-        Map<String, Object[]> data = new TreeMap<>();
-        row++;
+    /**
+     * Retrieves the Alma metadata and the text for all the files, and writes the Excel sheet.
+     * The texts are written to text files in the temp dir.
+     * @param workbook The workbook for the Excel sheet.
+     * @return The rows of the Excel sheet, with the number of barcodes for each result.
+     */
+    public ExcelRowCollector retrieveAlmaMetadataForFiles(XSSFWorkbook workbook) {
+        return retrieveAlmaMetadataForFiles(workbook, null);
+    }
+
+    /**
+     * Retrieves the Alma metadata and the text for all the files, and writes the Excel sheet.
+     * @param workbook The workbook for the Excel sheet.
+     * @param archive The zip file, which the texts are written directly to, in the temp dir and their directory
+     *                of years. Or null, if the texts are written to text files in the temp dir.
+     * @return The rows of the Excel sheet, with the number of barcodes for each result.
+     */
+    public ExcelRowCollector retrieveAlmaMetadataForFiles(XSSFWorkbook workbook, ZipArchive archive) {
+        ExcelRowCollector rows = new ExcelRowCollector();
         // Head row in excel:
-        data.put(String.valueOf(row), new Object[] {"Barcode", "Alma", "Year", "Place", "Author", "Publisher",
-                "Classification", "Title"});
+        List<Object> header = new ArrayList<>(List.of("Barcode", "Alma", "Year"));
+        conf.getExtractColumns().forEach(column -> header.add(column.getName()));
+        rows.add(header.toArray());
 
-        if(eCollection == null) {
-            traverseFilesInFolder(conf.getCorpusOrigDir(), data);
-        } else {
-            traversECollection(conf.getCorpusOrigDir(), data);
+        // The rows of each barcode are added in the order the barcodes were submitted, also when processed in parallel
+        try (OrderedExecutor<List<BarcodeResult>> executor = new OrderedExecutor<>(conf.getWorkerCount(), "barcode",
+                rows::addAll)) {
+            ExtractRun run = new ExtractRun(rows, executor, archive);
+            if(eCollection == null) {
+                traverseFilesInFolder(conf.getCorpusOrigDir(), run);
+            } else {
+                traversECollection(conf.getCorpusOrigDir(), run);
+            }
+            run.submitPendingBatch(conf.getCorpusOrigDir());
+            executor.finish();
         }
+        log.info("Excel sheet: {}", rows);
+        log.info("Bibliographic record cache: {}", marcFieldExtractor.getCache());
+        log.info("Text extraction: {}", textExtractor);
+        log.info("Text quarantine: {}", quarantine);
         XSSFSheet sheet = workbook.createSheet(SHEETNAME);
-        ExcelUtils.populateSheet(sheet, data);
+        ExcelUtils.populateSheet(sheet, rows.getData());
 //        ExcelUtils.setWorkbookFormats(workbook);
         ExcelUtils.createExcel(workbook, conf);
-
+        return rows;
     }
 
     /**
-     * Retrieves specific metadata for a barcode (Bibliographic post of an item).
-     * Uses the file with already retrieved marc metadata to extract the wanted
-     * metadata from that file.
-     * Will return "N/A"" if data is not available
+     * Extracts all the fields for the Excel sheet from the MARC metadata file in one pass.
      * @param file The previously generated file, which should contain the retrieved metadata.
-     * @return The metadata, or "N/A" if no metadata could be found.
+     * @return The fields, or null if the file could not be read.
      */
-    protected String getDataFromXml(File file, Constants.ExtractInfo extractInfo) {
-        File barcodeMetadataFile = FileUtils.getExistingFile(file.toString());
+    protected MarcFields getFieldsFromXml(File file) {
         try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(barcodeMetadataFile);
-            XPath xpath = xPathfactory.newXPath();
-            String res = "";
-            switch (extractInfo) {
-                case YEAR:
-                    log.trace("Extracting Year");
-                    XPathExpression issuedYearXpath = xpath.compile(XP_MARC_FIND_YEAR);
-                    String  rYr = (String) issuedYearXpath.evaluate(doc, XPathConstants.STRING);
-                    releaseYear = rYr.substring(7,11);
-                    if (!isNumeric(releaseYear) || "0000".equals(releaseYear)){
-                        throw new IllegalStateException();
-                    }
-                    res = releaseYear;
-                    break;
-                case AUTHOR:
-                    log.trace("Extracting Author");
-                    XPathExpression authorXpath = xpath.compile(XP_MARC_FIND_AUTHOR);
-                    String author = (String) authorXpath.evaluate(doc, XPathConstants.STRING);
-                    if (StringUtils.isNotEmpty(author)) {
-                        res = author;
-                    } else {res = "N/A";}
-                    break;
-                case TITLE:
-                    log.trace("Extracting Title");
-                    XPathExpression titleXpath = xpath.compile(XP_MARC_FIND_TITLE);
-                    String title = (String) titleXpath.evaluate(doc, XPathConstants.STRING);
-                    if (StringUtils.isNotEmpty(title)){
-                        res = title.replaceAll("[\\[\\]:/]", "");
-                    } else { res = "N/A";}
-                    break;
-                case PUBPLACE:
-                    log.trace("Extracting Place of Publication");
-                    XPathExpression pubPlaceXpath = xpath.compile(XP_MARC_FIND_PUBPLACE);
-                    String pubPlace = (String) pubPlaceXpath.evaluate(doc, XPathConstants.STRING);
-                    if (StringUtils.isNotEmpty(pubPlace)) {
-                        res = pubPlace.replaceAll("[\\[\\]:;,]", "");
-                    } else { res = "N/A";}
-                    break;
-                case PUBLISHER:
-                    log.trace("Extracting Publisher");
-                    XPathExpression publisherXpath = xpath.compile(XP_MARC_FIND_PUBLISHER);
-                    String publisher = (String) publisherXpath.evaluate(doc, XPathConstants.STRING);
-                    if (StringUtils.isNotEmpty(publisher)) {
-                        res = publisher.replaceAll("[\\[\\]:,]", "");
-                    } else { res = "N/A";}
-                    break;
-                case CLASSIFICATION:
-                    log.trace("Extracting Classification");
-                    XPathExpression classificationXpath = xpath.compile(XP_MARC_FIND_CLASSIFICATION);
-                    String classification = (String) classificationXpath.evaluate(doc, XPathConstants.STRING);
-                    if (StringUtils.isNotEmpty(classification)) {
-                        res = classification;
-                    } else { res = "N/A";}
-                    break;
-//                case E_COLLECTION:
-//                    //WARNING: only searches the first 999 subfield.
-//                    // See AlmaMetadataRetriever.extractXpathValue for correct way to do it
-//                    log.trace("Extracting ECollection");
-//                    XPathExpression eCollectionXpath = xpath.compile(XP_MARC_FIND_ECOLLECTION);
-//                    String eCol = (String) eCollectionXpath.evaluate(doc, XPathConstants.STRING);
-//                    if (StringUtils.isNotEmpty(eCol)) {
-//                        res = eCol;
-//                    } else { res = "N/A";}
-//                    break;
+            MarcFields fields = marcFieldExtractor.extract(file);
+            if(fields.getYear() == null) {
+                log.warn("Year of release was not found!");
             }
-            log.trace("Returning data: {}", res);
-            return res;
-
-        }catch (IllegalStateException e){
-            log.warn("Year of release was not found!");
-            releaseYear = null;
-            return null;
-        }
-        catch (Exception e) {
-            log.warn("Could not extract '{}' from the file '{}'. Returning a null", extractInfo.name(), barcodeMetadataFile, e);
+            return fields;
+        } catch (Exception e) {
+            log.warn("Could not extract the fields from the file '{}'. Returning a null", file, e);
             return null;
         }
     }
@@ -218,17 +193,13 @@ public class AlmaRetriever {
             return null;
         }
         try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(pubhubMetadataFile);
-            XPath xpath = xPathfactory.newXPath();
-            XPathExpression identifierXpath = xpath.compile(XPATH_FIND_IDENTIFIER);
-            XPathExpression identifierTypeXpath = xpath.compile(XPATH_FIND_IDENTIFIER_TYPE);
-            String idType = (String) identifierTypeXpath.evaluate(doc, XPathConstants.STRING);
+            Document doc = XmlUtils.parse(pubhubMetadataFile, false);
+            String idType = XmlUtils.evaluateString(XPATH_FIND_IDENTIFIER_TYPE, doc);
             if(!idType.startsWith("ISBN") && !idType.startsWith("GTIN13")) {
                 log.info("Not an ISBN or GTIN13 type of identifier. Found: '" + idType + "'. Returning a null.");
                 return null;
             }
-            return (String) identifierXpath.evaluate(doc, XPathConstants.STRING);
+            return XmlUtils.evaluateString(XPATH_FIND_IDENTIFIER, doc);
         } catch (Exception e) {
             log.warn("Could not extract the ISBN number from the file '" + pubhubMetadataFile + "'. Returning a null",
                 e);
@@ -259,16 +230,15 @@ public class AlmaRetriever {
     /**
      * Traverses the files in the base directory to retrieve the Alma metadata.
      * @param dir The base directory of the pdf-files.
-     * @param data The data to add to the Excel sheet
+     * @param run The run, which the barcodes are submitted to.
      */
-    private void traverseFilesInFolder(File dir, Map<String, Object[]> data) {
+    private void traverseFilesInFolder(File dir, ExtractRun run) {
         FilenameFilter filter = (f, name) -> name.endsWith(".pdf");
         File[] files = dir.listFiles(filter);
 
         assert files != null : "List of files is null";
         if(Arrays.stream(files).findFirst().isEmpty() ) {
-            row++;
-            data.put(String.valueOf(row), new Object[] {"", "No files to retrieve and get Alma metadata for in this directory: "
+            run.rows.add(new Object[] {"", "No files to retrieve and get Alma metadata for in this directory: "
                     + dir.getAbsolutePath()});
             log.warn("No files to retrieve and transform Alma metadata for within the directory: "
                     + dir.getAbsolutePath());
@@ -281,7 +251,7 @@ public class AlmaRetriever {
             for(String fileName : fileNames) {
                 String barcode = getBarcodeFromFileName(fileName);
                 if (StringUtils.isNotEmpty(barcode)){
-                    retrieveMetadataForBarcode(dir, barcode, data, fileName);
+                    run.submitBarcode(dir, barcode, fileName);
                 }
             }
         }
@@ -289,124 +259,160 @@ public class AlmaRetriever {
 
     /**
      * Traverses the Electronic Collection and returns metadata for the related barcodes that are extracted from the
-     * records in the Electronic Collection
+     * records in the Electronic Collection.
+     * The records are harvested a page at a time, and the next page is retrieved while the current is processed.
      * @param dir The base directory of the pdf-files.
-     * @param data The data to add to the Excel sheet
+     * @param run The run, which the barcodes are submitted to.
      */
-    private void traversECollection(File dir, Map<String, Object[]> data) {
-        File metadataFile = new File(conf.getTempDir(), "dummy" + Constants.MARC_METADATA_SUFFIX);
-        try (OutputStream out = new FileOutputStream(metadataFile)) {
-            String noOfRecsInECollection = getAlmaMetadataForECollection(1, out, XPATH_NUM_RESULTS).get(0);
-            int nor = Integer.parseInt(noOfRecsInECollection);
-
-            for (int i = 1; i <= nor ; i++) {
-                List<String> links = getAlmaMetadataForECollection(i, out, XPATH_LINK_TO_E_EDITION);
-
-                for (String link:links) {
+    private void traversECollection(File dir, ExtractRun run) {
+        try (ECollectionHarvester harvester = new ECollectionHarvester(almaMetadataRetriever, eCollection,
+                conf.getSruPageSize());
+             Stream<Node> records = harvester.records()) {
+            records.forEachOrdered(record -> {
+                for (String link : harvester.getLinksToEEdition(record)) {
                     String fileName = StringUtils.substringAfterLast(link, "/");
                     String barcode = StringUtils.substringBefore(fileName, "-");
-                    retrieveMetadataForBarcode(dir, barcode, data, fileName);
+                    run.submitBarcode(dir, barcode, fileName);
                 }
-            }
-        } catch (IOException ex) {
+            });
+        } catch (RuntimeException ex) {
             throw new IllegalStateException("traversECollection failed" ,ex);
         }
     }
 
     /**
-     * Get metadata from an electronic ALMA record for a specific XPATH
-     * @param recNo the number of the record to extract metadata for
-     * @param out Output stream to write to
-     * @param xPath The XPATH to the field to retrieve
-     * @return The contents of the XPATH field
+     * Retrieves the metadata for a batch of barcodes. The MARC records for the batch are retrieved together,
+     * and the barcodes, which could not be matched to exactly one record, are retrieved one by one.
+     * @param dir The directory, where the metadata-file will be placed.
+     * @param batch The barcodes of the batch mapped to the name of their pdf-file.
+     * @param archive The zip file for the texts, or null if they are written to text files.
+     * @return The results for the barcodes, in the order of the batch.
      */
-    private List<String>  getAlmaMetadataForECollection( int recNo, OutputStream out, String xPath) {
-        ByteArrayInputStream is = almaMetadataRetriever.retrieveMetadataForECollection(eCollection, recNo, out);
-
-        return almaMetadataRetriever.extractXpathValue(is, xPath);
+    protected List<BarcodeResult> retrieveMetadataForBatch(File dir, Map<String, String> batch,
+                                                           ZipArchive archive) {
+        Map<String, byte[]> prefetched = Collections.emptyMap();
+        if(batch.size() > 1) {
+            prefetched = almaMetadataRetriever.retrieveMetadataForBarcodes(new ArrayList<>(batch.keySet()));
+        }
+        List<BarcodeResult> results = new ArrayList<>();
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            results.add(retrieveMetadataForBarcode(dir, entry.getKey(), entry.getValue(),
+                    prefetched.get(entry.getKey()), archive));
+        }
+        return results;
     }
 
     /**
      * Retrieve the metadata for a given barcode from the physical record.
      * It retrieves the Alma metadata in MARC format, creates an xml file with the data
      *  and puts the xml file in outDir from Yaml configuration file.
+     * This method is called concurrently from several worker threads, when running in parallel.
+     * If the metadata cannot be retrieved, the barcode is marked as failed in the Excel sheet.
      * @param dir The directory, where the metadata-file will be placed.
+     * @param barcode The barcode.
+     * @param fileName The name of the pdf-file for the barcode.
+     * @param marc The already retrieved MARC metadata for the barcode, or null if it must be retrieved.
+     * @param archive The zip file for the text, or null if it is written to a text file.
+     * @return The result for the barcode.
      */
-    protected void retrieveMetadataForBarcode(File dir, String barcode, Map<String, Object[]> data, String  fileName) {
+    protected BarcodeResult retrieveMetadataForBarcode(File dir, String barcode, String  fileName, byte[] marc,
+                                                       ZipArchive archive) {
         try {
             File metadataFile = new File(conf.getTempDir(), barcode + Constants.MARC_METADATA_SUFFIX);
-            getAlmaMetadataForBarcode(barcode, metadataFile, data, fileName);
+            return getAlmaMetadataForBarcode(barcode, metadataFile, fileName, marc, archive);
+        } catch (CircuitBreaker.CircuitOpenException e) {
+            // Alma is down, thus the rest of the barcodes would fail as well
+            throw e;
         } catch (Exception e) {
             log.info("Failure while trying to retrieve the Alma metadata for the directory '"
                 + dir.getAbsolutePath() + "'" + " Barcode: " + barcode, e);
+            return BarcodeResult.failed(barcode);
         }
     }
 
     /**
      * Retrieves the Alma physical record metadata file for a given barcode.
-     * Generate OCR txt-files from the pdf-files using 'pdftotext'
-     * "OK" is written in the excel sheet if success and data is added.
-     * A fail message is written in the excel sheet if no data is retrieved.
+     * Generate OCR txt-files from the pdf-files using 'pdftotext', or write the text directly to the zip file.
+     * The barcode is OK, if the work is older than the cut year and its text is extracted. It fails, if no metadata
+     * is retrieved, and it times out, if its text is not extracted in time or its pdf-file is quarantined.
+     * Otherwise it is skipped. The metadata file is only kept for works older than the cut year, which have not
+     * timed out.
      * @param barcode The barcode for The Item, whose metadata record will be retrieved.
      * @param xmlFile The output file where the metadata will be placed.
+     * @param fileName The name of the pdf-file for the barcode.
+     * @param marc The already retrieved MARC metadata for the barcode, or null if it must be retrieved.
+     * @param archive The zip file for the text, or null if it is written to a text file.
+     * @return The result for the barcode.
      * @throws IOException If it somehow fails to retrieve or write the output file.
      */
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    protected void getAlmaMetadataForBarcode(String barcode, File xmlFile, Map<String, Object[]> data, String fileName) throws IOException {
-        try (OutputStream out = new FileOutputStream(xmlFile)) {
-
+    protected BarcodeResult getAlmaMetadataForBarcode(String barcode, File xmlFile, String fileName, byte[] marc,
+                                                      ZipArchive archive) throws IOException {
+        boolean keepXmlFile = false;
+        try {
             // Create $BARCODE.marc.xml-file and put retrieved metadata in it
-            almaMetadataRetriever.retrieveMetadataForBarcode(barcode, out);
-//            String eCol = getDataFromXml(xmlFile, E_COLLECTION);
-
-//            if((eCollection == null) || (eCol.equals(eCollection))) {
-                //Get releaseYear
-                getDataFromXml(xmlFile, YEAR );
-
-                if (isNumeric(releaseYear)) {
-                    if((Integer.parseInt(releaseYear) < cutYear)) {
-                        row++;
-                        String author = getDataFromXml(xmlFile, AUTHOR);
-                        String title = getDataFromXml(xmlFile, TITLE);
-                        String pubPlace = getDataFromXml(xmlFile, PUBPLACE);
-                        String publisher = getDataFromXml(xmlFile, PUBLISHER);
-                        String classification = getDataFromXml(xmlFile, CLASSIFICATION);
-                        try {
-                            UxCmdUtils.execCmd("pdftotext "                                        // command
-                                    + conf.getCorpusOrigDir().getAbsolutePath() + "/" + fileName + " "   // input file
-                                    + conf.getTempDir().getAbsolutePath() + "/" + barcode + ".txt");     // output file
-                        } catch (Exception e) {
-                            log.warn("Could not make text file from pdf for: {}\n", fileName);
-                            log.trace("Stack: ");
-                            e.printStackTrace();
-                        }
-                        if(FileUtils.checkFileExist(conf.getTempDir().getAbsolutePath() + "/" + barcode + ".txt")) {
-                            data.put(String.valueOf(row), new Object[]{barcode, OK, releaseYear, pubPlace, author, publisher,
-                                    classification, title});
-                        }
-                    }
-                }
-//            }
-            out.flush();
-        } finally {
-            if (isNumeric(releaseYear)) {
-                if (xmlFile.exists() && (Integer.parseInt(releaseYear) >= cutYear)) {
-                    xmlFile.delete();
+            try (OutputStream out = new FileOutputStream(xmlFile)) {
+                if(marc != null) {
+                    out.write(marc);
+                } else {
+                    almaMetadataRetriever.retrieveMetadataForBarcode(barcode, out);
                 }
-            } else {
-                if (xmlFile.exists()){
-                    xmlFile.delete();
+            }
+            if(xmlFile.length() == 0) {
+                log.info("No marc data retrieved for Barcode: {}", barcode);
+                return BarcodeResult.failed(barcode);
+            }
+
+            //Get releaseYear
+            MarcFields fields = getFieldsFromXml(xmlFile);
+            String releaseYear = fields == null ? null : fields.getYear();
+            if(!isNumeric(releaseYear) || Integer.parseInt(releaseYear) >= cutYear) {
+                return BarcodeResult.skipped(barcode);
+            }
+            File pdfFile = new File(conf.getCorpusOrigDir(), fileName);
+            if(quarantine.contains(pdfFile)) {
+                log.info("The text of '{}' is not extracted, since it is quarantined", fileName);
+                return BarcodeResult.timedOut(barcode);
+            }
+            keepXmlFile = true;
+            try {
+                if(archive == null) {
+                    textExtractor.extract(pdfFile, new File(conf.getTempDir(), barcode + ".txt"));
+                } else {
+                    // The entry is only added, when the whole text is extracted
+                    ByteArrayOutputStream text = new ByteArrayOutputStream();
+                    textExtractor.extract(pdfFile, text);
+                    archive.addEntry(getTextEntryName(barcode, releaseYear), text);
                 }
+            } catch (ExtractionTimeoutException e) {
+                log.warn("Could not make text file from pdf for: {}. {}", fileName, e.getMessage());
+                quarantine.add(pdfFile);
+                keepXmlFile = false;
+                return BarcodeResult.timedOut(barcode);
+            } catch (IOException e) {
+                log.warn("Could not make text file from pdf for: {}", fileName, e);
+                return BarcodeResult.skipped(barcode);
             }
-            if(xmlFile.exists() && xmlFile.length() == 0) {
+            return BarcodeResult.ok(barcode, fields);
+        } finally {
+            if(!keepXmlFile) {
                 xmlFile.delete();
-                row++;
-                data.put(String.valueOf(row), new Object[] {barcode, NOK});
-                log.info("No marc data retrieved for Barcode: {}", barcode);
             }
         }
     }
 
+    /**
+     * Finds the name of the zip entry for the text of a barcode: in the temp dir and the directory of years of the
+     * release year, where the text file would have been moved to.
+     * @param barcode The barcode.
+     * @param releaseYear The release year.
+     * @return The name of the zip entry.
+     */
+    protected String getTextEntryName(String barcode, String releaseYear) {
+        String yearDir = DataHandler.getYearDirectory(releaseYear);
+        return conf.getTempDir().getName() + "/" + (yearDir == null ? "" : yearDir + "/") + barcode + ".txt";
+    }
+
     /**
      * Check if passed String is a numeric value
      * @param strNum string to check
@@ -477,4 +483,93 @@ public class AlmaRetriever {
             FileUtils.moveFile(xmlFile, errorFile);
         }
     }
+
+    /**
+     * Creates the configured text extractor.
+     * @param conf The configuration.
+     * @return The text extractor.
+     */
+    protected static TextExtractor createTextExtractor(Configuration conf) {
+        ExtractionTimeout timeout = new ExtractionTimeout(conf.getTextTimeoutSeconds(),
+                conf.getTextTimeoutSecondsPerMb());
+        if(Configuration.TEXT_EXTRACTOR_PDFBOX.equals(conf.getTextExtractor())) {
+            // PDFBox loads the whole document for each range of pages, thus the files are not split
+            return new PdfBoxTextExtractor(conf.getOcrProcesses(), conf.getPdfboxMaxMemoryMb() * 1024L * 1024L,
+                    timeout);
+        }
+        return new PageRangeTextExtractor(new PdfToTextExtractor(conf.getOcrProcesses(), timeout),
+                conf.getOcrProcesses(), conf.getTextSplitMinMb() * 1024L * 1024L, conf.getTextSplitPages(), timeout);
+    }
+
+    /**
+     * Stops the text extraction.
+     */
+    @Override
+    public void close() {
+        textExtractor.close();
+    }
+
+    /**
+     * The state of one run: the rows of the Excel sheet, the executor processing the barcodes, the zip file for the
+     * texts, the barcodes handled so far and the pending batch. It is only used by the thread, which traverses the
+     * files, while the rows are delivered in the order of submission by the executor.
+     */
+    protected class ExtractRun {
+        /** The rows of the Excel sheet.*/
+        protected final ExcelRowCollector rows;
+        /** The executor for processing the barcodes.*/
+        protected final OrderedExecutor<List<BarcodeResult>> executor;
+        /** The zip file for the texts, or null if they are written to text files.*/
+        protected final ZipArchive archive;
+        /** The barcodes, which have already been submitted for processing in this run.*/
+        protected final Set<String> handledBarcodes = new HashSet<>();
+        /** The barcodes (and the name of their pdf-file) waiting to be submitted together as one batch.*/
+        protected Map<String, String> pendingBatch = new LinkedHashMap<>();
+
+        /**
+         * Constructor.
+         * @param rows The rows of the Excel sheet.
+         * @param executor The executor for processing the barcodes.
+         * @param archive The zip file for the texts, or null if they are written to text files.
+         */
+        protected ExtractRun(ExcelRowCollector rows, OrderedExecutor<List<BarcodeResult>> executor,
+                             ZipArchive archive) {
+            this.rows = rows;
+            this.executor = executor;
+            this.archive = archive;
+        }
+
+        /**
+         * Submits a barcode for processing. A barcode is only processed once per run, since the output files
+         * are named after the barcode.
+         * The barcodes are collected into batches of the configured SRU batch size, and each batch is processed
+         * as one task, so the metadata for the whole batch can be retrieved in one SRU request.
+         * @param dir The directory, where the metadata-file will be placed.
+         * @param barcode The barcode.
+         * @param fileName The name of the pdf-file for the barcode.
+         */
+        protected void submitBarcode(File dir, String barcode, String fileName) {
+            if(!handledBarcodes.add(barcode)) {
+                log.info("Barcode '{}' has already been handled. Skipping the file '{}'", barcode, fileName);
+                return;
+            }
+            pendingBatch.put(barcode, fileName);
+            if(pendingBatch.size() >= conf.getSruBatchSize()) {
+                submitPendingBatch(dir);
+            }
+        }
+
+        /**
+         * Submits the pending batch of barcodes for processing.
+         * @param dir The directory, where the metadata-file will be placed.
+         */
+        protected void submitPendingBatch(File dir) {
+            if(pendingBatch.isEmpty()) {
+                return;
+            }
+            Map<String, String> batch = pendingBatch;
+            pendingBatch = new LinkedHashMap<>();
+            executor.submit(() -> retrieveMetadataForBatch(dir, batch, archive));
+        }
+    }
 }
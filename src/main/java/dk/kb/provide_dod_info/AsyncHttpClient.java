@@ -0,0 +1,363 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.config.Configuration;
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.CircuitBreaker;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous, non-blocking HTTP client for the Alma SRU responses, built on the JDK HTTP client.
+ * The requests are sent with HTTP/2, when the server supports it, so many requests share one connection, and
+ * otherwise with HTTP/1.1. No thread waits for a response: the responses are handled by a small pool of threads,
+ * when they arrive, thus many lookups can be in flight at the same time. The number of requests in flight is
+ * limited, and the following requests are queued until a request completes.
+ *
+ * The failure handling is the same as for the blocking {@link HttpClient}: transient failures are retried with
+ * exponential backoff and jitter (or after the 'Retry-After' of the response), and all requests go through a
+ * circuit breaker. The retries and the pauses of the circuit breaker are scheduled, instead of sleeping.
+ * The responses are requested gzip or deflate compressed. They are small, so each response is delivered as a
+ * whole, decompressed.
+ * The client must be closed, when it is no longer needed.
+ */
+public class AsyncHttpClient implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(AsyncHttpClient.class);
+
+    /** The underlying JDK HTTP client, which is shared by all requests.*/
+    protected final java.net.http.HttpClient client;
+    /** The threads handling the responses and the scheduled retries.*/
+    protected final ExecutorService executor;
+    /** The timeout for a response, from the request is sent.*/
+    protected final Duration requestTimeout;
+    /** The maximum number of retries of a failed request.*/
+    protected final int maxRetries;
+    /** The delay before the first retry, in milliseconds. It is doubled for each following retry.*/
+    protected final long retryBaseDelayMs;
+    /** The maximum delay between retries, in milliseconds.*/
+    protected final long retryMaxDelayMs;
+    /** The circuit breaker, which pauses the requests when the server is down.*/
+    protected final CircuitBreaker circuitBreaker;
+
+    /** The permits for the requests in flight.*/
+    protected final Semaphore inFlight;
+    /** The requests waiting for a permit.*/
+    protected final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /** The number of content bytes received, before they were decompressed.*/
+    protected final AtomicLong compressedBytes = new AtomicLong();
+    /** The number of content bytes delivered, after they were decompressed.*/
+    protected final AtomicLong uncompressedBytes = new AtomicLong();
+
+    /** The default maximum number of requests in flight at the same time.*/
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+    /** The default number of threads handling the responses.*/
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Constructor with the transport settings from the configuration, and the default number of requests in flight
+     * and of threads.
+     * @param conf The configuration.
+     */
+    public AsyncHttpClient(Configuration conf) {
+        this(conf, DEFAULT_MAX_IN_FLIGHT, DEFAULT_THREADS);
+    }
+
+    /**
+     * Constructor with the transport settings from the configuration.
+     * @param conf The configuration.
+     * @param maxInFlight The maximum number of requests in flight at the same time.
+     * @param threads The number of threads handling the responses.
+     */
+    public AsyncHttpClient(Configuration conf, int maxInFlight, int threads) {
+        this(maxInFlight, threads, conf.getHttpConnectTimeoutMs(),
+                conf.getHttpSocketTimeoutMs(), conf.getHttpMaxRetries(), conf.getHttpRetryBaseDelayMs(),
+                conf.getHttpRetryMaxDelayMs(),
+                new CircuitBreaker("Alma", conf.getCircuitBreakerThreshold(),
+                        conf.getCircuitBreakerPauseSeconds() * 1000L, conf.getCircuitBreakerMaxOpenMinutes() * 60000L));
+    }
+
+    /**
+     * Constructor.
+     * @param maxInFlight The maximum number of requests in flight at the same time.
+     * @param threads The number of threads handling the responses.
+     * @param connectTimeoutMs The connect timeout in milliseconds.
+     * @param requestTimeoutMs The timeout for a response in milliseconds.
+     * @param maxRetries The maximum number of retries of a failed request.
+     * @param retryBaseDelayMs The delay before the first retry, in milliseconds.
+     * @param retryMaxDelayMs The maximum delay between retries, in milliseconds.
+     * @param circuitBreaker The circuit breaker for the requests.
+     */
+    protected AsyncHttpClient(int maxInFlight, int threads, int connectTimeoutMs, int requestTimeoutMs,
+                              int maxRetries, long retryBaseDelayMs, long retryMaxDelayMs,
+                              CircuitBreaker circuitBreaker) {
+        ArgumentCheck.checkPositiveInt(maxInFlight, "int maxInFlight");
+        ArgumentCheck.checkPositiveInt(threads, "int threads");
+        ArgumentCheck.checkNotNegativeInt(maxRetries, "int maxRetries");
+        ArgumentCheck.checkNotNull(circuitBreaker, "CircuitBreaker circuitBreaker");
+        this.inFlight = new Semaphore(maxInFlight);
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.maxRetries = maxRetries;
+        this.retryBaseDelayMs = retryBaseDelayMs;
+        this.retryMaxDelayMs = retryMaxDelayMs;
+        this.circuitBreaker = circuitBreaker;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "alma-async-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(java.net.http.HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+        log.debug("Created asynchronous HTTP client with max {} requests in flight, {} threads, "
+                + "connect timeout {} ms, request timeout {} ms", maxInFlight, threads, connectTimeoutMs,
+                requestTimeoutMs);
+    }
+
+    /**
+     * Retrieves the content of a given URL asynchronously.
+     * The future fails with an IllegalStateException, if the response status code is not in the 200-299 range,
+     * and with an IOException, if any connection issues occur. Transient failures are retried.
+     * @param url The text URL to retrieve.
+     * @return The future decompressed content.
+     */
+    public CompletableFuture<byte[]> retrieveUrlContent(String url) {
+        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(requestTimeout)
+                .header("Accept-Encoding", HttpClient.ACCEPT_ENCODING)
+                .GET()
+                .build();
+        return execute(request, 0);
+    }
+
+    /**
+     * Performs an attempt of the request, through the circuit breaker, and schedules a retry if it fails
+     * transiently.
+     * @param request The request.
+     * @param attempt The number of the attempt, starting at 0.
+     * @return The future decompressed content.
+     */
+    protected CompletableFuture<byte[]> execute(HttpRequest request, int attempt) {
+        long waitMs;
+        try {
+            waitMs = circuitBreaker.tryAcquire();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if(waitMs > 0) {
+            return delay(waitMs).thenCompose(v -> execute(request, attempt));
+        }
+
+        log.debug("Retrieving content from URL: " + request.uri());
+        return withPermit(() -> client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                .handle((response, error) -> {
+                    if(error != null) {
+                        return onFailure(request, attempt, unwrap(error));
+                    }
+                    return onResponse(request, attempt, response);
+                })
+                .thenCompose(f -> f);
+    }
+
+    /**
+     * Handles a response: decompresses the content, if the status code is valid, and otherwise retries or fails.
+     * @param request The request.
+     * @param attempt The number of the attempt, starting at 0.
+     * @param response The response.
+     * @return The future decompressed content.
+     */
+    protected CompletableFuture<byte[]> onResponse(HttpRequest request, int attempt, HttpResponse<byte[]> response) {
+        int statusCode = response.statusCode();
+        if(statusCode >= 200 && statusCode < 300) {
+            circuitBreaker.recordSuccess();
+            try {
+                return CompletableFuture.completedFuture(decode(response));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        if(!HttpClient.isTransientStatus(statusCode)) {
+            // Not a transient failure, thus the server is up.
+            circuitBreaker.recordSuccess();
+            return CompletableFuture.failedFuture(new IllegalStateException("Received erroneous status code for url "
+                    + request.uri() + ", " + statusCode));
+        }
+        circuitBreaker.recordFailure();
+        if(attempt >= maxRetries) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Received erroneous status code for url "
+                    + request.uri() + ", " + statusCode + " (after " + attempt + " retries)"));
+        }
+        log.info("Received status code {} for url {}. Retrying.", statusCode, request.uri());
+        long retryAfterMs = HttpClient.parseRetryAfterMs(response.headers().firstValue("Retry-After").orElse(null));
+        return retry(request, attempt, retryAfterMs);
+    }
+
+    /**
+     * Handles a failed attempt: retries, if it was an I/O error, and otherwise fails.
+     * Other errors, e.g. a cancelled request, do not tell whether the service is available, but they release the
+     * probe of the circuit breaker, so the circuit does not stay open.
+     * @param request The request.
+     * @param attempt The number of the attempt, starting at 0.
+     * @param error The cause of the failure.
+     * @return The future decompressed content.
+     */
+    protected CompletableFuture<byte[]> onFailure(HttpRequest request, int attempt, Throwable error) {
+        if(!(error instanceof IOException)) {
+            circuitBreaker.releaseProbe();
+            return CompletableFuture.failedFuture(error);
+        }
+        circuitBreaker.recordFailure();
+        if(attempt >= maxRetries) {
+            return CompletableFuture.failedFuture(error);
+        }
+        log.info("Failed to retrieve url {} ({}). Retrying.", request.uri(), error.toString());
+        return retry(request, attempt, -1);
+    }
+
+    /**
+     * Schedules a retry of the request.
+     * @param request The request.
+     * @param attempt The number of the failed attempt, starting at 0.
+     * @param retryAfterMs The 'Retry-After' of the response in milliseconds, or -1 to use the backoff.
+     * @return The future decompressed content.
+     */
+    protected CompletableFuture<byte[]> retry(HttpRequest request, int attempt, long retryAfterMs) {
+        long delayMs = retryAfterMs >= 0 ? retryAfterMs : HttpClient.backoff(attempt, retryBaseDelayMs,
+                retryMaxDelayMs);
+        return delay(delayMs).thenCompose(v -> execute(request, attempt + 1));
+    }
+
+    /**
+     * Decompresses the content of a response according to its 'Content-Encoding', and counts the bytes.
+     * @param response The response.
+     * @return The decompressed content.
+     * @throws IOException If the content encoding is not supported, or the compressed content is invalid.
+     */
+    protected byte[] decode(HttpResponse<byte[]> response) throws IOException {
+        byte[] body = response.body();
+        compressedBytes.addAndGet(body.length);
+        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
+        if(contentEncoding == null) {
+            uncompressedBytes.addAndGet(body.length);
+            return body;
+        }
+        try (InputStream in = HttpClient.decode(new ByteArrayInputStream(body),
+                new BasicHeader("Content-Encoding", contentEncoding))) {
+            byte[] res = in.readAllBytes();
+            uncompressedBytes.addAndGet(res.length);
+            return res;
+        }
+    }
+
+    /**
+     * Sends a request, when there is a permit for it, and releases the permit when the response has arrived.
+     * Requests without a permit are queued, so no thread waits for a permit.
+     * @param send Sends the request.
+     * @param <T> The type of the response.
+     * @return The future response.
+     */
+    protected <T> CompletableFuture<T> withPermit(Supplier<CompletableFuture<T>> send) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        pending.add(() -> {
+            CompletableFuture<T> sent;
+            try {
+                sent = send.get();
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            // Released by the executor, so a queue of failing requests does not recurse on the stack.
+            sent.whenCompleteAsync((response, error) -> {
+                inFlight.release();
+                sendPending();
+                if(error != null) {
+                    res.completeExceptionally(error);
+                } else {
+                    res.complete(response);
+                }
+            }, executor);
+        });
+        sendPending();
+        return res;
+    }
+
+    /**
+     * Sends the queued requests, as long as there are permits.
+     */
+    protected void sendPending() {
+        while (!pending.isEmpty() && inFlight.tryAcquire()) {
+            Runnable next = pending.poll();
+            if(next == null) {
+                inFlight.release();
+            } else {
+                next.run();
+            }
+        }
+    }
+
+    /**
+     * @param delayMs The delay in milliseconds.
+     * @return A future, which completes after the delay, without blocking a thread.
+     */
+    protected CompletableFuture<Void> delay(long delayMs) {
+        return CompletableFuture.runAsync(() -> { },
+                CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, executor));
+    }
+
+    /**
+     * @param error The error from a future.
+     * @return The cause, if the error only wraps it.
+     */
+    protected static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /** @return The number of requests waiting to be sent.*/
+    public int getPendingRequests() {
+        return pending.size();
+    }
+
+    /** @return The number of content bytes received, before they were decompressed.*/
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /** @return The number of content bytes delivered, after they were decompressed.*/
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Stops the threads handling the responses. Requests in flight are abandoned.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,123 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.metadata.MarcFields;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of processing one barcode: whether its metadata and text were extracted, and the fields for its row
+ * in the Excel sheet.
+ * It is immutable, thus it can be handed from the worker threads to the collector of the rows.
+ */
+public final class BarcodeResult {
+    /**
+     * The outcome of processing a barcode.
+     */
+    public enum Status {
+        /** The metadata and the text were extracted. The barcode has a row with its fields.*/
+        OK,
+        /** The metadata could not be retrieved. The barcode has a row marking it as failed.*/
+        FAILED,
+        /** The work is too recent, has no release year, or its text could not be extracted. It has no row.*/
+        SKIPPED,
+        /** The text was not extracted by the deadline, or the pdf-file is quarantined. The barcode has a row marking
+         * it as timed out.*/
+        TIMED_OUT
+    }
+
+    /** The barcode.*/
+    private final String barcode;
+    /** The outcome.*/
+    private final Status status;
+    /** The fields extracted from the MARC record. Only for the barcodes, which are OK.*/
+    private final MarcFields fields;
+
+    /**
+     * Constructor.
+     * @param barcode The barcode.
+     * @param status The outcome.
+     * @param fields The fields extracted from the MARC record, or null if the barcode is not OK.
+     */
+    private BarcodeResult(String barcode, Status status, MarcFields fields) {
+        ArgumentCheck.checkNotNull(barcode, "String barcode");
+        this.barcode = barcode;
+        this.status = status;
+        this.fields = fields;
+    }
+
+    /**
+     * @param barcode The barcode.
+     * @param fields The fields extracted from the MARC record.
+     * @return The result for a barcode, whose metadata and text were extracted.
+     */
+    public static BarcodeResult ok(String barcode, MarcFields fields) {
+        ArgumentCheck.checkNotNull(fields, "MarcFields fields");
+        return new BarcodeResult(barcode, Status.OK, fields);
+    }
+
+    /**
+     * @param barcode The barcode.
+     * @return The result for a barcode, whose metadata could not be retrieved.
+     */
+    public static BarcodeResult failed(String barcode) {
+        return new BarcodeResult(barcode, Status.FAILED, null);
+    }
+
+    /**
+     * @param barcode The barcode.
+     * @return The result for a barcode, which is left out of the Excel sheet.
+     */
+    public static BarcodeResult skipped(String barcode) {
+        return new BarcodeResult(barcode, Status.SKIPPED, null);
+    }
+
+    /**
+     * @param barcode The barcode.
+     * @return The result for a barcode, whose text was not extracted by the deadline.
+     */
+    public static BarcodeResult timedOut(String barcode) {
+        return new BarcodeResult(barcode, Status.TIMED_OUT, null);
+    }
+
+    /** @return The barcode.*/
+    public String getBarcode() {
+        return barcode;
+    }
+
+    /** @return The outcome.*/
+    public Status getStatus() {
+        return status;
+    }
+
+    /** @return The fields extracted from the MARC record, or null if the barcode is not OK.*/
+    public MarcFields getFields() {
+        return fields;
+    }
+
+    /**
+     * @return The row for the Excel sheet: the barcode, 'OK', the year and the configured columns for the barcodes,
+     * which are OK, the barcode and 'NOK' for the failed barcodes, and the barcode and 'TIMEOUT' for the barcodes,
+     * which timed out. Null for the skipped barcodes.
+     */
+    public Object[] getRow() {
+        switch (status) {
+            case OK:
+                List<Object> row = new ArrayList<>(List.of(barcode, Constants.OK, fields.getYear()));
+                row.addAll(fields.getValues());
+                return row.toArray();
+            case FAILED:
+                return new Object[] {barcode, Constants.NOK};
+            case TIMED_OUT:
+                return new Object[] {barcode, Constants.TIMEOUT};
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BarcodeResult{" + barcode + ": " + status + "}";
+    }
+}
@@ -17,6 +17,10 @@ public class Constants {
     public static final String MODS_METADATA_SUFFIX = ".mods" + XML_SUFFIX;
     /** The suffix for the MARC files.*/
     public static final String MARC_METADATA_SUFFIX = ".marc" + XML_SUFFIX;
+    /** The name of the MARC collection file with all the records of a directory.*/
+    public static final String MARC_COLLECTION_FILE_NAME = "collection" + MARC_METADATA_SUFFIX;
+    /** The name of the index from barcode to record in the MARC collection file.*/
+    public static final String MARC_COLLECTION_INDEX_FILE_NAME = "collection.marc.index.tsv";
 
     /** The suffix for a file containing an error.*/
     public static final String ERROR_SUFFIX = ".error";
@@ -30,9 +34,6 @@ public class Constants {
     public static final String XP_MODS_FIND_YEAR = "/*[local-name()='mods']/*[local-name()='originInfo']/*[local-name()='dateIssued']/text()";
     // ovenstående kan forkortes til "/mods/originInfo/dateIssued/text()"
 
-    /**  The XPATH for extracting the dateIssued from the generated alma marc.xml*/
-    public static final String XP_MARC_FIND_YEAR = "recordData/record/controlfield[@tag='008']/text()"; //
-
     /**  The XPATH for extracting the link to the electronic edition from the alma metadata xml*/
     public static final String XPATH_LINK_TO_E_EDITION = "/*[local-name()='searchRetrieveResponse']" +
             "/*[local-name()='records']/*[local-name()='record']/*[local-name()='recordData']/*[local-name()='record']" +
@@ -55,22 +56,12 @@ public class Constants {
     // "/mods/name[@type='personal']/namePart/text()";
     /** The XPATH for extracting the Author from the generated alma marc.xml*/
     public static final String XP_MARC_FIND_AUTHOR = "recordData/record/datafield[@tag='100']/subfield[@code='a']/text()";
-    /** The XPATH for extracting the Title from the generated alma marc.xml*/
-    public static final String XP_MARC_FIND_TITLE = "recordData/record/datafield[@tag='245']/subfield[@code='a']/text()";
-    /** The XPATH for extracting the Place of publication from the generated alma marc.xml*/
-    public static final String XP_MARC_FIND_PUBPLACE = "recordData/record/datafield[@tag='260']/subfield[@code='a']/text()";
-    /** The XPATH for extracting the Publisher from the generated alma marc.xml*/
-    public static final String XP_MARC_FIND_PUBLISHER = "recordData/record/datafield[@tag='260']/subfield[@code='b']/text()";
-    /** The XPATH for extracting the Classification from the generated alma marc.xml*/
-    public static final String XP_MARC_FIND_CLASSIFICATION = "recordData/record/datafield[@tag='084']/subfield[@code='o']/text()";
 
     public static final String OK = "OK";
     public static final String NOK = "NOK";
+    /** The Alma column value for the barcodes, whose text was not extracted by the deadline.*/
+    public static final String TIMEOUT = "TIMEOUT";
     public static final String SHEETNAME = "Alma results";
 
-    public enum ExtractInfo {
-        YEAR, AUTHOR, TITLE, PUBPLACE, PUBLISHER, CLASSIFICATION, E_COLLECTION
-    }
-
 
 }
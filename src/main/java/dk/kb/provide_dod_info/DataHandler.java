@@ -2,6 +2,7 @@ package dk.kb.provide_dod_info;
 
 import dk.kb.provide_dod_info.config.Configuration;
 import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.metadata.MarcCollectionWriter;
 import dk.kb.provide_dod_info.utils.FileUtils;
 import dk.kb.provide_dod_info.utils.UxCmdUtils;
 import org.slf4j.Logger;
@@ -13,8 +14,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.TreeMap;
 
 /**
  * Class used to sort the output data in directories with 50 years intervals from 1400 to 1899
@@ -24,6 +24,12 @@ public class DataHandler {
      * The logger.
      */
     private static final Logger log = LoggerFactory.getLogger(DataHandler.class);
+    /** The first year of the directories of years.*/
+    protected static final int FIRST_YEAR = 1400;
+    /** The last year of the directories of years.*/
+    protected static final int LAST_YEAR = 1899;
+    /** The number of years in each directory of years.*/
+    protected static final int YEARS_PER_DIRECTORY = 50;
     /**
      * The configuration.
      */
@@ -53,10 +59,10 @@ public class DataHandler {
         log.info("addReadMe entered");
         try {
             //todo: extract version from pom, can't do like readme
-            UxCmdUtils.execCmd("jar xf " +                               // extract
-                    "provide-dod-info-1.1.2/lib/provide-dod-info-1.1.2.jar " + // fromFile
-                    "readme.txt " );                                           // file to extract
-            UxCmdUtils.execCmd("chmod -x readme.txt");
+            UxCmdUtils.execCmd("jar", "xf",                               // extract
+                    "provide-dod-info-1.1.2/lib/provide-dod-info-1.1.2.jar",   // fromFile
+                    "readme.txt");                                             // file to extract
+            UxCmdUtils.execCmd("chmod", "-x", "readme.txt");
             File fromReadme = new File("readme.txt");
             File toReadme = new File(conf.getTempDir().getAbsolutePath() + "/readme.txt");
             FileUtils.moveFile(fromReadme, toReadme);
@@ -66,60 +72,43 @@ public class DataHandler {
         }
     }
 
+    /**
+     * Moves the text and MARC files of the barcodes to the directories of years of their release years.
+     * @param data The barcodes mapped to their release years.
+     */
     public void sortDirectories(Map<String, String> data) {
         log.info("sortDirectories entered");
+        // The directories are handled in the order of their years, and the barcodes in the order of the data
+        Map<String, List<String>> barcodesByDir = new TreeMap<>();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            String yearDir = getYearDirectory(entry.getValue());
+            if(yearDir != null) {
+                barcodesByDir.computeIfAbsent(yearDir, dir -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        barcodesByDir.forEach((yearDir, barcodes) -> moveToSubDirs(barcodes, "/" + yearDir));
+    }
 
-        String regEx = "^(14)[0-4][0-9]$";
-        String subDir = "/1400to1449";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(14)[5-9][0-9]$";
-        subDir = "/1450to1499";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(15)[0-4][0-9]$";
-        subDir = "/1500to1549";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(15)[5-9][0-9]$";
-        subDir = "/1550to1599";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(16)[0-4][0-9]$";
-        subDir = "/1600to1649";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(16)[5-9][0-9]$";
-        subDir = "/1650to1699";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(17)[0-4][0-9]$";
-        subDir = "/1700to1749";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(17)[5-9][0-9]$";
-        subDir = "/1750to1799";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(18)[0-4][0-9]$";
-        subDir = "/1800to1849";
-        moveToSubDirs(data, regEx, subDir);
-
-        regEx = "^(18)[5-9][0-9]$";
-        subDir = "/1850to1899";
-        moveToSubDirs(data, regEx, subDir);
+    /**
+     * Finds the directory of years for a release year, e.g. '1650to1699' for 1687.
+     * @param year The release year.
+     * @return The name of the directory of years, or null if the year is not a year from 1400 to 1899.
+     */
+    public static String getYearDirectory(String year) {
+        if(year == null || !year.matches("^\\d{4}$")) {
+            return null;
+        }
+        int releaseYear = Integer.parseInt(year);
+        if(releaseYear < FIRST_YEAR || releaseYear > LAST_YEAR) {
+            return null;
+        }
+        int firstYear = releaseYear - (releaseYear % YEARS_PER_DIRECTORY);
+        return firstYear + "to" + (firstYear + YEARS_PER_DIRECTORY - 1);
     }
 
-    private void moveToSubDirs(Map<String, String> data, String regEx, String subDir) {
+    private void moveToSubDirs(List<String> barcodes, String subDir) {
         log.trace("moveToSubDirs entered");
-        List<Map.Entry<String, String>> entryList = data.entrySet().stream()
-                .filter(a -> a.getValue().matches(regEx))
-                .collect(Collectors.toList());
-
-        List<String> barcodes = new ArrayList<>();
-        IntStream.range(0, entryList.size())
-                .forEach(i -> barcodes.add(i, entryList.get(i).getKey()));
-
+        MarcCollectionWriter collection = null;
         for (String barcode : barcodes) {
             String txtFile = barcode + ".txt";
             File fileToMoveTxt = new File(conf.getTempDir() + "/" + txtFile);
@@ -135,11 +124,22 @@ public class DataHandler {
             }
             File moveToTxt = new File(moveToDir + "/" + txtFile);
             File moveToXml = new File(moveToDir + "/" + xmlFile);
-            try {
-                FileUtils.moveFile(fileToMoveTxt, moveToTxt);
-            } catch (Exception e){
-                log.error("The file '{}' could not be moved", fileToMoveTxt);
-                log.debug(e.toString());
+            // When streamed, the text is already in the zip file in its directory of years
+            if(!conf.getStreamTextToZip()) {
+                try {
+                    FileUtils.moveFile(fileToMoveTxt, moveToTxt);
+                } catch (Exception e){
+                    log.error("The file '{}' could not be moved", fileToMoveTxt);
+                    log.debug(e.toString());
+                }
+            }
+            if(conf.getMarcCollections()) {
+                if(collection == null) {
+                    collection = openCollection(moveToDir);
+                }
+                if(addToCollection(collection, barcode, fileToMoveXml)) {
+                    continue;
+                }
             }
             try {
                 FileUtils.moveFile(fileToMoveXml, moveToXml);
@@ -148,5 +148,63 @@ public class DataHandler {
                 log.debug(e.toString());
             }
         }
+        closeCollection(collection, subDir);
+    }
+
+    /**
+     * Starts the MARC collection file and its index in a directory of years.
+     * @param dir The directory of years.
+     * @return The writer of the collection, or null if the collection could not be started.
+     */
+    private MarcCollectionWriter openCollection(File dir) {
+        File collectionFile = new File(dir, Constants.MARC_COLLECTION_FILE_NAME);
+        try {
+            return new MarcCollectionWriter(collectionFile, new File(dir, Constants.MARC_COLLECTION_INDEX_FILE_NAME),
+                    conf.getCompactMarc());
+        } catch (IOException e) {
+            log.error("The MARC collection '{}' could not be created. Moving the MARC files instead.",
+                    collectionFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the MARC record of a barcode to the collection of its directory of years, and removes its MARC file.
+     * @param collection The writer of the collection, or null if the collection could not be started.
+     * @param barcode The barcode.
+     * @param xmlFile The MARC file of the barcode.
+     * @return Whether the record was added. Otherwise the MARC file must be moved.
+     */
+    private boolean addToCollection(MarcCollectionWriter collection, String barcode, File xmlFile) {
+        if(collection == null || !xmlFile.isFile()) {
+            return false;
+        }
+        try {
+            collection.add(barcode, xmlFile);
+        } catch (IOException e) {
+            log.error("The MARC file '{}' could not be added to the collection. Moving it instead.", xmlFile, e);
+            return false;
+        }
+        if(!xmlFile.delete()) {
+            log.warn("The MARC file '{}' was added to the collection, but could not be removed", xmlFile);
+        }
+        return true;
+    }
+
+    /**
+     * Ends the MARC collection of a directory of years.
+     * @param collection The writer of the collection, or null if there is no collection.
+     * @param subDir The directory of years.
+     */
+    private void closeCollection(MarcCollectionWriter collection, String subDir) {
+        if(collection == null) {
+            return;
+        }
+        try {
+            collection.close();
+            log.info("Wrote {} MARC records to the collection in '{}'", collection.getRecords(), subDir);
+        } catch (IOException e) {
+            log.error("The MARC collection in '{}' could not be completed", subDir, e);
+        }
     }
 }
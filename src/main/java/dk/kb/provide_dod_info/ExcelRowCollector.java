@@ -0,0 +1,125 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the rows of the Excel sheet for one run. The row numbers are allocated atomically, and the rows are kept
+ * sorted by their number, so rows can be allocated and added from any thread.
+ */
+public class ExcelRowCollector {
+    /** The number of the last allocated row. The first row is number 1.*/
+    protected final AtomicInteger lastRow = new AtomicInteger();
+    /** The rows by their number.*/
+    protected final Map<Integer, Object[]> rows = new ConcurrentSkipListMap<>();
+    /** The number of barcodes, which are OK.*/
+    protected final AtomicLong ok = new AtomicLong();
+    /** The number of barcodes, which failed.*/
+    protected final AtomicLong failed = new AtomicLong();
+    /** The number of barcodes, which were skipped.*/
+    protected final AtomicLong skipped = new AtomicLong();
+    /** The number of barcodes, whose text was not extracted by the deadline.*/
+    protected final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Allocates the next row.
+     * @return The number of the row.
+     */
+    public int allocateRow() {
+        return lastRow.incrementAndGet();
+    }
+
+    /**
+     * Puts a row at an allocated row number.
+     * @param row The number of the row, as allocated by {@link #allocateRow()}.
+     * @param data The cells of the row.
+     */
+    public void put(int row, Object[] data) {
+        ArgumentCheck.checkTrue(row > 0 && row <= lastRow.get(), "The row " + row + " has not been allocated");
+        ArgumentCheck.checkNotNull(data, "Object[] data");
+        if(rows.putIfAbsent(row, data) != null) {
+            throw new IllegalStateException("The row " + row + " has already been added");
+        }
+    }
+
+    /**
+     * Adds a row after the rows allocated so far.
+     * @param data The cells of the row.
+     */
+    public void add(Object[] data) {
+        put(allocateRow(), data);
+    }
+
+    /**
+     * Adds the row for the result of a barcode, unless it was skipped, and counts the result.
+     * @param result The result of the barcode.
+     */
+    public void add(BarcodeResult result) {
+        ArgumentCheck.checkNotNull(result, "BarcodeResult result");
+        switch (result.getStatus()) {
+            case OK:
+                ok.incrementAndGet();
+                break;
+            case FAILED:
+                failed.incrementAndGet();
+                break;
+            case TIMED_OUT:
+                timedOut.incrementAndGet();
+                break;
+            default:
+                skipped.incrementAndGet();
+                return;
+        }
+        add(result.getRow());
+    }
+
+    /**
+     * Adds the rows for the results of barcodes, in the given order.
+     * @param results The results.
+     */
+    public void addAll(Iterable<BarcodeResult> results) {
+        results.forEach(this::add);
+    }
+
+    /**
+     * The rows for the Excel sheet, in the order of their numbers. Rows, which were allocated but not added, are
+     * left out.
+     * @return The rows, keyed by their number, for {@link dk.kb.provide_dod_info.utils.ExcelUtils#populateSheet}.
+     */
+    public Map<String, Object[]> getData() {
+        Map<String, Object[]> res = new LinkedHashMap<>();
+        rows.forEach((row, data) -> res.put(String.valueOf(row), data));
+        return res;
+    }
+
+    /** @return The number of barcodes, which are OK.*/
+    public long getOk() {
+        return ok.get();
+    }
+
+    /** @return The number of barcodes, which failed.*/
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** @return The number of barcodes, which were skipped.*/
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /** @return The number of barcodes, whose text was not extracted by the deadline.*/
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return rows.size() + " rows: " + ok.get() + " OK, " + failed.get() + " failed, " + skipped.get() + " skipped, "
+                + timedOut.get() + " timed out";
+    }
+}
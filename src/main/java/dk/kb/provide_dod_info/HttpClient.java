@@ -1,55 +1,327 @@
 package dk.kb.provide_dod_info;
 
+import dk.kb.provide_dod_info.config.Configuration;
 import dk.kb.provide_dod_info.exception.ArgumentCheck;
-import dk.kb.provide_dod_info.utils.StreamUtils;
+import dk.kb.provide_dod_info.utils.CircuitBreaker;
+import dk.kb.provide_dod_info.utils.CountingOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
 
 /**
- * Http client for downloading stuff (mostly the cover image files).
+ * Http client for downloading stuff (mostly the Alma SRU responses).
+ * It owns a single pooled, keep-alive transport, which is reused for all the requests. Thus the TCP and TLS
+ * handshakes are only performed when a new connection is needed, and not once per request.
+ * Failed requests are retried with exponential backoff and jitter, when the failure is likely to be transient:
+ * I/O errors (e.g. timeouts), 5xx responses, '408 Request Timeout' and '429 Too Many Requests' (honouring the
+ * 'Retry-After' header). All requests go through a circuit breaker, which pauses all callers when the server
+ * keeps failing.
+ * The responses are requested gzip or deflate compressed, and are decompressed while they are read.
+ * The client must be closed, when it is no longer needed.
  */
-public class HttpClient {
+public class HttpClient implements Closeable {
     /** The logger.*/
     private static final Logger log = LoggerFactory.getLogger(HttpClient.class);
 
+    /** The connection manager with the pool of connections.*/
+    protected final PoolingHttpClientConnectionManager connectionManager;
+    /** The underlying HTTP client, which is shared by all requests.*/
+    protected final CloseableHttpClient client;
+    /** The maximum number of retries of a failed request.*/
+    protected final int maxRetries;
+    /** The delay before the first retry, in milliseconds. It is doubled for each following retry.*/
+    protected final long retryBaseDelayMs;
+    /** The maximum delay between retries, in milliseconds.*/
+    protected final long retryMaxDelayMs;
+    /** The circuit breaker, which pauses the requests when the server is down.*/
+    protected final CircuitBreaker circuitBreaker;
+
+    /** The number of content bytes received, before they were decompressed.*/
+    protected final AtomicLong compressedBytes = new AtomicLong();
+    /** The number of content bytes delivered, after they were decompressed.*/
+    protected final AtomicLong uncompressedBytes = new AtomicLong();
+
+    /** The content encodings, which are accepted from the server.*/
+    protected static final String ACCEPT_ENCODING = "gzip, deflate";
+    /** The longest 'Retry-After' from the server, which is honoured, in milliseconds.*/
+    protected static final long MAX_RETRY_AFTER_MS = 300000L;
+
+    /**
+     * Constructor with the default transport settings.
+     */
+    public HttpClient() {
+        this(Configuration.DEFAULT_HTTP_MAX_TOTAL, Configuration.DEFAULT_HTTP_MAX_PER_ROUTE,
+                Configuration.DEFAULT_HTTP_KEEP_ALIVE_SECONDS, Configuration.DEFAULT_HTTP_CONNECT_TIMEOUT_MS,
+                Configuration.DEFAULT_HTTP_SOCKET_TIMEOUT_MS, Configuration.DEFAULT_HTTP_MAX_RETRIES,
+                Configuration.DEFAULT_HTTP_RETRY_BASE_DELAY_MS, Configuration.DEFAULT_HTTP_RETRY_MAX_DELAY_MS,
+                new CircuitBreaker("Alma", Configuration.DEFAULT_CIRCUIT_BREAKER_THRESHOLD,
+                        Configuration.DEFAULT_CIRCUIT_BREAKER_PAUSE_SECONDS * 1000L,
+                        Configuration.DEFAULT_CIRCUIT_BREAKER_MAX_OPEN_MINUTES * 60000L));
+    }
+
+    /**
+     * Constructor with the transport settings from the configuration.
+     * @param conf The configuration.
+     */
+    public HttpClient(Configuration conf) {
+        this(conf.getHttpMaxTotal(), conf.getHttpMaxPerRoute(), conf.getHttpKeepAliveSeconds(),
+                conf.getHttpConnectTimeoutMs(), conf.getHttpSocketTimeoutMs(), conf.getHttpMaxRetries(),
+                conf.getHttpRetryBaseDelayMs(), conf.getHttpRetryMaxDelayMs(),
+                new CircuitBreaker("Alma", conf.getCircuitBreakerThreshold(),
+                        conf.getCircuitBreakerPauseSeconds() * 1000L, conf.getCircuitBreakerMaxOpenMinutes() * 60000L));
+    }
+
     /**
      * Constructor.
-     * TODO: does currently nothing!!!
+     * @param maxTotal The maximum number of pooled connections in total.
+     * @param maxPerRoute The maximum number of pooled connections per route.
+     * @param keepAliveSeconds The keep-alive for idle connections, when the server does not tell otherwise.
+     * @param connectTimeoutMs The connect timeout in milliseconds.
+     * @param socketTimeoutMs The read timeout in milliseconds.
+     * @param maxRetries The maximum number of retries of a failed request.
+     * @param retryBaseDelayMs The delay before the first retry, in milliseconds.
+     * @param retryMaxDelayMs The maximum delay between retries, in milliseconds.
+     * @param circuitBreaker The circuit breaker for the requests.
      */
-    public HttpClient() {}
+    protected HttpClient(int maxTotal, int maxPerRoute, int keepAliveSeconds, int connectTimeoutMs,
+                         int socketTimeoutMs, int maxRetries, long retryBaseDelayMs, long retryMaxDelayMs,
+                         CircuitBreaker circuitBreaker) {
+        ArgumentCheck.checkNotNegativeInt(maxRetries, "int maxRetries");
+        ArgumentCheck.checkNotNull(circuitBreaker, "CircuitBreaker circuitBreaker");
+        this.maxRetries = maxRetries;
+        this.retryBaseDelayMs = retryBaseDelayMs;
+        this.retryMaxDelayMs = retryMaxDelayMs;
+        this.circuitBreaker = circuitBreaker;
+
+        // One SSL context for all connections, so its session cache allows TLS session resumption.
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(SSLContexts.createSystemDefault()))
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(1000);
+
+        // Waiting for a pooled connection is limited as connecting, so a full pool fails instead of hanging.
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(connectTimeoutMs)
+                .setConnectTimeout(connectTimeoutMs)
+                .setSocketTimeout(socketTimeoutMs)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(keepAliveSeconds * 1000L))
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveSeconds, TimeUnit.SECONDS)
+                // The connections are not bound to a user, so pooled TLS connections can always be reused.
+                .disableConnectionState()
+                // The retries are handled by this class, with backoff and the circuit breaker.
+                .disableAutomaticRetries()
+                // The compression is handled by this class, so the compressed bytes can be counted.
+                .disableContentCompression()
+                .build();
+        log.debug("Created HTTP client with max {} connections ({} per route), keep-alive {} s, "
+                + "connect and pool lease timeout {} ms, read timeout {} ms", maxTotal, maxPerRoute, keepAliveSeconds,
+                connectTimeoutMs, socketTimeoutMs);
+    }
 
     /**
      * Method for extracting the content of a given URL.
      * It will throw an exception, if the response status code is not in the 200-299 range.
+     * Transient failures are retried, as long as no content has been delivered to the output stream.
+     * The output stream is flushed, but not closed.
      * @param url The text URL to retrieve.
      * @param out The output stream, where the content from the URL is delivered.
-     * @throws IOException If any connection issues occur.
+     * @throws IOException If any connection issues occur, or the content cannot be written.
      */
     public void retrieveUrlContent(String url, OutputStream out) throws IOException {
         ArgumentCheck.checkNotNullOrEmpty(url, "String url");
         ArgumentCheck.checkNotNull(out, "OutputStream out");
 
-        log.debug("Retrieving content from URL: " + url);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpGet getMethod = new HttpGet(url);
+        CountingOutputStream countingOut = new CountingOutputStream(out);
+        execute(url, content -> content.transferTo(countingOut), () -> countingOut.getCount() == 0);
+        countingOut.flush();
+    }
+
+    /**
+     * Method for processing the content of a given URL, while it is being downloaded, without buffering it.
+     * It will throw an exception, if the response status code is not in the 200-299 range.
+     * Transient failures are retried, as long as the consumer has not been given the content.
+     * @param url The text URL to retrieve.
+     * @param consumer The consumer of the content stream.
+     * @throws IOException If any connection issues occur.
+     */
+    public void retrieveUrlContent(String url, ContentConsumer consumer) throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(url, "String url");
+        ArgumentCheck.checkNotNull(consumer, "ContentConsumer consumer");
+
+        AtomicBoolean started = new AtomicBoolean(false);
+        execute(url, content -> {
+            started.set(true);
+            consumer.accept(content);
+        }, () -> !started.get());
+    }
+
+    /**
+     * Performs the request for the URL, with retries and through the circuit breaker.
+     * @param url The text URL to retrieve.
+     * @param consumer The consumer of the content stream.
+     * @param mayRetry Tells whether a failed attempt may still be retried, i.e. no content has been delivered.
+     * @throws IOException If any connection issues occur, or the consumer fails.
+     */
+    protected void execute(String url, ContentConsumer consumer, BooleanSupplier mayRetry) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            circuitBreaker.acquire();
+            long retryAfterMs;
+            try {
+                retrieveOnce(url, consumer);
+                circuitBreaker.recordSuccess();
+                return;
+            } catch (ConsumerException e) {
+                // The server delivered the content, thus a local failure, e.g. a full disk, is not counted against it.
+                circuitBreaker.recordSuccess();
+                throw e.getCause();
+            } catch (TransientStatusException e) {
+                circuitBreaker.recordFailure();
+                if(attempt >= maxRetries) {
+                    throw new IllegalStateException("Received erroneous status code for url " + url + ", "
+                            + e.statusCode + " (after " + attempt + " retries)");
+                }
+                retryAfterMs = e.retryAfterMs;
+                log.info("Received status code {} for url {}. Retrying.", e.statusCode, url);
+            } catch (IOException e) {
+                circuitBreaker.recordFailure();
+                if(attempt >= maxRetries || !mayRetry.getAsBoolean()) {
+                    throw e;
+                }
+                retryAfterMs = -1;
+                log.info("Failed to retrieve url {} ({}). Retrying.", url, e.toString());
+            } catch (RuntimeException e) {
+                // Not a transient failure, thus the server is up.
+                circuitBreaker.recordSuccess();
+                throw e;
+            }
+            sleep(retryAfterMs >= 0 ? retryAfterMs : backoff(attempt));
+        }
+    }
 
-            CloseableHttpResponse response = client.execute(getMethod);
+    /**
+     * Performs a single request for the URL.
+     * @param url The text URL to retrieve.
+     * @param consumer The consumer of the content stream.
+     * @throws IOException If any connection issues occur.
+     * @throws TransientStatusException If the response status code tells that the request may be retried.
+     * @throws ConsumerException If the consumer fails, but not while reading the content.
+     */
+    protected void retrieveOnce(String url, ContentConsumer consumer) throws IOException {
+        log.debug("Retrieving content from URL: " + url);
+        HttpGet getMethod = new HttpGet(url);
+        getMethod.setHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+        try (CloseableHttpResponse response = client.execute(getMethod)) {
             int statusCode = response.getStatusLine().getStatusCode();
             if(!validateResponseCode(statusCode)) {
+                // Consume the entity, so the connection can be returned to the pool.
+                EntityUtils.consumeQuietly(response.getEntity());
+                if(isTransientStatus(statusCode)) {
+                    throw new TransientStatusException(statusCode, getRetryAfterMs(response));
+                }
                 throw new IllegalStateException("Received erroneous status code for url " + url + ", " + statusCode);
             }
 
-            StreamUtils.copyInputStreamToOutputStream(response.getEntity().getContent(), out);
+            HttpEntity entity = response.getEntity();
+            try (InputStream raw = new CountingInputStream(entity.getContent(), compressedBytes)) {
+                CountingInputStream decoded = new CountingInputStream(decode(raw, entity.getContentEncoding()),
+                        uncompressedBytes);
+                try {
+                    consumer.accept(decoded);
+                } catch (IOException e) {
+                    if(!decoded.failed) {
+                        throw new ConsumerException(e);
+                    }
+                    throw e;
+                }
+                // Read the rest of the content, if the consumer stopped early, so the connection can be reused.
+                raw.transferTo(OutputStream.nullOutputStream());
+            }
         }
     }
 
+    /**
+     * Wraps the content in a decompressing stream according to its 'Content-Encoding'.
+     * The content is decompressed while it is read.
+     * @param content The content as received.
+     * @param contentEncoding The 'Content-Encoding' header of the response, or null.
+     * @return The decompressed content.
+     * @throws IOException If the content encoding is not supported, or the compressed stream is invalid.
+     */
+    protected static InputStream decode(InputStream content, Header contentEncoding) throws IOException {
+        if(contentEncoding == null) {
+            return content;
+        }
+        for (HeaderElement element : contentEncoding.getElements()) {
+            String encoding = element.getName().toLowerCase(Locale.ROOT);
+            if("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+                return new GZIPInputStream(content, 8192);
+            } else if("deflate".equals(encoding)) {
+                return new DeflateInputStream(content);
+            } else if(!"identity".equals(encoding)) {
+                throw new IOException("Unsupported Content-Encoding: " + contentEncoding.getValue());
+            }
+        }
+        return content;
+    }
+
+    /** @return The number of content bytes received, before they were decompressed.*/
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /** @return The number of content bytes delivered, after they were decompressed.*/
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
     /**
      * Validate the response code of an HTTP request.
      * @param statusCode The response code.
@@ -58,4 +330,219 @@ public class HttpClient {
     protected boolean validateResponseCode(int statusCode) {
         return statusCode >= 200 && statusCode < 300;
     }
+
+    /**
+     * Whether a failed response status code is likely to be transient, thus the request may be retried.
+     * @param statusCode The response code.
+     * @return Whether the request may be retried.
+     */
+    protected static boolean isTransientStatus(int statusCode) {
+        return statusCode == 408 || statusCode == 429
+                || (statusCode >= 500 && statusCode < 600 && statusCode != 501 && statusCode != 505);
+    }
+
+    /**
+     * Extracts the 'Retry-After' header of a response, either as seconds or as an HTTP date.
+     * @param response The response.
+     * @return The delay before retrying in milliseconds, or -1 if the response has no valid 'Retry-After' header.
+     */
+    protected static long getRetryAfterMs(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        return header == null ? -1 : parseRetryAfterMs(header.getValue());
+    }
+
+    /**
+     * Parses the value of a 'Retry-After' header, either as seconds or as an HTTP date.
+     * @param value The value of the header, or null.
+     * @return The delay before retrying in milliseconds, or -1 if the value is not valid.
+     */
+    protected static long parseRetryAfterMs(String value) {
+        if(value == null) {
+            return -1;
+        }
+        value = value.trim();
+        long res;
+        try {
+            res = Long.parseLong(value) * 1000L;
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if(date == null) {
+                log.trace("Ignoring invalid Retry-After: {}", value);
+                return -1;
+            }
+            res = date.getTime() - System.currentTimeMillis();
+        }
+        return Math.min(Math.max(res, 0), MAX_RETRY_AFTER_MS);
+    }
+
+    /**
+     * Calculates the exponential backoff with jitter before a retry. The delay is randomly chosen between half and
+     * all of the base delay doubled for each attempt, so concurrent workers do not retry in lockstep.
+     * @param attempt The number of the failed attempt, starting at 0.
+     * @return The delay in milliseconds.
+     */
+    protected long backoff(int attempt) {
+        return backoff(attempt, retryBaseDelayMs, retryMaxDelayMs);
+    }
+
+    /**
+     * Calculates the exponential backoff with jitter before a retry.
+     * @param attempt The number of the failed attempt, starting at 0.
+     * @param baseDelayMs The delay before the first retry, in milliseconds.
+     * @param maxDelayMs The maximum delay between retries, in milliseconds.
+     * @return The delay in milliseconds.
+     */
+    protected static long backoff(int attempt, long baseDelayMs, long maxDelayMs) {
+        long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 30));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Sleeps before a retry.
+     * @param delayMs The delay in milliseconds.
+     */
+    protected void sleep(long delayMs) {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    /**
+     * Closes the pooled transport and all its connections.
+     * @throws IOException If it fails to close the connections.
+     */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Creates the keep-alive strategy, which uses the timeout from the 'Keep-Alive' header of the response,
+     * if the server sends one, and otherwise the default keep-alive.
+     * @param defaultKeepAliveMs The default keep-alive in milliseconds.
+     * @return The keep-alive strategy.
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAliveMs) {
+        return (HttpResponse response, HttpContext context) -> {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000L, defaultKeepAliveMs);
+                    } catch (NumberFormatException e) {
+                        log.trace("Ignoring invalid keep-alive timeout: {}", element.getValue());
+                    }
+                }
+            }
+            return defaultKeepAliveMs;
+        };
+    }
+
+    /**
+     * Thrown for a response status code, which tells that the request may be retried.
+     */
+    protected static class TransientStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /** The response status code.*/
+        final int statusCode;
+        /** The 'Retry-After' of the response in milliseconds, or -1 if not present.*/
+        final long retryAfterMs;
+
+        TransientStatusException(int statusCode, long retryAfterMs) {
+            super("Received status code " + statusCode);
+            this.statusCode = statusCode;
+            this.retryAfterMs = retryAfterMs;
+        }
+    }
+
+    /**
+     * Thrown for a failure of the consumer of the content, which did not occur while reading the content,
+     * e.g. when the content cannot be written to a full disk. It tells nothing about the server.
+     */
+    protected static class ConsumerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConsumerException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Input stream, which adds the number of bytes read from it to a counter, and remembers whether reading failed,
+     * so the failures of the transport can be told from the failures of the consumer.
+     */
+    protected static class CountingInputStream extends FilterInputStream {
+        /** The counter.*/
+        protected final AtomicLong counter;
+        /** Whether reading has failed.*/
+        protected volatile boolean failed = false;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = in.read();
+                if(b != -1) {
+                    counter.incrementAndGet();
+                }
+                return b;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int n = in.read(b, off, len);
+                if(n > 0) {
+                    counter.addAndGet(n);
+                }
+                return n;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                long skipped = in.skip(n);
+                counter.addAndGet(skipped);
+                return skipped;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Consumer of the content of a response, while it is being downloaded.
+     */
+    @FunctionalInterface
+    public interface ContentConsumer {
+        /**
+         * Processes the content. The stream is closed by the HTTP client.
+         * @param content The content stream.
+         * @throws IOException If the content cannot be read.
+         */
+        void accept(InputStream content) throws IOException;
+    }
 }
@@ -3,12 +3,16 @@ package dk.kb.provide_dod_info.config;
 import dk.kb.provide_dod_info.exception.ArgumentCheck;
 import dk.kb.provide_dod_info.utils.YamlUtils;
 import dk.kb.provide_dod_info.utils.FileUtils;
+import dk.kb.provide_dod_info.utils.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Configuration {
@@ -34,6 +38,160 @@ public class Configuration {
     /** If present and true, used for testing*/
     public static final String CONF_IS_TEST = "is_test";
 
+    /** The configuration name for the maximum number of pooled HTTP connections in total. Optional.*/
+    public static final String CONF_HTTP_MAX_TOTAL = "http_max_total";
+    /** The configuration name for the maximum number of pooled HTTP connections per route (host). Optional.*/
+    public static final String CONF_HTTP_MAX_PER_ROUTE = "http_max_per_route";
+    /** The configuration name for how long an idle HTTP connection is kept alive, in seconds. Optional.*/
+    public static final String CONF_HTTP_KEEP_ALIVE_SECONDS = "http_keep_alive_seconds";
+    /** The configuration name for the HTTP connect timeout, in milliseconds. Optional.*/
+    public static final String CONF_HTTP_CONNECT_TIMEOUT_MS = "http_connect_timeout_ms";
+    /** The configuration name for the HTTP read (socket) timeout, in milliseconds. Optional.*/
+    public static final String CONF_HTTP_SOCKET_TIMEOUT_MS = "http_socket_timeout_ms";
+    /** The configuration name for the maximum number of retries of a failed HTTP request. Optional.*/
+    public static final String CONF_HTTP_MAX_RETRIES = "http_max_retries";
+    /** The configuration name for the delay before the first retry of a failed HTTP request, in milliseconds.
+     * Optional.*/
+    public static final String CONF_HTTP_RETRY_BASE_DELAY_MS = "http_retry_base_delay_ms";
+    /** The configuration name for the maximum delay between retries, in milliseconds. Optional.*/
+    public static final String CONF_HTTP_RETRY_MAX_DELAY_MS = "http_retry_max_delay_ms";
+    /** The configuration name for the number of failed requests in a row, which pauses the Alma requests.
+     * Optional.*/
+    public static final String CONF_CIRCUIT_BREAKER_THRESHOLD = "circuit_breaker_threshold";
+    /** The configuration name for the pause between checking whether Alma is available again, in seconds.
+     * Optional.*/
+    public static final String CONF_CIRCUIT_BREAKER_PAUSE_SECONDS = "circuit_breaker_pause_seconds";
+    /** The configuration name for how long Alma may be unavailable, before the run is given up, in minutes.
+     * Optional.*/
+    public static final String CONF_CIRCUIT_BREAKER_MAX_OPEN_MINUTES = "circuit_breaker_max_open_minutes";
+
+    /** The configuration name for the number of barcodes, which are processed concurrently. Optional.*/
+    public static final String CONF_WORKER_COUNT = "worker_count";
+    /** The configuration name for the number of barcodes, which are looked up in one SRU request. Optional.*/
+    public static final String CONF_SRU_BATCH_SIZE = "sru_batch_size";
+    /** The configuration name for the maximum length of an SRU request URL. Optional.*/
+    public static final String CONF_SRU_MAX_URL_LENGTH = "sru_max_url_length";
+    /** The configuration name for the number of records retrieved per SRU request, when harvesting an electronic
+     * collection. Optional.*/
+    public static final String CONF_SRU_PAGE_SIZE = "sru_page_size";
+    /** The configuration name for the directory of the persistent SRU response cache. Optional, the responses
+     * are not cached if not present.*/
+    public static final String CONF_SRU_CACHE_DIR = "sru_cache_dir";
+    /** The configuration name for how long a cached SRU response is used, in hours. Optional.*/
+    public static final String CONF_SRU_CACHE_TTL_HOURS = "sru_cache_ttl_hours";
+    /** The configuration name for the maximum size of the SRU response cache, in megabytes. Optional.*/
+    public static final String CONF_SRU_CACHE_MAX_MB = "sru_cache_max_mb";
+    /** The configuration list of the columns in the Excel sheet extracted from the MARC records, after the year.
+     * Each column is a map with a name, a MARC field and the removed characters, see {@link ExtractColumn}.*/
+    public static final String CONF_EXTRACT_COLUMNS = "extract_columns";
+    /** The configuration name for whether the retrieved MARC files are validated against the MARC21 slim schema
+     * after the retrieval. Optional.*/
+    public static final String CONF_VALIDATE_MARC = "validate_marc";
+    /** The configuration name for whether the MARC files are written compactly, without indentation. Optional.*/
+    public static final String CONF_COMPACT_MARC = "compact_marc";
+    /** The configuration name for the maximum number of bibliographic records, whose extracted fields are kept in
+     * memory for the other barcodes of the same record. Optional.*/
+    public static final String CONF_BIB_CACHE_SIZE = "bib_cache_size";
+    /** The configuration name for whether the MARC records of each directory of years are written to one
+     * collection file with an index, instead of one file per barcode. Optional.*/
+    public static final String CONF_MARC_COLLECTIONS = "marc_collections";
+    /** The configuration name for the maximum number of text extraction processes running at the same time.
+     * Optional.*/
+    public static final String CONF_OCR_PROCESSES = "ocr_processes";
+    /** The configuration name for the text extractor: 'pdftotext' or 'pdfbox'. Optional.*/
+    public static final String CONF_TEXT_EXTRACTOR = "text_extractor";
+    /** The configuration name for the maximum number of megabytes of a PDF kept in memory by PDFBox. Optional.*/
+    public static final String CONF_PDFBOX_MAX_MEMORY_MB = "pdfbox_max_memory_mb";
+    /** The configuration name for whether the extracted texts are written directly to the zip file, instead of
+     * to text files in the temp dir. Optional.*/
+    public static final String CONF_STREAM_TEXT_TO_ZIP = "stream_text_to_zip";
+    /** The configuration name for the minimum number of megabytes of a PDF, before it may be extracted in ranges of
+     * pages. Optional.*/
+    public static final String CONF_TEXT_SPLIT_MIN_MB = "text_split_min_mb";
+    /** The configuration name for the number of pages in each range, when a PDF is extracted in ranges of pages.
+     * Optional.*/
+    public static final String CONF_TEXT_SPLIT_PAGES = "text_split_pages";
+    /** The configuration name for the number of seconds the text extraction of any PDF may take. Optional.*/
+    public static final String CONF_TEXT_TIMEOUT_SECONDS = "text_timeout_seconds";
+    /** The configuration name for the additional number of seconds the text extraction of a PDF may take per
+     * megabyte. Optional.*/
+    public static final String CONF_TEXT_TIMEOUT_SECONDS_PER_MB = "text_timeout_seconds_per_mb";
+    /** The configuration name for the file listing the PDFs, whose text was not extracted in time. Optional.*/
+    public static final String CONF_TEXT_QUARANTINE_FILE = "text_quarantine_file";
+
+    /** The text extractor running the external 'pdftotext' command.*/
+    public static final String TEXT_EXTRACTOR_PDFTOTEXT = "pdftotext";
+    /** The text extractor using PDFBox within the JVM.*/
+    public static final String TEXT_EXTRACTOR_PDFBOX = "pdfbox";
+
+    /** Default maximum number of pooled HTTP connections in total.*/
+    public static final int DEFAULT_HTTP_MAX_TOTAL = 20;
+    /** Default maximum number of pooled HTTP connections per route.*/
+    public static final int DEFAULT_HTTP_MAX_PER_ROUTE = 10;
+    /** Default keep-alive for idle HTTP connections, when the server does not tell otherwise. In seconds.*/
+    public static final int DEFAULT_HTTP_KEEP_ALIVE_SECONDS = 30;
+    /** Default HTTP connect timeout in milliseconds.*/
+    public static final int DEFAULT_HTTP_CONNECT_TIMEOUT_MS = 10000;
+    /** Default HTTP read timeout in milliseconds.*/
+    public static final int DEFAULT_HTTP_SOCKET_TIMEOUT_MS = 60000;
+    /** Default maximum number of retries of a failed HTTP request.*/
+    public static final int DEFAULT_HTTP_MAX_RETRIES = 3;
+    /** Default delay before the first retry of a failed HTTP request, in milliseconds.*/
+    public static final int DEFAULT_HTTP_RETRY_BASE_DELAY_MS = 1000;
+    /** Default maximum delay between retries, in milliseconds.*/
+    public static final int DEFAULT_HTTP_RETRY_MAX_DELAY_MS = 30000;
+    /** Default number of failed requests in a row, which pauses the Alma requests.*/
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+    /** Default pause between checking whether Alma is available again, in seconds.*/
+    public static final int DEFAULT_CIRCUIT_BREAKER_PAUSE_SECONDS = 60;
+    /** Default time Alma may be unavailable, before the run is given up, in minutes.*/
+    public static final int DEFAULT_CIRCUIT_BREAKER_MAX_OPEN_MINUTES = 60;
+    /** Default number of barcodes processed concurrently, i.e. sequential processing.*/
+    public static final int DEFAULT_WORKER_COUNT = 1;
+    /** Default number of barcodes looked up in one SRU request, i.e. one request per barcode.*/
+    public static final int DEFAULT_SRU_BATCH_SIZE = 1;
+    /** Default maximum length of an SRU request URL.*/
+    public static final int DEFAULT_SRU_MAX_URL_LENGTH = 2048;
+    /** Default number of records retrieved per SRU request, when harvesting an electronic collection.*/
+    public static final int DEFAULT_SRU_PAGE_SIZE = 50;
+    /** Default time-to-live for cached SRU responses, i.e. one week. In hours.*/
+    public static final int DEFAULT_SRU_CACHE_TTL_HOURS = 168;
+    /** Default maximum size of the SRU response cache in megabytes.*/
+    public static final int DEFAULT_SRU_CACHE_MAX_MB = 1024;
+    /** Default columns extracted from the MARC records.*/
+    public static final List<ExtractColumn> DEFAULT_EXTRACT_COLUMNS = List.of(
+            new ExtractColumn("Place", "260$a", "[]:;,"),
+            new ExtractColumn("Author", "100$a", ""),
+            new ExtractColumn("Publisher", "260$b", "[]:,"),
+            new ExtractColumn("Classification", "084$o", ""),
+            new ExtractColumn("Title", "245$a", "[]:/"));
+    /** Default is not to validate the retrieved MARC files.*/
+    public static final boolean DEFAULT_VALIDATE_MARC = false;
+    /** Default is to write the MARC files indented.*/
+    public static final boolean DEFAULT_COMPACT_MARC = false;
+    /** Default maximum number of bibliographic records in the in-memory cache of extracted fields.*/
+    public static final int DEFAULT_BIB_CACHE_SIZE = 10000;
+    /** Default is to keep one MARC file per barcode.*/
+    public static final boolean DEFAULT_MARC_COLLECTIONS = false;
+    /** Default maximum number of text extraction processes running at the same time: one per core.*/
+    public static final int DEFAULT_OCR_PROCESSES = Runtime.getRuntime().availableProcessors();
+    /** Default text extractor.*/
+    public static final String DEFAULT_TEXT_EXTRACTOR = TEXT_EXTRACTOR_PDFTOTEXT;
+    /** Default maximum number of megabytes of a PDF kept in memory by PDFBox.*/
+    public static final int DEFAULT_PDFBOX_MAX_MEMORY_MB = 64;
+    /** Default is to write the extracted texts to text files in the temp dir.*/
+    public static final boolean DEFAULT_STREAM_TEXT_TO_ZIP = false;
+    /** Default minimum number of megabytes of a PDF, before it may be extracted in ranges of pages.*/
+    public static final int DEFAULT_TEXT_SPLIT_MIN_MB = 20;
+    /** Default number of pages in each range, when a PDF is extracted in ranges of pages.*/
+    public static final int DEFAULT_TEXT_SPLIT_PAGES = 100;
+    /** Default number of seconds the text extraction of any PDF may take.*/
+    public static final int DEFAULT_TEXT_TIMEOUT_SECONDS = 300;
+    /** Default additional number of seconds the text extraction of a PDF may take per megabyte.*/
+    public static final int DEFAULT_TEXT_TIMEOUT_SECONDS_PER_MB = 30;
+    /** Default name of the file in the out dir listing the PDFs, whose text was not extracted in time.*/
+    public static final String DEFAULT_TEXT_QUARANTINE_FILE_NAME = "text_quarantine.txt";
+
     /** The directory containing the pdf files for which to extract Alma data */
     protected final File corpusOrigDir;
     /** The directory for the output files.*/
@@ -53,6 +211,71 @@ public class Configuration {
     /** Check value if it is a test run */
     protected static Boolean isTest;
 
+    /** The maximum number of pooled HTTP connections in total.*/
+    protected final int httpMaxTotal;
+    /** The maximum number of pooled HTTP connections per route.*/
+    protected final int httpMaxPerRoute;
+    /** The keep-alive for idle HTTP connections in seconds.*/
+    protected final int httpKeepAliveSeconds;
+    /** The HTTP connect timeout in milliseconds.*/
+    protected final int httpConnectTimeoutMs;
+    /** The HTTP read timeout in milliseconds.*/
+    protected final int httpSocketTimeoutMs;
+    /** The maximum number of retries of a failed HTTP request.*/
+    protected final int httpMaxRetries;
+    /** The delay before the first retry of a failed HTTP request, in milliseconds.*/
+    protected final int httpRetryBaseDelayMs;
+    /** The maximum delay between retries, in milliseconds.*/
+    protected final int httpRetryMaxDelayMs;
+    /** The number of failed requests in a row, which pauses the Alma requests.*/
+    protected final int circuitBreakerThreshold;
+    /** The pause between checking whether Alma is available again, in seconds.*/
+    protected final int circuitBreakerPauseSeconds;
+    /** The time Alma may be unavailable, before the run is given up, in minutes.*/
+    protected final int circuitBreakerMaxOpenMinutes;
+    /** The number of barcodes processed concurrently.*/
+    protected final int workerCount;
+    /** The number of barcodes looked up in one SRU request.*/
+    protected final int sruBatchSize;
+    /** The maximum length of an SRU request URL.*/
+    protected final int sruMaxUrlLength;
+    /** The number of records retrieved per SRU request, when harvesting an electronic collection.*/
+    protected final int sruPageSize;
+    /** The directory of the SRU response cache. Null, if the responses are not cached.*/
+    protected final File sruCacheDir;
+    /** The time-to-live for cached SRU responses in hours.*/
+    protected final int sruCacheTtlHours;
+    /** The maximum size of the SRU response cache in megabytes.*/
+    protected final int sruCacheMaxMb;
+    /** The columns extracted from the MARC records.*/
+    protected final List<ExtractColumn> extractColumns;
+    /** Whether the retrieved MARC files are validated against the MARC21 slim schema.*/
+    protected final boolean validateMarc;
+    /** Whether the MARC files are written compactly, without indentation.*/
+    protected final boolean compactMarc;
+    /** The maximum number of bibliographic records in the in-memory cache of extracted fields.*/
+    protected final int bibCacheSize;
+    /** Whether the MARC records of each directory of years are written to one collection file.*/
+    protected final boolean marcCollections;
+    /** The maximum number of text extraction processes running at the same time.*/
+    protected final int ocrProcesses;
+    /** The text extractor: 'pdftotext' or 'pdfbox'.*/
+    protected final String textExtractor;
+    /** The maximum number of megabytes of a PDF kept in memory by PDFBox.*/
+    protected final int pdfboxMaxMemoryMb;
+    /** Whether the extracted texts are written directly to the zip file.*/
+    protected final boolean streamTextToZip;
+    /** The minimum number of megabytes of a PDF, before it may be extracted in ranges of pages.*/
+    protected final int textSplitMinMb;
+    /** The number of pages in each range, when a PDF is extracted in ranges of pages.*/
+    protected final int textSplitPages;
+    /** The number of seconds the text extraction of any PDF may take.*/
+    protected final int textTimeoutSeconds;
+    /** The additional number of seconds the text extraction of a PDF may take per megabyte.*/
+    protected final int textTimeoutSecondsPerMb;
+    /** The file listing the PDFs, whose text was not extracted in time.*/
+    protected final File textQuarantineFile;
+
 
     /**
      * Constructor.
@@ -77,6 +300,58 @@ public class Configuration {
         if(confMap.containsKey(CONF_IS_TEST)) {
             isTest = extractBoolean(confMap.get(CONF_IS_TEST));
         } else isTest = false;
+        this.httpMaxTotal = extractInteger(confMap, CONF_HTTP_MAX_TOTAL, DEFAULT_HTTP_MAX_TOTAL);
+        this.httpMaxPerRoute = extractInteger(confMap, CONF_HTTP_MAX_PER_ROUTE, DEFAULT_HTTP_MAX_PER_ROUTE);
+        this.httpKeepAliveSeconds = extractInteger(confMap, CONF_HTTP_KEEP_ALIVE_SECONDS,
+                DEFAULT_HTTP_KEEP_ALIVE_SECONDS);
+        this.httpConnectTimeoutMs = extractInteger(confMap, CONF_HTTP_CONNECT_TIMEOUT_MS,
+                DEFAULT_HTTP_CONNECT_TIMEOUT_MS);
+        this.httpSocketTimeoutMs = extractInteger(confMap, CONF_HTTP_SOCKET_TIMEOUT_MS,
+                DEFAULT_HTTP_SOCKET_TIMEOUT_MS);
+        this.httpMaxRetries = extractInteger(confMap, CONF_HTTP_MAX_RETRIES, DEFAULT_HTTP_MAX_RETRIES);
+        this.httpRetryBaseDelayMs = extractInteger(confMap, CONF_HTTP_RETRY_BASE_DELAY_MS,
+                DEFAULT_HTTP_RETRY_BASE_DELAY_MS);
+        this.httpRetryMaxDelayMs = extractInteger(confMap, CONF_HTTP_RETRY_MAX_DELAY_MS,
+                DEFAULT_HTTP_RETRY_MAX_DELAY_MS);
+        this.circuitBreakerThreshold = extractInteger(confMap, CONF_CIRCUIT_BREAKER_THRESHOLD,
+                DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+        this.circuitBreakerPauseSeconds = extractInteger(confMap, CONF_CIRCUIT_BREAKER_PAUSE_SECONDS,
+                DEFAULT_CIRCUIT_BREAKER_PAUSE_SECONDS);
+        this.circuitBreakerMaxOpenMinutes = extractInteger(confMap, CONF_CIRCUIT_BREAKER_MAX_OPEN_MINUTES,
+                DEFAULT_CIRCUIT_BREAKER_MAX_OPEN_MINUTES);
+        this.workerCount = extractInteger(confMap, CONF_WORKER_COUNT, DEFAULT_WORKER_COUNT);
+        this.sruBatchSize = extractInteger(confMap, CONF_SRU_BATCH_SIZE, DEFAULT_SRU_BATCH_SIZE);
+        this.sruMaxUrlLength = extractInteger(confMap, CONF_SRU_MAX_URL_LENGTH, DEFAULT_SRU_MAX_URL_LENGTH);
+        this.sruPageSize = extractInteger(confMap, CONF_SRU_PAGE_SIZE, DEFAULT_SRU_PAGE_SIZE);
+        String cacheDir = (String) confMap.get(CONF_SRU_CACHE_DIR);
+        this.sruCacheDir = cacheDir == null || cacheDir.isEmpty() ? null : new File(cacheDir);
+        this.sruCacheTtlHours = extractInteger(confMap, CONF_SRU_CACHE_TTL_HOURS, DEFAULT_SRU_CACHE_TTL_HOURS);
+        this.sruCacheMaxMb = extractInteger(confMap, CONF_SRU_CACHE_MAX_MB, DEFAULT_SRU_CACHE_MAX_MB);
+        this.extractColumns = extractColumns(confMap);
+        this.validateMarc = confMap.containsKey(CONF_VALIDATE_MARC)
+                ? extractBoolean(confMap.get(CONF_VALIDATE_MARC)) : DEFAULT_VALIDATE_MARC;
+        this.compactMarc = confMap.containsKey(CONF_COMPACT_MARC)
+                ? extractBoolean(confMap.get(CONF_COMPACT_MARC)) : DEFAULT_COMPACT_MARC;
+        this.bibCacheSize = extractInteger(confMap, CONF_BIB_CACHE_SIZE, DEFAULT_BIB_CACHE_SIZE);
+        this.marcCollections = confMap.containsKey(CONF_MARC_COLLECTIONS)
+                ? extractBoolean(confMap.get(CONF_MARC_COLLECTIONS)) : DEFAULT_MARC_COLLECTIONS;
+        this.ocrProcesses = extractInteger(confMap, CONF_OCR_PROCESSES, DEFAULT_OCR_PROCESSES);
+        this.textExtractor = confMap.containsKey(CONF_TEXT_EXTRACTOR)
+                ? (String) confMap.get(CONF_TEXT_EXTRACTOR) : DEFAULT_TEXT_EXTRACTOR;
+        ArgumentCheck.checkTrue(TEXT_EXTRACTOR_PDFTOTEXT.equals(textExtractor)
+                || TEXT_EXTRACTOR_PDFBOX.equals(textExtractor), "The '" + CONF_TEXT_EXTRACTOR + "' must be '"
+                + TEXT_EXTRACTOR_PDFTOTEXT + "' or '" + TEXT_EXTRACTOR_PDFBOX + "'");
+        this.pdfboxMaxMemoryMb = extractInteger(confMap, CONF_PDFBOX_MAX_MEMORY_MB, DEFAULT_PDFBOX_MAX_MEMORY_MB);
+        this.streamTextToZip = confMap.containsKey(CONF_STREAM_TEXT_TO_ZIP)
+                ? extractBoolean(confMap.get(CONF_STREAM_TEXT_TO_ZIP)) : DEFAULT_STREAM_TEXT_TO_ZIP;
+        this.textSplitMinMb = extractInteger(confMap, CONF_TEXT_SPLIT_MIN_MB, DEFAULT_TEXT_SPLIT_MIN_MB);
+        this.textSplitPages = extractInteger(confMap, CONF_TEXT_SPLIT_PAGES, DEFAULT_TEXT_SPLIT_PAGES);
+        this.textTimeoutSeconds = extractInteger(confMap, CONF_TEXT_TIMEOUT_SECONDS, DEFAULT_TEXT_TIMEOUT_SECONDS);
+        this.textTimeoutSecondsPerMb = extractInteger(confMap, CONF_TEXT_TIMEOUT_SECONDS_PER_MB,
+                DEFAULT_TEXT_TIMEOUT_SECONDS_PER_MB);
+        String quarantineFile = (String) confMap.get(CONF_TEXT_QUARANTINE_FILE);
+        this.textQuarantineFile = quarantineFile == null || quarantineFile.isEmpty()
+                ? new File(outDir, DEFAULT_TEXT_QUARANTINE_FILE_NAME) : new File(quarantineFile);
     }
 
     /** @return The alma sru search base.*/
@@ -114,6 +389,134 @@ public class Configuration {
     public Boolean getIsTest() {
         return isTest;
     }
+    /** @return The maximum number of pooled HTTP connections in total.*/
+    public int getHttpMaxTotal() {
+        return httpMaxTotal;
+    }
+    /** @return The maximum number of pooled HTTP connections per route.*/
+    public int getHttpMaxPerRoute() {
+        return httpMaxPerRoute;
+    }
+    /** @return The keep-alive for idle HTTP connections in seconds.*/
+    public int getHttpKeepAliveSeconds() {
+        return httpKeepAliveSeconds;
+    }
+    /** @return The HTTP connect timeout in milliseconds.*/
+    public int getHttpConnectTimeoutMs() {
+        return httpConnectTimeoutMs;
+    }
+    /** @return The HTTP read timeout in milliseconds.*/
+    public int getHttpSocketTimeoutMs() {
+        return httpSocketTimeoutMs;
+    }
+    /** @return The maximum number of retries of a failed HTTP request.*/
+    public int getHttpMaxRetries() {
+        return httpMaxRetries;
+    }
+    /** @return The delay before the first retry of a failed HTTP request, in milliseconds.*/
+    public int getHttpRetryBaseDelayMs() {
+        return httpRetryBaseDelayMs;
+    }
+    /** @return The maximum delay between retries, in milliseconds.*/
+    public int getHttpRetryMaxDelayMs() {
+        return httpRetryMaxDelayMs;
+    }
+    /** @return The number of failed requests in a row, which pauses the Alma requests.*/
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+    /** @return The pause between checking whether Alma is available again, in seconds.*/
+    public int getCircuitBreakerPauseSeconds() {
+        return circuitBreakerPauseSeconds;
+    }
+    /** @return The time Alma may be unavailable, before the run is given up, in minutes.*/
+    public int getCircuitBreakerMaxOpenMinutes() {
+        return circuitBreakerMaxOpenMinutes;
+    }
+    /** @return The number of barcodes processed concurrently.*/
+    public int getWorkerCount() {
+        return workerCount;
+    }
+    /** @return The number of barcodes looked up in one SRU request.*/
+    public int getSruBatchSize() {
+        return sruBatchSize;
+    }
+    /** @return The maximum length of an SRU request URL.*/
+    public int getSruMaxUrlLength() {
+        return sruMaxUrlLength;
+    }
+    /** @return The number of records retrieved per SRU request, when harvesting an electronic collection.*/
+    public int getSruPageSize() {
+        return sruPageSize;
+    }
+    /** @return The directory of the SRU response cache, or null if the responses are not cached.*/
+    public File getSruCacheDir() {
+        return sruCacheDir;
+    }
+    /** @return The time-to-live for cached SRU responses in hours.*/
+    public int getSruCacheTtlHours() {
+        return sruCacheTtlHours;
+    }
+    /** @return The maximum size of the SRU response cache in megabytes.*/
+    public int getSruCacheMaxMb() {
+        return sruCacheMaxMb;
+    }
+    /** @return The columns extracted from the MARC records, in the order of the Excel sheet.*/
+    public List<ExtractColumn> getExtractColumns() {
+        return extractColumns;
+    }
+    /** @return Whether the retrieved MARC files are validated against the MARC21 slim schema.*/
+    public boolean getValidateMarc() {
+        return validateMarc;
+    }
+    /** @return Whether the MARC files are written compactly, without indentation.*/
+    public boolean getCompactMarc() {
+        return compactMarc;
+    }
+    /** @return The maximum number of bibliographic records in the in-memory cache of extracted fields.*/
+    public int getBibCacheSize() {
+        return bibCacheSize;
+    }
+    /** @return Whether the MARC records of each directory of years are written to one collection file.*/
+    public boolean getMarcCollections() {
+        return marcCollections;
+    }
+    /** @return The maximum number of text extraction processes running at the same time.*/
+    public int getOcrProcesses() {
+        return ocrProcesses;
+    }
+    /** @return The text extractor: 'pdftotext' or 'pdfbox'.*/
+    public String getTextExtractor() {
+        return textExtractor;
+    }
+    /** @return The maximum number of megabytes of a PDF kept in memory by PDFBox.*/
+    public int getPdfboxMaxMemoryMb() {
+        return pdfboxMaxMemoryMb;
+    }
+    /** @return Whether the extracted texts are written directly to the zip file.*/
+    public boolean getStreamTextToZip() {
+        return streamTextToZip;
+    }
+    /** @return The minimum number of megabytes of a PDF, before it may be extracted in ranges of pages.*/
+    public int getTextSplitMinMb() {
+        return textSplitMinMb;
+    }
+    /** @return The number of pages in each range, when a PDF is extracted in ranges of pages.*/
+    public int getTextSplitPages() {
+        return textSplitPages;
+    }
+    /** @return The number of seconds the text extraction of any PDF may take.*/
+    public int getTextTimeoutSeconds() {
+        return textTimeoutSeconds;
+    }
+    /** @return The additional number of seconds the text extraction of a PDF may take per megabyte.*/
+    public int getTextTimeoutSecondsPerMb() {
+        return textTimeoutSecondsPerMb;
+    }
+    /** @return The file listing the PDFs, whose text was not extracted in time.*/
+    public File getTextQuarantineFile() {
+        return textQuarantineFile;
+    }
     /**
      * Creates a configuration from a file.
      * @param yamlFile The YAML file with the configuration.
@@ -141,4 +544,43 @@ public class Configuration {
         }
         return (Boolean) b;
     }
+
+    /**
+     * Retrieves an optional positive integer value from the configuration map.
+     * @param confMap The YAML map for the configuration.
+     * @param key The key of the value.
+     * @param defaultValue The value to use, if the key is not present in the map.
+     * @return The integer value.
+     */
+    protected static int extractInteger(Map<String, Object> confMap, String key, int defaultValue) {
+        Object value = confMap.get(key);
+        if(value == null) {
+            return defaultValue;
+        }
+        int res = LongUtils.getLong(value).intValue();
+        ArgumentCheck.checkPositiveInt(res, key);
+        return res;
+    }
+
+    /**
+     * Retrieves the optional list of columns extracted from the MARC records from the configuration map.
+     * @param confMap The YAML map for the configuration.
+     * @return The columns, or the default columns if the key is not present in the map.
+     */
+    @SuppressWarnings("unchecked")
+    protected static List<ExtractColumn> extractColumns(Map<String, Object> confMap) {
+        Object value = confMap.get(CONF_EXTRACT_COLUMNS);
+        if(value == null) {
+            return DEFAULT_EXTRACT_COLUMNS;
+        }
+        ArgumentCheck.checkTrue(value instanceof List && !((List<?>) value).isEmpty(),
+                "The '" + CONF_EXTRACT_COLUMNS + "' must be a list of columns");
+        List<ExtractColumn> res = new ArrayList<>();
+        for (Object column : (List<?>) value) {
+            ArgumentCheck.checkTrue(column instanceof Map, "Each of the '" + CONF_EXTRACT_COLUMNS + "' must have a "
+                    + ExtractColumn.CONF_NAME + " and a " + ExtractColumn.CONF_FIELD + ". Got: " + column);
+            res.add(ExtractColumn.fromMap((Map<String, Object>) column));
+        }
+        return Collections.unmodifiableList(res);
+    }
 }
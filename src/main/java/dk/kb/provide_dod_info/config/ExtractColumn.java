@@ -0,0 +1,100 @@
+package dk.kb.provide_dod_info.config;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.CharFilter;
+
+import java.util.Map;
+
+/**
+ * A column of the Excel sheet, which is extracted from a MARC record: the value of the first subfield with a given
+ * datafield tag and subfield code, e.g. '260$a', with a set of characters removed.
+ * It is immutable, thus it can be shared between threads.
+ */
+public final class ExtractColumn {
+    /** The configuration key for the name of the column, i.e. the header in the Excel sheet.*/
+    public static final String CONF_NAME = "name";
+    /** The configuration key for the MARC field, as the datafield tag and the subfield code, e.g. '260$a'.*/
+    public static final String CONF_FIELD = "field";
+    /** The configuration key for the characters removed from the value. Optional.*/
+    public static final String CONF_REMOVE = "remove";
+    /** The separator between the datafield tag and the subfield code.*/
+    public static final String FIELD_SEPARATOR = "$";
+
+    /** The name of the column.*/
+    private final String name;
+    /** The datafield tag.*/
+    private final String tag;
+    /** The subfield code.*/
+    private final String code;
+    /** The characters removed from the value, as configured.*/
+    private final String removedChars;
+    /** The filter removing the characters from the value.*/
+    private final CharFilter remover;
+
+    /**
+     * Constructor.
+     * @param name The name of the column.
+     * @param field The MARC field, as the datafield tag and the subfield code, e.g. '260$a'.
+     * @param removedChars The characters removed from the value. Only ASCII characters are allowed.
+     */
+    public ExtractColumn(String name, String field, String removedChars) {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        ArgumentCheck.checkNotNullOrEmpty(field, "String field");
+        ArgumentCheck.checkNotNull(removedChars, "String removedChars");
+        int separator = field.indexOf(FIELD_SEPARATOR);
+        ArgumentCheck.checkTrue(separator > 0 && separator == field.length() - 2,
+                "The field of the column '" + name + "' must be a datafield tag and a subfield code, e.g. "
+                        + "'260$a'. Got: '" + field + "'");
+        this.name = name;
+        this.tag = field.substring(0, separator);
+        this.code = field.substring(separator + 1);
+        this.removedChars = removedChars;
+        this.remover = new CharFilter(removedChars);
+    }
+
+    /**
+     * Creates a column from its YAML map.
+     * @param columnMap The YAML map with the name, the field and optionally the removed characters of the column.
+     * @return The column.
+     */
+    public static ExtractColumn fromMap(Map<String, Object> columnMap) {
+        ArgumentCheck.checkThatMapContainsKey(columnMap, CONF_NAME, "columnMap");
+        ArgumentCheck.checkThatMapContainsKey(columnMap, CONF_FIELD, "columnMap");
+        Object removedChars = columnMap.get(CONF_REMOVE);
+        return new ExtractColumn(String.valueOf(columnMap.get(CONF_NAME)), String.valueOf(columnMap.get(CONF_FIELD)),
+                removedChars == null ? "" : String.valueOf(removedChars));
+    }
+
+    /** @return The name of the column, i.e. the header in the Excel sheet.*/
+    public String getName() {
+        return name;
+    }
+
+    /** @return The datafield tag.*/
+    public String getTag() {
+        return tag;
+    }
+
+    /** @return The subfield code.*/
+    public String getCode() {
+        return code;
+    }
+
+    /** @return The MARC field, as the datafield tag and the subfield code, e.g. '260$a'.*/
+    public String getField() {
+        return tag + FIELD_SEPARATOR + code;
+    }
+
+    /**
+     * @param value The value of the subfield.
+     * @return The value without the removed characters.
+     */
+    public String clean(String value) {
+        return remover.removeFrom(value);
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + getField() + (removedChars.isEmpty() ? "" : " without '" + removedChars + "'");
+    }
+}
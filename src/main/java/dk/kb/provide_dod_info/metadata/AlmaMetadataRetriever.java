@@ -1,8 +1,12 @@
 package dk.kb.provide_dod_info.metadata;
 
+import dk.kb.provide_dod_info.AsyncHttpClient;
 import dk.kb.provide_dod_info.HttpClient;
 import dk.kb.provide_dod_info.config.Configuration;
 import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.CircuitBreaker;
+import dk.kb.provide_dod_info.utils.TeeInputStream;
+import dk.kb.provide_dod_info.utils.XmlUtils;
 import static dk.kb.provide_dod_info.Constants.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,26 +15,35 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Alma Metadata Retriever.
@@ -39,6 +52,7 @@ import java.util.List;
  * https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=searchRetrieve&startRecord=1&maximumRecords=2&recordSchema=mods&query=isbn=$ISBN
  * https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=searchRetrieve&startRecord=1&maximumRecords=2&recordSchema=marcxml&query=alma.barcode=$BARCODE
  * https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=searchRetrieve&startRecord=1&maximumRecords=1&recordSchema=marcxml&query=alma.packageName=$ELECTRONIC_COLLECTION
+ * https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=searchRetrieve&startRecord=1&maximumRecords=50&recordSchema=marcxml&query=alma.barcode=$BARCODE1%20or%20alma.barcode=$BARCODE2
  * To get all query options use:
  * <a href="https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=explain">...</a>
  */
@@ -49,7 +63,11 @@ public class AlmaMetadataRetriever {
     /** The search range parameters for retrieving records from Alma. */
     protected static final String ALMA_SEARCH_RANGE = "startRecord=1&maximumRecords=2&";
     protected static final String ALMA_START_RECORD = "startRecord=";
-    protected static final String ALMA_MAXIMUM_RECORDS = "&maximumRecords=1&";
+    protected static final String ALMA_MAXIMUM_RECORDS = "&maximumRecords=";
+    /** The maximum number of records, which Alma SRU delivers in one response.*/
+    public static final int SRU_MAX_RECORDS = 50;
+    /** The search range parameters for retrieving the records for a batch of barcodes.*/
+    protected static final String ALMA_BATCH_RANGE = "startRecord=1&maximumRecords=" + SRU_MAX_RECORDS + "&";
 
     /** The schema parameters for retrieving MODS records from Alma.*/
     protected static final String ALMA_SCHEMA_MODS = "recordSchema=mods&";
@@ -59,6 +77,10 @@ public class AlmaMetadataRetriever {
     protected static final String ALMA_QUERY_ISBN = "query=isbn=";
     protected static final String ALMA_QUERY_BARCODE = "query=alma.barcode=";
     protected static final String ALMA_QUERY_ECOLLECTION = "query=alma.packageName=";
+    /** The query parameter and the CQL parts for combining several barcodes in one query.*/
+    protected static final String ALMA_QUERY = "query=";
+    protected static final String CQL_BARCODE = "alma.barcode=";
+    protected static final String CQL_OR = "%20or%20";
 
 
     /** The XPATH for the MODS record.
@@ -67,6 +89,22 @@ public class AlmaMetadataRetriever {
     /** The XPATH for the MARC record.
      * Using '*' as wildcard for the namespace.*/
     protected static final String XPATH_MARC_RECORD = "/*[local-name()='searchRetrieveResponse']/*[local-name()='records']/*[local-name()='record']/*[local-name()='recordData']";
+    /** The XPATH for all the field values within a MARC record, relative to the recordData element.*/
+    protected static final String XPATH_MARC_FIELD_VALUES = ".//*[local-name()='controlfield' or local-name()='subfield']/text()";
+    /** The path of local element names to the MARC record, as in {@link #XPATH_MARC_RECORD}.*/
+    protected static final List<String> MARC_RECORD_PATH = List.of("searchRetrieveResponse", "records", "record",
+            "recordData");
+    /** The path of local element names to the number of records, as in XPATH_NUM_RESULTS.*/
+    protected static final List<String> NUM_RESULTS_PATH = List.of("searchRetrieveResponse", "numberOfRecords");
+    /** The numberOfRecords element and its text, with any namespace prefix.*/
+    protected static final Pattern NUM_RESULTS_ELEMENT =
+            Pattern.compile("<(?:[\\w.-]+:)?numberOfRecords\\s*>([^<]*)</");
+    /** The start of the records element. The number of records is given before it, if at all.*/
+    protected static final Pattern RECORDS_ELEMENT = Pattern.compile("<(?:[\\w.-]+:)?records[\\s/>]");
+    /** The size of the chunks read, while looking for the number of records.*/
+    protected static final int HEADER_CHUNK_SIZE = 512;
+    /** The maximum number of bytes read, while looking for the number of records.*/
+    protected static final int MAX_HEADER_SIZE = 65536;
 
 
 
@@ -74,13 +112,25 @@ public class AlmaMetadataRetriever {
     protected final Configuration conf;
     /** The HTTP client for making the HTTP Get operations towards the Alma server.*/
     protected final HttpClient httpClient;
-
-    /** The document builder factory.*/
-    protected final DocumentBuilderFactory documentBuilderFactory;
-    /** The XPath factory.*/
-    protected final XPathFactory xPathFactory;
-
-    public static String numRes;
+    /** The asynchronous HTTP client for the non-blocking lookups. Null, if only blocking lookups are made.*/
+    protected final AsyncHttpClient asyncHttpClient;
+    /** The persistent cache for the SRU responses. Null, if the responses are not cached.*/
+    protected final SruResponseCache cache;
+
+    /** The factory for the streaming XML readers.*/
+    protected final XMLInputFactory xmlInputFactory;
+    /** The factory for the streaming XML writers.*/
+    protected final XMLOutputFactory xmlOutputFactory;
+
+    /** The outcome of the barcode lookups in this run.*/
+    protected final SruLookupStatistics lookupStatistics;
+
+    /** Whether the MARC records are written compactly, instead of indented.*/
+    protected final boolean compactMarc;
+    /** The number of barcodes looked up in one SRU request.*/
+    protected final int batchSize;
+    /** Whether batch lookups have been given up, since the records do not contain the barcodes.*/
+    protected volatile boolean batchingDisabled;
 
     /**
      * Constructor.
@@ -88,17 +138,113 @@ public class AlmaMetadataRetriever {
      * @param httpClient The HTTP client for performing the HTTP Get operations.
      */
     public AlmaMetadataRetriever(Configuration configuration, HttpClient httpClient) {
+        this(configuration, httpClient, null);
+    }
+
+    /**
+     * Constructor, which also allows non-blocking lookups.
+     * @param configuration The configurations regarding dealing with Alma.
+     * @param httpClient The HTTP client for performing the HTTP Get operations.
+     * @param asyncHttpClient The asynchronous HTTP client for the non-blocking lookups. Might be null.
+     */
+    public AlmaMetadataRetriever(Configuration configuration, HttpClient httpClient,
+                                 AsyncHttpClient asyncHttpClient) {
         ArgumentCheck.checkNotNull(configuration, "Configuration configuration");
         ArgumentCheck.checkNotNull(httpClient, "HttpClient httpClient");
         this.conf= configuration;
         this.httpClient = httpClient;
-        documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        xPathFactory = XPathFactory.newInstance();
-        numRes = "";
+        this.asyncHttpClient = asyncHttpClient;
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlOutputFactory = XMLOutputFactory.newInstance();
+        lookupStatistics = new SruLookupStatistics();
+        compactMarc = conf.getCompactMarc();
+        if(conf.getSruBatchSize() > SRU_MAX_RECORDS) {
+            log.warn("The SRU batch size {} is larger than the maximum number of records per response. Using {}",
+                    conf.getSruBatchSize(), SRU_MAX_RECORDS);
+        }
+        batchSize = Math.min(conf.getSruBatchSize(), SRU_MAX_RECORDS);
+        batchingDisabled = false;
+        cache = createCache(conf);
+    }
+
+    /**
+     * Creates the SRU response cache, if a cache directory is configured.
+     * @param conf The configuration.
+     * @return The cache, or null if the responses are not cached.
+     */
+    protected static SruResponseCache createCache(Configuration conf) {
+        if(conf.getSruCacheDir() == null) {
+            return null;
+        }
+        try {
+            return new SruResponseCache(conf.getSruCacheDir(), conf.getSruCacheTtlHours() * 3600000L,
+                    conf.getSruCacheMaxMb() * 1024L * 1024L);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create the SRU response cache in '"
+                    + conf.getSruCacheDir().getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Retrieves the SRU response for a request. The response is delivered from the cache, if it is cached,
+     * and otherwise it is downloaded from Alma and stored in the cache.
+     * @param requestUrl The SRU request URL.
+     * @param out The output stream, where the response is written.
+     * @throws IOException If the response cannot be downloaded.
+     */
+    protected void retrieveSruResponse(String requestUrl, OutputStream out) throws IOException {
+        if(cache == null) {
+            httpClient.retrieveUrlContent(requestUrl, out);
+            return;
+        }
+        retrieveSruResponse(requestUrl, in -> in.transferTo(out));
+    }
+
+    /**
+     * Retrieves the SRU response for a request, and processes it while it is being downloaded.
+     * The response is delivered from the cache, if it is cached, and otherwise it is downloaded from Alma and
+     * stored in the cache at the same time.
+     * @param requestUrl The SRU request URL.
+     * @param consumer The consumer of the response stream.
+     * @throws IOException If the response cannot be downloaded.
+     */
+    protected void retrieveSruResponse(String requestUrl, HttpClient.ContentConsumer consumer) throws IOException {
+        if(cache == null) {
+            httpClient.retrieveUrlContent(requestUrl, consumer);
+            return;
+        }
+        try (InputStream cached = cache.open(requestUrl)) {
+            if(cached != null) {
+                log.trace("Using cached response for '{}'", requestUrl);
+                consumer.accept(cached);
+                return;
+            }
+        }
+        httpClient.retrieveUrlContent(requestUrl, in -> {
+            try (SruResponseCache.PendingEntry entry = cache.newEntry(requestUrl)) {
+                InputStream tee = new TeeInputStream(in, entry);
+                RuntimeException rejected = null;
+                try {
+                    consumer.accept(tee);
+                } catch (RuntimeException e) {
+                    rejected = e;
+                }
+                // The whole response is cached, also when the consumer stopped early, or rejected the response,
+                // e.g. for a barcode without a record, so the next run need not ask Alma again.
+                tee.transferTo(OutputStream.nullOutputStream());
+                entry.commit();
+                if(rejected != null) {
+                    throw rejected;
+                }
+            }
+        });
     }
 
     /**
      * Retrieves the MARC metadata for a given barcode from a physical Alma record.
+     * The MARC record is copied from the SRU response directly to the output stream.
      * @param barcode The ID to retrieve the Alma metadata for.
      * @param out The output stream, where the MARC metadata from Alma will be written.
      */
@@ -106,30 +252,283 @@ public class AlmaMetadataRetriever {
         ArgumentCheck.checkNotNullOrEmpty(barcode, "String barcode");
         ArgumentCheck.checkNotNull(out, "OutputStream out");
 
+        retrieveAlmaMetadataBarcode(barcode, in -> extractMarcFromAlma(in, out)); //MARC
+    }
+
+    /**
+     * Retrieves the MARC metadata for a given barcode from a physical Alma record, without blocking.
+     * The request is sent by the asynchronous HTTP client, and the MARC record is extracted, when the response
+     * has arrived. Thus many lookups can be in flight at the same time, with only a few threads.
+     * @param barcode The ID to retrieve the Alma metadata for.
+     * @return The future MARC metadata. It fails with an IllegalStateException, if the record cannot be retrieved.
+     */
+    public CompletableFuture<byte[]> retrieveMetadataForBarcodeAsync(String barcode) {
+        ArgumentCheck.checkNotNullOrEmpty(barcode, "String barcode");
+        if(asyncHttpClient == null) {
+            throw new IllegalStateException("No asynchronous HTTP client for the non-blocking lookups");
+        }
+        log.debug("Retrieving Alma metadata asynchronously for Barcode: " + barcode);
+        String requestUrl = createBarcodeRequestUrl(barcode);
+        CompletableFuture<byte[]> response = null;
+        if(cache != null) {
+            try (InputStream cached = cache.open(requestUrl)) {
+                if(cached != null) {
+                    log.trace("Using cached response for '{}'", requestUrl);
+                    response = CompletableFuture.completedFuture(cached.readAllBytes());
+                }
+            } catch (IOException e) {
+                log.debug("Could not read the cached response for '{}'", requestUrl, e);
+            }
+        }
+        if(response == null) {
+            response = asyncHttpClient.retrieveUrlContent(requestUrl).thenApply(content -> {
+                if(cache != null) {
+                    cache.store(requestUrl, content);
+                }
+                return content;
+            });
+        }
+        return response.handle((content, error) -> {
+            if(error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if(cause instanceof CircuitBreaker.CircuitOpenException) {
+                    throw (CircuitBreaker.CircuitOpenException) cause;
+                }
+                throw new IllegalStateException("Could not download the metadata for set '" + barcode + "'", cause);
+            }
+            ByteArrayOutputStream marc = new ByteArrayOutputStream();
+            extractMarcFromAlma(content, marc);
+            return marc.toByteArray();
+        });
+    }
+
+    /**
+     * Retrieves the MARC metadata for several barcodes with as few SRU requests as possible.
+     * The barcodes are combined in OR-queries of at most the configured batch size, and within the maximum
+     * URL length. The records in each response are matched to the barcodes by the barcode occurring as a field
+     * value in the record.
+     * Barcodes, which are missing in the response or match more than one record, are left out of the result,
+     * and must be retrieved by a single lookup with {@link #retrieveMetadataForBarcode(String, OutputStream)}.
+     * @param barcodes The barcodes to retrieve the metadata for.
+     * @return The MARC metadata for each barcode which could be unambiguously matched.
+     */
+    public Map<String, byte[]> retrieveMetadataForBarcodes(List<String> barcodes) {
+        ArgumentCheck.checkNotNull(barcodes, "List<String> barcodes");
+        Map<String, byte[]> res = new HashMap<>();
+        for (List<String> batch : splitIntoBatches(barcodes)) {
+            if(batchingDisabled || batch.size() < 2) {
+                continue;
+            }
+            try {
+                res.putAll(retrieveBatch(batch));
+            } catch (CircuitBreaker.CircuitOpenException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                log.warn("Could not retrieve the metadata for a batch of {} barcodes. They will be retrieved one by one",
+                        batch.size(), e);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Splits the barcodes into batches of at most the batch size, where the request URL for each batch is
+     * within the maximum URL length.
+     * @param barcodes The barcodes.
+     * @return The batches.
+     */
+    protected List<List<String>> splitIntoBatches(List<String> barcodes) {
+        int baseLength = createBatchRequestUrl(Collections.emptyList()).length();
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int length = baseLength;
+        for (String barcode : barcodes) {
+            int clauseLength = (batch.isEmpty() ? 0 : CQL_OR.length()) + CQL_BARCODE.length()
+                    + encode(barcode).length();
+            if(!batch.isEmpty() && (batch.size() >= batchSize || length + clauseLength > conf.getSruMaxUrlLength())) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                length = baseLength;
+                clauseLength -= CQL_OR.length();
+            }
+            batch.add(barcode);
+            length += clauseLength;
+        }
+        if(!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Creates the SRU request URL for a single barcode.
+     * @param barcode The barcode.
+     * @return The request URL.
+     */
+    protected String createBarcodeRequestUrl(String barcode) {
+        return conf.getAlmaSruSearch() + ALMA_SEARCH_RANGE + ALMA_SCHEMA_MARCXML /*ALMA_SCHEMA_MODS*/ + ALMA_QUERY_BARCODE
+                + barcode;
+    }
+
+    /**
+     * Creates the SRU request URL for a batch of barcodes.
+     * @param batch The barcodes.
+     * @return The request URL.
+     */
+    protected String createBatchRequestUrl(List<String> batch) {
+        return conf.getAlmaSruSearch() + ALMA_BATCH_RANGE + ALMA_SCHEMA_MARCXML + ALMA_QUERY
+                + batch.stream().map(b -> CQL_BARCODE + encode(b)).collect(Collectors.joining(CQL_OR));
+    }
+
+    /**
+     * Retrieves the records for a batch of barcodes in one request, and matches them to the barcodes.
+     * The records are found in the raw response by the {@link SruRecordSlicer}, and copied as they are in the
+     * response. Only if the response cannot be sliced, it is parsed by {@link #parseBatch(List, byte[])} instead.
+     * @param batch The barcodes.
+     * @return The MARC metadata for each barcode which matched exactly one record.
+     */
+    protected Map<String, byte[]> retrieveBatch(List<String> batch) {
+        log.debug("Retrieving Alma metadata for a batch of {} barcodes", batch.size());
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        retrieveAlmaMetadataBarcode(barcode, byteArrayOutputStream); //MARC
+        try {
+            retrieveSruResponse(createBatchRequestUrl(batch), byteArrayOutputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not download the metadata for the barcodes " + batch, e);
+        }
 
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+        byte[] response = byteArrayOutputStream.toByteArray();
+        SruRecordSlicer.SruRecords sliced = SruRecordSlicer.slice(response);
+        if(sliced == null) {
+            log.debug("Could not slice the response for a batch. Parsing it instead.");
+            return parseBatch(batch, response);
+        }
+        try {
+            Map<String, List<SruRecordSlicer.Record>> matches = new HashMap<>();
+            for (SruRecordSlicer.Record record : sliced.getRecords()) {
+                for (String barcode : batch) {
+                    if(record.getFieldValues().contains(barcode)) {
+                        matches.computeIfAbsent(barcode, b -> new ArrayList<>()).add(record);
+                    }
+                }
+            }
+            checkBatchMatches(matches, sliced.getRecords().size());
+
+            Map<String, byte[]> res = new HashMap<>();
+            for (String barcode : batch) {
+                List<SruRecordSlicer.Record> barcodeRecords = matches.getOrDefault(barcode, Collections.emptyList());
+                if(barcodeRecords.size() == 1) {
+                    ByteArrayOutputStream marc = new ByteArrayOutputStream();
+                    barcodeRecords.get(0).writeTo(marc, compactMarc);
+                    res.put(barcode, marc.toByteArray());
+                } else {
+                    log.debug("Barcode '{}' matched {} records in the batch. It will be retrieved alone", barcode,
+                            barcodeRecords.size());
+                }
+            }
+            lookupStatistics.recordFound(res.size());
+            log.debug("Batch of {} barcodes: {} records received, {} barcodes matched", batch.size(),
+                    sliced.getRecords().size(), res.size());
+            return res;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not extract the MARC records for the barcodes " + batch, e);
+        }
+    }
 
-//        extractModsFromAlma(byteArrayInputStream, out);
-        extractMarcFromAlma(byteArrayInputStream, out);
+    /**
+     * Matches the records of a batch response to the barcodes by parsing the response, for responses which
+     * cannot be sliced.
+     * @param batch The barcodes.
+     * @param response The SRU response.
+     * @return The MARC metadata for each barcode which matched exactly one record.
+     */
+    protected Map<String, byte[]> parseBatch(List<String> batch, byte[] response) {
+        try {
+            Document doc = XmlUtils.parse(new ByteArrayInputStream(response), true);
+            NodeList records = XmlUtils.evaluateNodes(XPATH_MARC_RECORD, doc);
+
+            Map<String, List<Node>> matches = new HashMap<>();
+            for (int i = 0; i < records.getLength(); i++) {
+                Node record = records.item(i);
+                NodeList values = XmlUtils.evaluateNodes(XPATH_MARC_FIELD_VALUES, record);
+                Set<String> recordValues = new HashSet<>();
+                for (int j = 0; j < values.getLength(); j++) {
+                    recordValues.add(values.item(j).getNodeValue().trim());
+                }
+                for (String barcode : batch) {
+                    if(recordValues.contains(barcode)) {
+                        matches.computeIfAbsent(barcode, b -> new ArrayList<>()).add(record);
+                    }
+                }
+            }
+            checkBatchMatches(matches, records.getLength());
+
+            Map<String, byte[]> res = new HashMap<>();
+            for (String barcode : batch) {
+                List<Node> barcodeRecords = matches.getOrDefault(barcode, Collections.emptyList());
+                if(barcodeRecords.size() == 1) {
+                    ByteArrayOutputStream marc = new ByteArrayOutputStream();
+                    writeRecord(barcodeRecords.get(0), marc);
+                    res.put(barcode, marc.toByteArray());
+                } else {
+                    log.debug("Barcode '{}' matched {} records in the batch. It will be retrieved alone", barcode,
+                            barcodeRecords.size());
+                }
+            }
+            lookupStatistics.recordFound(res.size());
+            log.debug("Batch of {} barcodes: {} records received, {} barcodes matched", batch.size(),
+                    records.getLength(), res.size());
+            return res;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not extract the MARC records for the barcodes " + batch, e);
+        }
+    }
+
+    /**
+     * Gives up batch lookups, if none of the records in a batch response contain any of the barcodes.
+     * @param matches The records matched by each barcode.
+     * @param numberOfRecords The number of records in the response.
+     */
+    protected void checkBatchMatches(Map<String, ? extends List<?>> matches, int numberOfRecords) {
+        if(matches.isEmpty() && numberOfRecords > 0) {
+            log.warn("None of the {} records for a batch contain the barcodes, thus records cannot be matched "
+                    + "to barcodes. Falling back to one request per barcode.", numberOfRecords);
+            batchingDisabled = true;
+        }
     }
 
     public ByteArrayInputStream retrieveMetadataForECollection(String eCollection, int recNo, OutputStream out) {
-        ArgumentCheck.checkNotNullOrEmpty(eCollection, "String eCollection");
         ArgumentCheck.checkNotNull(out, "OutputStream out");
+        return retrieveMetadataForECollection(eCollection, recNo, 1);
+    }
+
+    /**
+     * Retrieves a page of records from an electronic collection.
+     * @param eCollection The electronic collection.
+     * @param startRecord The position of the first record of the page, starting at 1.
+     * @param maximumRecords The maximum number of records in the page.
+     * @return The SRU response with the records.
+     */
+    public ByteArrayInputStream retrieveMetadataForECollection(String eCollection, int startRecord,
+                                                               int maximumRecords) {
+        ArgumentCheck.checkNotNullOrEmpty(eCollection, "String eCollection");
+        ArgumentCheck.checkPositiveInt(startRecord, "int startRecord");
+        ArgumentCheck.checkPositiveInt(maximumRecords, "int maximumRecords");
 
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        retrieveAlmaMetadataECollection(eCollection, recNo, byteArrayOutputStream);
+        retrieveAlmaMetadataECollection(eCollection, startRecord, maximumRecords, byteArrayOutputStream);
 
         return  new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
     }
 
-    private void retrieveAlmaMetadataECollection(String eCollection, int recNo, OutputStream out) {
+    private void retrieveAlmaMetadataECollection(String eCollection, int recNo, int maximumRecords,
+                                                 OutputStream out) {
         try {
             String rN = String.valueOf(recNo);
             String requestUrl = conf.getAlmaSruSearch() + ALMA_START_RECORD + rN + ALMA_MAXIMUM_RECORDS
-                    + ALMA_SCHEMA_MARCXML + ALMA_QUERY_ECOLLECTION + eCollection;
+                    + maximumRecords + "&" + ALMA_SCHEMA_MARCXML + ALMA_QUERY_ECOLLECTION + eCollection;
+            // The pages are not cached: pages cached at different times would not be from the same snapshot of the
+            // collection, so records could be skipped or repeated, when the collection has changed in between.
             httpClient.retrieveUrlContent(requestUrl, out);
         } catch (IOException e) {
             throw new IllegalStateException("Could not download the metadata for set '" + eCollection + "'", e);
@@ -144,12 +543,8 @@ public class AlmaMetadataRetriever {
      */
     public List<String> extractXpathValue(InputStream almaInput, String xPath ){
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(almaInput);
-            XPath xpath = xPathFactory.newXPath();
-            NodeList nodeList = (NodeList) xpath.compile(xPath).evaluate(doc, XPathConstants.NODESET);
+            Document doc = XmlUtils.parse(almaInput, true);
+            NodeList nodeList = XmlUtils.evaluateNodes(xPath, doc);
             List<String> linkList = new ArrayList<>();
 
             for (int i = 0; i < nodeList.getLength(); i++) {
@@ -159,7 +554,7 @@ public class AlmaMetadataRetriever {
             }
             return linkList;
 
-        } catch (ParserConfigurationException | SAXException | IOException | XPathExpressionException e) {
+        } catch (SAXException | IOException | XPathExpressionException e) {
             throw new IllegalStateException("Could not get a value from requested XPATH ", e);
         }
     }
@@ -181,16 +576,15 @@ public class AlmaMetadataRetriever {
 //    }
 
     /**
-     * Retrieves the Alma metadata for the given barcode and writes it to the output stream.
+     * Retrieves the Alma metadata for the given barcode and hands it to the consumer, while it is downloaded.
      * @param barcode The barcode for the record to retrieve metadata for.
-     * @param out Output stream where the retrieved metadata is written.
+     * @param consumer The consumer of the retrieved metadata.
      */
-    protected void retrieveAlmaMetadataBarcode(String barcode, OutputStream out) {
+    protected void retrieveAlmaMetadataBarcode(String barcode, HttpClient.ContentConsumer consumer) {
         log.debug("Retrieving Alma metadata for Barcode: " + barcode);
 
         try {
-            String requestUrl = conf.getAlmaSruSearch() + ALMA_SEARCH_RANGE + ALMA_SCHEMA_MARCXML /*ALMA_SCHEMA_MODS*/ + ALMA_QUERY_BARCODE + barcode;
-            httpClient.retrieveUrlContent(requestUrl, out);
+            retrieveSruResponse(createBarcodeRequestUrl(barcode), consumer);
         } catch (IOException e) {
             throw new IllegalStateException("Could not download the metadata for set '" + barcode + "'", e);
         }
@@ -213,41 +607,298 @@ public class AlmaMetadataRetriever {
 
     /**
      * Extracts the MARC record from the Alma record.
+     * The number of records is read from the start of the response first, and if the barcode did not give exactly
+     * one record, the rest of the response is neither read nor parsed. Otherwise the response for the barcode is
+     * small, so it is read into memory, and the recordData element is copied to the output as a byte range of the
+     * response. See {@link #extractMarcFromAlma(byte[], OutputStream)}.
      * @param almaInput The input stream with the Alma metadata.
      * @param marcOutput The output stream with the MARC metadata.
      */
     protected void extractMarcFromAlma(InputStream almaInput, OutputStream marcOutput) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try {
+            String numResults = readNumberOfRecords(almaInput, response);
+            if(numResults != null && conf.getElectronicCollection() == null && !"1".equals(numResults)) {
+                // A miss or an ambiguous barcode, thus the records are not needed.
+                checkNumberOfRecords(numResults);
+            }
+            almaInput.transferTo(response);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the response from Alma", e);
+        }
+        extractMarcFromAlma(response.toByteArray(), marcOutput);
+    }
+
+    /**
+     * Reads the start of the SRU response, until the number of records has been read.
+     * The response is read in small chunks, which are kept in the buffer, so the rest of the response can be
+     * appended. The number of records is given before the records, thus it is not looked for after their start.
+     * @param almaInput The input stream with the SRU response.
+     * @param buffer The buffer for the bytes read.
+     * @return The trimmed number of records, or null if it is not at the start of the response.
+     * @throws IOException If the response cannot be read.
+     */
+    protected static String readNumberOfRecords(InputStream almaInput, ByteArrayOutputStream buffer)
+            throws IOException {
+        byte[] chunk = new byte[HEADER_CHUNK_SIZE];
+        while (buffer.size() < MAX_HEADER_SIZE) {
+            int read = almaInput.read(chunk);
+            if(read < 0) {
+                return null;
+            }
+            buffer.write(chunk, 0, read);
+            // The markup is ASCII, so the bytes can be matched without decoding them as UTF-8
+            String header = buffer.toString(StandardCharsets.ISO_8859_1);
+            Matcher numResults = NUM_RESULTS_ELEMENT.matcher(header);
+            if(numResults.find()) {
+                return numResults.group(1).trim();
+            }
+            if(RECORDS_ELEMENT.matcher(header).find()) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the number of records for a barcode in the lookup statistics, and checks that it is exactly one,
+     * unless the records are retrieved for an electronic collection.
+     * @param numResults The number of records in the SRU response.
+     */
+    protected void checkNumberOfRecords(String numResults) {
+        lookupStatistics.record(numResults);
+        if(conf.getElectronicCollection() == null && !"1".equals(numResults)) {
+            throw new IllegalStateException("Did not receive exactly 1 result from Alma. Received: " + numResults);
+        }
+    }
+
+    /**
+     * Extracts the MARC record from the Alma record.
+     * The record boundaries are found in the raw bytes by the {@link SruRecordSlicer}, and the recordData element
+     * is copied to the output as it is in the response, so the response is neither parsed nor serialized again.
+     * Only if the response cannot be sliced, e.g. when it is not well-formed, it is parsed by
+     * {@link #parseMarcFromAlma(InputStream, OutputStream)} instead.
+     * Nothing is written, if the response does not contain exactly one record.
+     * @param response The Alma metadata.
+     * @param marcOutput The output stream with the MARC metadata.
+     */
+    protected void extractMarcFromAlma(byte[] response, OutputStream marcOutput) {
+        SruRecordSlicer.SruRecords sliced = SruRecordSlicer.slice(response);
+        if(sliced == null) {
+            log.debug("Could not slice the response from Alma. Parsing it instead.");
+            parseMarcFromAlma(new ByteArrayInputStream(response), marcOutput);
+            return;
+        }
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(almaInput);
-            XPath xpath = xPathFactory.newXPath();
-
-            if(conf.getElectronicCollection() == null) {
-                String numResults = (String) xpath.evaluate(XPATH_NUM_RESULTS, doc, XPathConstants.STRING);
-                numRes = numResults;
-                if(!"1".equals(numResults)) {
-                    throw new IllegalStateException("Did not receive exactly 1 result from Alma. Received: " + numResults);
+            if(sliced.getNumberOfRecords() != null) {
+                checkNumberOfRecords(sliced.getNumberOfRecords());
+            }
+            if(sliced.getRecords().isEmpty()) {
+                throw new IllegalStateException("The response from Alma did not contain a MARC record");
+            }
+            sliced.getRecords().get(0).writeTo(marcOutput, compactMarc);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not extract the MARC record", e);
+        }
+    }
+
+    /**
+     * Extracts the MARC record from the Alma record by parsing it.
+     * The input is parsed as a stream, and the recordData element is written to the output as indented or compact
+     * XML as soon as it is read.
+     * @param almaInput The input stream with the Alma metadata.
+     * @param marcOutput The output stream with the MARC metadata.
+     */
+    protected void parseMarcFromAlma(InputStream almaInput, OutputStream marcOutput) {
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(almaInput);
+            // The namespaces declared by the ancestors of the current element, innermost last
+            Deque<Map<String, String>> namespaceScopes = new ArrayDeque<>();
+            List<String> path = new ArrayList<>();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    path.add(reader.getLocalName());
+                    if(MARC_RECORD_PATH.equals(path)) {
+                        writeRecord(reader, namespaceScopes, marcOutput);
+                        return;
+                    }
+                    if(NUM_RESULTS_PATH.equals(path)) {
+                        checkNumberOfRecords(reader.getElementText().trim());
+                        path.remove(path.size() - 1);
+                        continue;
+                    }
+                    Map<String, String> namespaces = new LinkedHashMap<>();
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        namespaces.put(nullToEmpty(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+                    }
+                    namespaceScopes.addLast(namespaces);
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    path.remove(path.size() - 1);
+                    namespaceScopes.removeLast();
                 }
             }
-            XPathExpression marcResultsXpath = xpath.compile(XPATH_MARC_RECORD);
-            NodeList marcResults = (NodeList) marcResultsXpath.evaluate(doc, XPathConstants.NODESET);
-
-            Node marc = marcResults.item(0);
-            System.setProperty("line.separator", "\n");
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-
-            // Turn the node into a string
-            transformer.transform(new DOMSource(marc), new StreamResult(marcOutput));
+            throw new IllegalStateException("The response from Alma did not contain a MARC record");
         } catch (Exception e) {
             throw new IllegalStateException("Could not extract the MARC record", e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Writes the element, which the reader is positioned at, and all its content to the output stream as indented
+     * or compact XML. The namespaces declared by its ancestors are declared on the element, so it stands alone.
+     * Afterwards the reader is positioned at the end of the element.
+     * @param reader The reader positioned at the start of the element.
+     * @param namespaceScopes The namespaces declared by the ancestors of the element, innermost last.
+     * @param output The output stream.
+     * @throws XMLStreamException If the element cannot be read or written.
+     */
+    protected void writeRecord(XMLStreamReader reader, Deque<Map<String, String>> namespaceScopes,
+                               OutputStream output) throws XMLStreamException {
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(output, StandardCharsets.UTF_8.name());
+        writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+        Map<String, String> inherited = new LinkedHashMap<>();
+        namespaceScopes.forEach(inherited::putAll);
+
+        // For each open element, whether it has child elements; then its text is only indentation
+        Deque<Boolean> hasChildren = new ArrayDeque<>();
+        StringBuilder text = new StringBuilder();
+        int event = XMLStreamConstants.START_ELEMENT;
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if(!hasChildren.isEmpty()) {
+                        writeText(writer, text, true);
+                        hasChildren.pop();
+                        hasChildren.push(true);
+                    }
+                    writeIndentation(writer, hasChildren.size());
+                    writer.writeStartElement(nullToEmpty(reader.getPrefix()), reader.getLocalName(),
+                            nullToEmpty(reader.getNamespaceURI()));
+                    Map<String, String> namespaces = hasChildren.isEmpty() ? inherited : new LinkedHashMap<>();
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        namespaces.put(nullToEmpty(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+                    }
+                    for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+                        if(namespace.getKey().isEmpty()) {
+                            writer.writeDefaultNamespace(namespace.getValue());
+                        } else {
+                            writer.writeNamespace(namespace.getKey(), namespace.getValue());
+                        }
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String attributeNamespace = reader.getAttributeNamespace(i);
+                        if(attributeNamespace == null || attributeNamespace.isEmpty()) {
+                            writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        } else {
+                            writer.writeAttribute(nullToEmpty(reader.getAttributePrefix(i)), attributeNamespace,
+                                    reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        }
+                    }
+                    hasChildren.push(false);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    boolean children = hasChildren.pop();
+                    writeText(writer, text, children);
+                    if(children) {
+                        writeIndentation(writer, hasChildren.size());
+                    }
+                    writer.writeEndElement();
+                    if(hasChildren.isEmpty()) {
+                        writer.writeEndDocument();
+                        writer.flush();
+                        return;
+                    }
+                    break;
+                default:
+                    // Comments and processing instructions are not part of the record
+                    break;
+            }
+            event = reader.next();
+        }
+    }
+
+    /**
+     * Writes the pending text of an element, and clears it.
+     * @param writer The writer.
+     * @param text The pending text.
+     * @param skipWhitespace Whether text only consisting of whitespace is skipped, since it is only indentation
+     * between child elements.
+     * @throws XMLStreamException If the text cannot be written.
+     */
+    private static void writeText(XMLStreamWriter writer, StringBuilder text, boolean skipWhitespace)
+            throws XMLStreamException {
+        if(text.length() > 0 && !(skipWhitespace && text.toString().isBlank())) {
+            writer.writeCharacters(text.toString());
+        }
+        text.setLength(0);
+    }
+
+    /**
+     * Writes a line break followed by the indentation for the given depth, unless the records are written compactly.
+     * @param writer The writer.
+     * @param depth The depth of the element within the record.
+     * @throws XMLStreamException If the indentation cannot be written.
+     */
+    private void writeIndentation(XMLStreamWriter writer, int depth) throws XMLStreamException {
+        if(!compactMarc) {
+            writer.writeCharacters("\n" + XmlUtils.INDENTATION.repeat(depth));
         }
     }
 
+    /**
+     * @param value A value, which might be null.
+     * @return The value, or the empty string if it is null.
+     */
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Closes a stream reader, ignoring failures. It does not close the underlying input stream.
+     * @param reader The reader, or null.
+     */
+    private static void closeQuietly(XMLStreamReader reader) {
+        if(reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                log.trace("Could not close the XML reader", e);
+            }
+        }
+    }
+
+    /**
+     * Writes a record node to the output stream as indented or compact XML.
+     * @param record The record node.
+     * @param output The output stream.
+     * @throws XMLStreamException If the node cannot be written.
+     */
+    protected void writeRecord(Node record, OutputStream output) throws XMLStreamException {
+        if(compactMarc) {
+            XmlUtils.writeCompact(record, output);
+        } else {
+            XmlUtils.writeIndented(record, output);
+        }
+    }
+
+    /**
+     * URL encodes a value for the CQL query.
+     * @param value The value.
+     * @return The encoded value, where spaces are encoded as '%20'.
+     */
+    protected static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
     /**
      * Extracts the MODS record from the Alma record.
      * @param almaInput The input stream with the Alma metadata.
@@ -255,36 +906,29 @@ public class AlmaMetadataRetriever {
      */
     protected void extractModsFromAlma(InputStream almaInput, OutputStream modsOutput) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(almaInput);
-            XPath xpath = xPathFactory.newXPath();
-
-            String numResults = (String) xpath.evaluate(XPATH_NUM_RESULTS, doc, XPathConstants.STRING);
-            numRes = numResults;
+            Document doc = XmlUtils.parse(almaInput, true);
+
+            String numResults = XmlUtils.evaluateString(XPATH_NUM_RESULTS, doc);
             if(!"1".equals(numResults)) {
                 throw new IllegalStateException("Did not receive exactly 1 result from Alma. Received: " + numResults);
             }
 
-            XPathExpression modsResultsXpath = xpath.compile(XPATH_MODS_RECORD);
-            NodeList modsResults = (NodeList) modsResultsXpath.evaluate(doc, XPathConstants.NODESET);
+            NodeList modsResults = XmlUtils.evaluateNodes(XPATH_MODS_RECORD, doc);
 
             Node mods = modsResults.item(0);
-            System.setProperty("line.separator", "\n");
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-
-            // Turn the node into a string
-            transformer.transform(new DOMSource(mods), new StreamResult(modsOutput));
+            XmlUtils.writeIndented(mods, modsOutput);
         } catch (Exception e) {
             throw new IllegalStateException("Could not extract the MODS record", e);
         }
     }
 
-    public static String getNumRes() {
-        return numRes;
+    /** @return The SRU response cache, or null if the responses are not cached.*/
+    public SruResponseCache getCache() {
+        return cache;
+    }
+
+    /** @return The outcome of the barcode lookups in this run.*/
+    public SruLookupStatistics getLookupStatistics() {
+        return lookupStatistics;
     }
 }
@@ -0,0 +1,103 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of the fields extracted from the bibliographic records, by their MMS ID (the 001 control field).
+ * The volumes and copies of a work have their own barcodes, but share the same bibliographic record, thus the fields
+ * extracted for the first barcode can be reused for the others, without extracting them from the record again.
+ *
+ * The cache holds at most the given number of records, and evicts the least recently used record, when it is full.
+ * The fields are immutable, and the cache is thread-safe.
+ */
+public class BibRecordCache {
+    /** The maximum number of records in the cache.*/
+    protected final int maxSize;
+    /** The fields by the MMS ID of their record, in the order of access.*/
+    protected final Map<String, MarcFields> records;
+
+    /** The number of lookups of records in the cache.*/
+    protected final AtomicLong hits = new AtomicLong();
+    /** The number of lookups of records not in the cache.*/
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param maxSize The maximum number of records in the cache.
+     */
+    public BibRecordCache(int maxSize) {
+        ArgumentCheck.checkPositiveInt(maxSize, "int maxSize");
+        this.maxSize = maxSize;
+        this.records = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MarcFields> eldest) {
+                return size() > BibRecordCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param mmsId The MMS ID of the record.
+     * @return The fields extracted from the record, or null if the record is not in the cache.
+     */
+    public MarcFields get(String mmsId) {
+        ArgumentCheck.checkNotNullOrEmpty(mmsId, "String mmsId");
+        MarcFields res;
+        synchronized (records) {
+            res = records.get(mmsId);
+        }
+        if(res == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return res;
+    }
+
+    /**
+     * Adds the fields extracted from a record.
+     * @param mmsId The MMS ID of the record.
+     * @param fields The fields extracted from the record.
+     */
+    public void put(String mmsId, MarcFields fields) {
+        ArgumentCheck.checkNotNullOrEmpty(mmsId, "String mmsId");
+        ArgumentCheck.checkNotNull(fields, "MarcFields fields");
+        synchronized (records) {
+            records.put(mmsId, fields);
+        }
+    }
+
+    /** @return The number of records in the cache.*/
+    public int size() {
+        synchronized (records) {
+            return records.size();
+        }
+    }
+
+    /** @return The number of lookups of records in the cache.*/
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return The number of lookups of records not in the cache.*/
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return The fraction of the lookups, which found the record in the cache, or 0 if there were no lookups.*/
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d hits, %d misses (%.1f%% hit rate), %d of max %d records",
+                hits.get(), misses.get(), getHitRate() * 100, size(), maxSize);
+    }
+}
@@ -0,0 +1,231 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.XmlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static dk.kb.provide_dod_info.Constants.XPATH_NUM_RESULTS;
+
+/**
+ * Harvests all the MARC records of an electronic collection from Alma, a page of records per SRU request.
+ * While the records of one page are being processed, the next page is retrieved in the background.
+ * The records are delivered as a stream in the order of the collection.
+ */
+public class ECollectionHarvester implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ECollectionHarvester.class);
+
+    /** The XPATH for the MARC records in an SRU response.
+     * Using '*' as wildcard for the namespace.*/
+    protected static final String XPATH_MARC_RECORDS = AlmaMetadataRetriever.XPATH_MARC_RECORD
+            + "/*[local-name()='record']";
+    /** The XPATH for the links to the electronic editions, relative to a MARC record.*/
+    protected static final String XPATH_RECORD_LINK_TO_E_EDITION =
+            "*[local-name()='datafield'][@tag='856']/*[local-name()='subfield'][@code='u']/text()";
+
+    /** The metadata retriever for requesting the pages.*/
+    protected final AlmaMetadataRetriever almaMetadataRetriever;
+    /** The electronic collection.*/
+    protected final String eCollection;
+    /** The number of records per page.*/
+    protected final int pageSize;
+    /** The executor retrieving the next page in the background.*/
+    protected final ExecutorService prefetcher;
+
+    /**
+     * Constructor.
+     * @param almaMetadataRetriever The metadata retriever for requesting the pages.
+     * @param eCollection The electronic collection.
+     * @param pageSize The number of records per page. At most the maximum number of records per SRU response.
+     */
+    public ECollectionHarvester(AlmaMetadataRetriever almaMetadataRetriever, String eCollection, int pageSize) {
+        ArgumentCheck.checkNotNull(almaMetadataRetriever, "AlmaMetadataRetriever almaMetadataRetriever");
+        ArgumentCheck.checkNotNullOrEmpty(eCollection, "String eCollection");
+        ArgumentCheck.checkPositiveInt(pageSize, "int pageSize");
+        this.almaMetadataRetriever = almaMetadataRetriever;
+        this.eCollection = eCollection;
+        this.pageSize = Math.min(pageSize, AlmaMetadataRetriever.SRU_MAX_RECORDS);
+        this.prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "ecollection-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Streams all the MARC records of the electronic collection.
+     * The first page is retrieved right away, and each following page is requested when the previous page
+     * starts being consumed.
+     * @return The stream of MARC record nodes.
+     */
+    public Stream<Node> records() {
+        Page firstPage = retrievePage(1);
+        log.info("The electronic collection '{}' contains {} records", eCollection, firstPage.numberOfRecords);
+        Iterator<Node> iterator = new RecordIterator(firstPage);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+    /**
+     * Extracts the links to the electronic editions from a MARC record.
+     * @param record The MARC record node.
+     * @return The links.
+     */
+    public List<String> getLinksToEEdition(Node record) {
+        try {
+            NodeList nodeList = XmlUtils.evaluateNodes(XPATH_RECORD_LINK_TO_E_EDITION, record);
+            List<String> links = new ArrayList<>();
+            for (int i = 0; i < nodeList.getLength(); i++) {
+                links.add(nodeList.item(i).getNodeValue());
+            }
+            return links;
+        } catch (XPathExpressionException e) {
+            throw new IllegalStateException("Could not extract the links to the electronic edition", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    /**
+     * Retrieves and parses a page of records.
+     * @param startRecord The position of the first record of the page.
+     * @return The page.
+     */
+    protected Page retrievePage(int startRecord) {
+        log.debug("Retrieving records {} to {} from the electronic collection '{}'", startRecord,
+                startRecord + pageSize - 1, eCollection);
+        ByteArrayInputStream in = almaMetadataRetriever.retrieveMetadataForECollection(eCollection, startRecord,
+                pageSize);
+        try {
+            Document doc = XmlUtils.parse(in, true);
+            int numberOfRecords = Integer.parseInt(XmlUtils.evaluateString(XPATH_NUM_RESULTS, doc).trim());
+            NodeList nodeList = XmlUtils.evaluateNodes(XPATH_MARC_RECORDS, doc);
+            List<Node> records = new ArrayList<>(nodeList.getLength());
+            for (int i = 0; i < nodeList.getLength(); i++) {
+                records.add(nodeList.item(i));
+            }
+            return new Page(startRecord, numberOfRecords, records);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not read the records " + startRecord + " to "
+                    + (startRecord + pageSize - 1) + " of the electronic collection '" + eCollection + "'", e);
+        }
+    }
+
+    /**
+     * Starts retrieving a page in the background.
+     * @param startRecord The position of the first record of the page.
+     * @return The future page.
+     */
+    protected CompletableFuture<Page> prefetchPage(int startRecord) {
+        return CompletableFuture.supplyAsync(() -> retrievePage(startRecord), prefetcher);
+    }
+
+    /**
+     * A page of records from the SRU response.
+     */
+    protected static class Page {
+        /** The position of the first record of the page.*/
+        final int startRecord;
+        /** The total number of records in the collection.*/
+        final int numberOfRecords;
+        /** The records of the page.*/
+        final List<Node> records;
+
+        Page(int startRecord, int numberOfRecords, List<Node> records) {
+            this.startRecord = startRecord;
+            this.numberOfRecords = numberOfRecords;
+            this.records = Collections.unmodifiableList(records);
+        }
+
+        /** @return The position of the first record of the next page.*/
+        int nextStartRecord() {
+            return startRecord + records.size();
+        }
+
+        /** @return Whether there are more records after this page.*/
+        boolean hasNext() {
+            return !records.isEmpty() && nextStartRecord() <= numberOfRecords;
+        }
+    }
+
+    /**
+     * Iterates through the records page by page, and requests the next page, when a page is started.
+     */
+    protected class RecordIterator implements Iterator<Node> {
+        /** The iterator for the records of the current page.*/
+        protected Iterator<Node> current;
+        /** The next page, or null if there are no more pages.*/
+        protected CompletableFuture<Page> next;
+
+        /**
+         * Constructor.
+         * @param firstPage The first page.
+         */
+        protected RecordIterator(Page firstPage) {
+            startPage(firstPage);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && next != null) {
+                startPage(awaitNextPage());
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Node next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        /**
+         * Starts delivering the records of a page, and requests the following page in the background.
+         * @param page The page.
+         */
+        protected void startPage(Page page) {
+            current = page.records.iterator();
+            next = page.hasNext() ? prefetchPage(page.nextStartRecord()) : null;
+        }
+
+        /**
+         * @return The next page, when it has been retrieved.
+         */
+        protected Page awaitNextPage() {
+            try {
+                return next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next page of records", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Could not retrieve the next page of records", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.CountingOutputStream;
+import dk.kb.provide_dod_info.utils.XmlUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes MARC records into one MARC21 slim 'collection' file, instead of one file per barcode, together with an
+ * index from the barcodes to the records.
+ *
+ * The index is a tab separated file with a header line, and a line per record with the barcode, the number of the
+ * record in the collection (starting at 0), and the byte offset and length of the 'record' element in the collection
+ * file, so a record can be read without parsing the whole collection.
+ *
+ * The records are written in the same format as the MARC files, indented or compact. A writer is not thread-safe.
+ */
+public class MarcCollectionWriter implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(MarcCollectionWriter.class);
+
+    /** The header line of the index.*/
+    protected static final String INDEX_HEADER = "barcode\trecord\toffset\tlength";
+    /** The factory for the XML writers. It is thread-safe.*/
+    protected static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /** The collection file.*/
+    protected final File collectionFile;
+    /** The indentation per level, or the empty string for compact XML.*/
+    protected final String indentation;
+    /** The stream to the collection file, which counts the bytes for the offsets in the index.*/
+    protected final CountingOutputStream out;
+    /** The writer of the collection.*/
+    protected final XMLStreamWriter writer;
+    /** The writer of the index.*/
+    protected final Writer index;
+    /** The number of records written.*/
+    protected int records = 0;
+
+    /**
+     * Constructor. Starts the collection file and the index file, replacing them if they exist.
+     * @param collectionFile The collection file.
+     * @param indexFile The index file.
+     * @param compact Whether the records are written compactly, without indentation.
+     * @throws IOException If the files cannot be created.
+     */
+    public MarcCollectionWriter(File collectionFile, File indexFile, boolean compact) throws IOException {
+        ArgumentCheck.checkNotNull(collectionFile, "File collectionFile");
+        ArgumentCheck.checkNotNull(indexFile, "File indexFile");
+        this.collectionFile = collectionFile;
+        this.indentation = compact ? "" : XmlUtils.INDENTATION;
+        this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(collectionFile)));
+        try {
+            this.index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile),
+                    StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        try {
+            index.write(INDEX_HEADER + "\n");
+            this.writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("collection");
+            writer.writeDefaultNamespace(MetadataValidator.MARC21_SLIM_NAMESPACE);
+        } catch (IOException | XMLStreamException e) {
+            out.close();
+            index.close();
+            throw new IOException("Could not start the MARC collection '" + collectionFile + "'", e);
+        }
+    }
+
+    /**
+     * Adds the MARC record of a barcode to the collection and the index.
+     * The file may contain the record within the SRU 'recordData' element, as written by the
+     * {@link AlmaMetadataRetriever}. Only the first MARC21 slim record is added.
+     * @param barcode The barcode.
+     * @param marcFile The MARC file with the record for the barcode.
+     * @throws IOException If the record cannot be read, in which case nothing is added, or written.
+     */
+    public void add(String barcode, File marcFile) throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(barcode, "String barcode");
+        ArgumentCheck.checkExistsNormalFile(marcFile, "File marcFile");
+        Element record;
+        try {
+            Document document = XmlUtils.parse(marcFile, true);
+            NodeList marcRecords = document.getElementsByTagNameNS(MetadataValidator.MARC21_SLIM_NAMESPACE,
+                    "record");
+            if(marcRecords.getLength() == 0) {
+                throw new IOException("No MARC21 slim record in '" + marcFile + "'");
+            }
+            record = (Element) marcRecords.item(0);
+        } catch (SAXException e) {
+            throw new IOException("Could not parse the MARC file '" + marcFile + "'", e);
+        }
+
+        try {
+            // Writing the indentation also completes the start tag of the collection, so it is in the offset
+            writer.writeCharacters(indentation.isEmpty() ? "" : "\n" + indentation);
+            writer.flush();
+            long offset = out.getCount();
+            XmlUtils.writeElement(writer, record, indentation, indentation);
+            writer.flush();
+            index.write(barcode + "\t" + records + "\t" + offset + "\t" + (out.getCount() - offset) + "\n");
+            records++;
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write the record for barcode '" + barcode + "' to the MARC collection '"
+                    + collectionFile + "'", e);
+        }
+    }
+
+    /** @return The number of records written.*/
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * Ends the collection, and closes the collection file and the index file.
+     * @throws IOException If the files cannot be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if(!indentation.isEmpty() && records > 0) {
+                writer.writeCharacters("\n");
+            }
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not end the MARC collection '" + collectionFile + "'", e);
+        } finally {
+            out.close();
+            index.close();
+        }
+        log.debug("Wrote {} records to the MARC collection '{}'", records, collectionFile);
+    }
+}
@@ -0,0 +1,240 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.AlmaRetriever;
+import dk.kb.provide_dod_info.config.Configuration;
+import dk.kb.provide_dod_info.config.ExtractColumn;
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Extracts the fields for the Excel sheet from a MARC record file, as written by the AlmaMetadataRetriever.
+ * The record is read once as a stream, and all the fields are collected in the same pass, instead of parsing the
+ * record and compiling an XPATH per field. Reading stops, when all the fields have been found.
+ *
+ * The columns are given by the configuration, see {@link Configuration#getExtractColumns()}. They are compiled
+ * into a lookup table from datafield tag and subfield code to the columns, so extracting more columns does not
+ * cost more passes over the record. The release year is always extracted from the 008 control field.
+ *
+ * The fields are found like the XP_MARC_FIND_AUTHOR XPATH in Constants: the first matching control field or subfield
+ * directly within recordData/record, with the element names matched as written (not namespace aware).
+ *
+ * With a {@link BibRecordCache}, the fields of a record are cached by its MMS ID (the 001 control field, which comes
+ * before the other fields). When another barcode of the same record is extracted, reading stops at the MMS ID and the
+ * cached fields are returned.
+ * The extractor is thread-safe.
+ */
+public class MarcFieldExtractor {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(MarcFieldExtractor.class);
+
+    /** The control field with the MMS ID of the record.*/
+    protected static final String MMS_ID_CONTROLFIELD = "001";
+    /** The control field with the release year.*/
+    protected static final String YEAR_CONTROLFIELD = "008";
+    /** The position of the release year within the 008 control field.*/
+    protected static final int YEAR_BEGIN = 7;
+    protected static final int YEAR_END = 11;
+
+    /** The extracted columns, in the order of the Excel sheet.*/
+    protected final List<ExtractColumn> columns;
+    /** The names of the extracted columns.*/
+    protected final List<String> names;
+    /** The indices of the columns for each subfield, by the MARC field, e.g. '260$a'.*/
+    protected final Map<String, int[]> columnsByField;
+    /** The factory for the streaming XML readers. It is thread-safe once configured.*/
+    protected final XMLInputFactory xmlInputFactory;
+    /** The cache of the fields by the MMS ID of the record. Null, if the fields are not cached.*/
+    protected final BibRecordCache cache;
+
+    /**
+     * Constructor for the default columns.
+     */
+    public MarcFieldExtractor() {
+        this(Configuration.DEFAULT_EXTRACT_COLUMNS);
+    }
+
+    /**
+     * Constructor without a cache.
+     * @param columns The columns to extract, in the order of the Excel sheet.
+     */
+    public MarcFieldExtractor(List<ExtractColumn> columns) {
+        this(columns, null);
+    }
+
+    /**
+     * Constructor.
+     * @param columns The columns to extract, in the order of the Excel sheet.
+     * @param cache The cache of the fields by the MMS ID of the record, or null if the fields are not cached.
+     * It must only be used by extractors for the same columns.
+     */
+    public MarcFieldExtractor(List<ExtractColumn> columns, BibRecordCache cache) {
+        ArgumentCheck.checkNotNullOrEmpty(columns, "List<ExtractColumn> columns");
+        this.columns = List.copyOf(columns);
+        this.names = this.columns.stream().map(ExtractColumn::getName).collect(Collectors.toUnmodifiableList());
+        Map<String, int[]> byField = new HashMap<>();
+        for (int i = 0; i < this.columns.size(); i++) {
+            int[] indices = byField.getOrDefault(this.columns.get(i).getField(), new int[0]);
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = i;
+            byField.put(this.columns.get(i).getField(), indices);
+        }
+        this.columnsByField = Collections.unmodifiableMap(byField);
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.cache = cache;
+    }
+
+    /** @return The cache of the fields by the MMS ID of the record, or null if the fields are not cached.*/
+    public BibRecordCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Extracts the fields from a MARC record file.
+     * @param marcFile The MARC record file.
+     * @return The fields.
+     */
+    public MarcFields extract(File marcFile) {
+        ArgumentCheck.checkExistsNormalFile(marcFile, "File marcFile");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(marcFile))) {
+            return extract(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the MARC record '" + marcFile + "'", e);
+        }
+    }
+
+    /**
+     * Extracts the fields from a MARC record.
+     * @param marcInput The input stream with the MARC record. It is not closed.
+     * @return The fields.
+     */
+    public MarcFields extract(InputStream marcInput) {
+        ArgumentCheck.checkNotNull(marcInput, "InputStream marcInput");
+        String[] values = new String[columns.size()];
+        Set<String> found = new HashSet<>();
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(marcInput);
+            String year = null;
+            String mmsId = null;
+            // The elements must be recordData/record/controlfield or recordData/record/datafield/subfield
+            int depth = 0;
+            boolean inRecord = false;
+            String datafieldTag = null;
+            int remaining = columnsByField.size() + 1;
+            while (remaining > 0 && reader.hasNext()) {
+                int event = reader.next();
+                if(event == XMLStreamConstants.END_ELEMENT) {
+                    if(depth == 3) {
+                        datafieldTag = null;
+                    } else if(depth == 2) {
+                        inRecord = false;
+                    }
+                    depth--;
+                    continue;
+                }
+                if(event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String name = getName(reader);
+                if(depth == 1 && !"recordData".equals(name)) {
+                    break;
+                } else if(depth == 2) {
+                    inRecord = "record".equals(name);
+                } else if(depth == 3 && inRecord) {
+                    String tag = reader.getAttributeValue(null, "tag");
+                    if("controlfield".equals(name) && MMS_ID_CONTROLFIELD.equals(tag) && mmsId == null) {
+                        mmsId = reader.getElementText().trim();
+                        depth--;
+                        MarcFields cached = cache == null || mmsId.isEmpty() ? null : cache.get(mmsId);
+                        if(cached != null) {
+                            log.trace("Reusing the fields of the record '{}': {}", mmsId, cached);
+                            return cached;
+                        }
+                    } else if("controlfield".equals(name) && YEAR_CONTROLFIELD.equals(tag) && year == null) {
+                        year = reader.getElementText();
+                        depth--;
+                        remaining--;
+                    } else if("datafield".equals(name)) {
+                        datafieldTag = tag;
+                    }
+                } else if(depth == 4 && datafieldTag != null && "subfield".equals(name)) {
+                    String field = datafieldTag + ExtractColumn.FIELD_SEPARATOR
+                            + reader.getAttributeValue(null, "code");
+                    int[] indices = columnsByField.get(field);
+                    if(indices != null && found.add(field)) {
+                        String value = reader.getElementText();
+                        for (int index : indices) {
+                            values[index] = columns.get(index).clean(value);
+                        }
+                        depth--;
+                        remaining--;
+                    }
+                }
+            }
+
+            MarcFields res = new MarcFields(getReleaseYear(year), names, Arrays.asList(values));
+            log.trace("Extracted the fields: {}", res);
+            if(cache != null && mmsId != null && !mmsId.isEmpty()) {
+                cache.put(mmsId, res);
+            }
+            return res;
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Could not extract the fields from the MARC record", e);
+        } finally {
+            if(reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.trace("Could not close the XML reader", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param controlfield The 008 control field, or null if it is not in the record.
+     * @return The release year from the control field, or null if it is not a valid year.
+     */
+    protected static String getReleaseYear(String controlfield) {
+        if(controlfield == null || controlfield.length() < YEAR_END) {
+            return null;
+        }
+        String releaseYear = controlfield.substring(YEAR_BEGIN, YEAR_END);
+        if(!AlmaRetriever.isNumeric(releaseYear) || "0000".equals(releaseYear)) {
+            return null;
+        }
+        return releaseYear;
+    }
+
+    /**
+     * The name of the element as written, with its prefix, like a DOM, which is not namespace aware.
+     * @param reader The reader positioned at the start of the element.
+     * @return The name of the element.
+     */
+    private static String getName(XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
+        return prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+}
@@ -0,0 +1,69 @@
+package dk.kb.provide_dod_info.metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fields extracted from a MARC record for the Excel sheet: the release year and the configured columns.
+ * It is immutable, thus it can be handed between threads.
+ */
+public final class MarcFields {
+    /** The value used for the fields, which are not in the record.*/
+    public static final String NOT_AVAILABLE = "N/A";
+
+    /** The release year, or null if it is not a valid year.*/
+    private final String year;
+    /** The names of the columns.*/
+    private final List<String> names;
+    /** The values of the columns, in the same order as the names. Missing values are not available.*/
+    private final List<String> values;
+
+    /**
+     * Constructor.
+     * @param year The release year, or null if it is not a valid year.
+     * @param names The names of the columns.
+     * @param values The values of the columns, in the same order as the names. Null or empty values are
+     * not available.
+     */
+    public MarcFields(String year, List<String> names, List<String> values) {
+        if(names.size() != values.size()) {
+            throw new IllegalArgumentException("Got " + values.size() + " values for " + names.size() + " columns");
+        }
+        this.year = year;
+        this.names = Collections.unmodifiableList(new ArrayList<>(names));
+        List<String> available = new ArrayList<>(values.size());
+        for (String value : values) {
+            available.add(value == null || value.isEmpty() ? NOT_AVAILABLE : value);
+        }
+        this.values = Collections.unmodifiableList(available);
+    }
+
+    /** @return The release year from the 008 control field, or null if it is not a valid year.*/
+    public String getYear() {
+        return year;
+    }
+
+    /**
+     * @param name The name of the column.
+     * @return The value of the column, or "N/A" if it is not in the record or not a column.
+     */
+    public String get(String name) {
+        int index = names.indexOf(name);
+        return index < 0 ? NOT_AVAILABLE : values.get(index);
+    }
+
+    /** @return The values of the columns in the order of the configuration, with "N/A" for the missing values.*/
+    public List<String> getValues() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("MarcFields{Year=").append(year);
+        for (int i = 0; i < names.size(); i++) {
+            res.append(", ").append(names.get(i)).append("=").append(values.get(i));
+        }
+        return res.append("}").toString();
+    }
+}
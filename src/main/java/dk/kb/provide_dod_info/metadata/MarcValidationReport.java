@@ -0,0 +1,76 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.metadata.xsl.XmlErrorHandler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The aggregated result of validating a set of MARC files against the MARC21 slim schema: the number of valid files,
+ * the invalid files and how many files had each error message.
+ * The files are added in the order they were submitted for validation, by the thread running the validation pass.
+ */
+public class MarcValidationReport {
+    /** The number of validated files.*/
+    protected int files = 0;
+    /** The invalid files.*/
+    protected final List<File> invalidFiles = new ArrayList<>();
+    /** The number of files with each error message.*/
+    protected final Map<String, Integer> errorCounts = new TreeMap<>();
+
+    /**
+     * Adds the result of validating a file.
+     * @param file The validated file.
+     * @param errorHandler The error handler used for validating the file.
+     */
+    public void add(File file, XmlErrorHandler errorHandler) {
+        files++;
+        if(!errorHandler.hasErrors()) {
+            return;
+        }
+        invalidFiles.add(file);
+        for (String message : new HashSet<>(errorHandler.getMessages())) {
+            errorCounts.merge(message, 1, Integer::sum);
+        }
+    }
+
+    /** @return The number of validated files.*/
+    public int getFiles() {
+        return files;
+    }
+
+    /** @return The number of valid files.*/
+    public int getValidFiles() {
+        return files - invalidFiles.size();
+    }
+
+    /** @return The invalid files, in the order they were submitted for validation.*/
+    public List<File> getInvalidFiles() {
+        return Collections.unmodifiableList(new ArrayList<>(invalidFiles));
+    }
+
+    /** @return The number of files with each error message, sorted by the message.*/
+    public Map<String, Integer> getErrorCounts() {
+        return Collections.unmodifiableMap(new TreeMap<>(errorCounts));
+    }
+
+    /** @return Whether all the validated files are valid.*/
+    public boolean isValid() {
+        return invalidFiles.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        res.append(files).append(" MARC files validated, ").append(invalidFiles.size()).append(" invalid");
+        for (Map.Entry<String, Integer> error : errorCounts.entrySet()) {
+            res.append("\n  ").append(error.getValue()).append(" x ").append(error.getKey());
+        }
+        return res.toString();
+    }
+}
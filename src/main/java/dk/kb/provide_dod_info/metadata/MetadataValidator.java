@@ -1,21 +1,41 @@
 package dk.kb.provide_dod_info.metadata;
 
+import dk.kb.provide_dod_info.Constants;
 import dk.kb.provide_dod_info.exception.ArgumentCheck;
 import dk.kb.provide_dod_info.metadata.xsl.XmlErrorHandler;
+import dk.kb.provide_dod_info.utils.OrderedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.EntityResolver;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 
 /**
  * Class for validating the XML file, primarily against its schema definition.
+ * The MARC records are validated against the bundled MARC21 slim schema, which is compiled once and shared. The
+ * validators and document builders are not thread-safe, thus each thread has its own.
  */
 public class MetadataValidator {
     /** The logger.*/
@@ -27,8 +47,20 @@ public class MetadataValidator {
     /** Schema validation enabler value. */
     public static final String W3C_XML_SCHEMA = "http://www.w3.org/2001/XMLSchema";
 
-    /** Cached document builder with DTD/Schema validation. */
-    protected DocumentBuilder validationBuilder;
+    /** The namespace of the MARC21 slim records.*/
+    public static final String MARC21_SLIM_NAMESPACE = "http://www.loc.gov/MARC21/slim";
+    /** The classpath location of the bundled MARC21 slim schema.*/
+    protected static final String MARC21_SLIM_XSD = "/xsd/MARC21slim.xsd";
+
+    /** The compiled MARC21 slim schema. It is immutable and thread-safe.*/
+    protected static final Schema MARC_SCHEMA = loadSchema(MARC21_SLIM_XSD);
+    /** The validator for the MARC21 slim schema of each thread.*/
+    protected static final ThreadLocal<Validator> MARC_VALIDATOR = ThreadLocal.withInitial(MARC_SCHEMA::newValidator);
+    /** The factory for the StAX readers, which find the MARC records in the files. Thread-safe once configured.*/
+    protected static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    /** Cached document builder with DTD/Schema validation, for each thread. */
+    protected final ThreadLocal<DocumentBuilder> validationBuilder;
 
     /**
      * Construct an <code>XmlValidator</code> instance.
@@ -38,11 +70,13 @@ public class MetadataValidator {
         factory.setNamespaceAware(true);
         factory.setValidating(true);
         factory.setAttribute(JAXP_SCHEMA_LANGUAGE, W3C_XML_SCHEMA);
-        try {
-            validationBuilder = factory.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new IllegalStateException("Could not create a new 'DocumentBuilder'!");
-        }
+        validationBuilder = ThreadLocal.withInitial(() -> {
+            try {
+                return factory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("Could not create a new 'DocumentBuilder'!", e);
+            }
+        });
     }
 
     /**
@@ -73,14 +107,147 @@ public class MetadataValidator {
         }
         errorHandler.reset();
         try {
-            validationBuilder.reset();
-            validationBuilder.setErrorHandler(errorHandler);
-            validationBuilder.setEntityResolver(entityResolver);
-            validationBuilder.parse(in);
+            DocumentBuilder builder = validationBuilder.get();
+            builder.reset();
+            builder.setErrorHandler(errorHandler);
+            builder.setEntityResolver(entityResolver);
+            builder.parse(in);
             return !errorHandler.hasErrors();
         } catch (Throwable t) {
             log.error("Exception validating XML stream!", t);
             return false;
         }
     }
+
+    /**
+     * Checks whether a MARC file is valid according to the MARC21 slim schema.
+     * @param marcFile The MARC file to validate.
+     * @param errorHandler The error handler, which receives the validation errors.
+     * @return Whether the MARC file is valid.
+     */
+    public boolean isValidMarc(File marcFile, XmlErrorHandler errorHandler) {
+        ArgumentCheck.checkExistsNormalFile(marcFile, "File marcFile");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(marcFile))) {
+            return validateMarc(in, errorHandler);
+        } catch (IOException e) {
+            errorHandler.fatalError(new SAXParseException("Could not read the MARC file: " + e.getMessage(), null));
+            return false;
+        }
+    }
+
+    /**
+     * Validates the first MARC record or collection of an XML stream against the MARC21 slim schema.
+     * The stream is read until the first 'record' or 'collection' element in the MARC21 slim namespace, thus
+     * a record wrapped in e.g. the SRU 'recordData' element is validated too. Only that element is validated.
+     * @param in The XML input stream.
+     * @param errorHandler The error handler, which receives the validation errors. It is reset first.
+     * @return Whether the MARC record is valid. It is not valid, if there is no MARC record.
+     */
+    public boolean validateMarc(InputStream in, XmlErrorHandler errorHandler) {
+        ArgumentCheck.checkNotNull(in, "InputStream in");
+        ArgumentCheck.checkNotNull(errorHandler, "XmlErrorHandler errorHandler");
+        errorHandler.reset();
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if(reader.next() == XMLStreamConstants.START_ELEMENT
+                        && MARC21_SLIM_NAMESPACE.equals(reader.getNamespaceURI())
+                        && ("record".equals(reader.getLocalName()) || "collection".equals(reader.getLocalName()))) {
+                    Validator validator = MARC_VALIDATOR.get();
+                    validator.reset();
+                    validator.setErrorHandler(errorHandler);
+                    validator.validate(new StAXSource(reader));
+                    return !errorHandler.hasErrors();
+                }
+            }
+            errorHandler.error(new SAXParseException("No MARC21 slim record found", null));
+        } catch (XMLStreamException | IOException e) {
+            errorHandler.fatalError(new SAXParseException(e.getMessage(), null));
+        } catch (SAXException e) {
+            // The validator has already reported fatal errors to the error handler, before throwing them.
+            if(!errorHandler.hasErrors()) {
+                errorHandler.fatalError(new SAXParseException(e.getMessage(), null));
+            }
+        } finally {
+            closeReader(reader);
+        }
+        return false;
+    }
+
+    /**
+     * Validates all the MARC files in a directory against the MARC21 slim schema, in parallel.
+     * @param dir The directory with the MARC files, i.e. the files ending with '.marc.xml'.
+     * @param workers The number of threads validating the files.
+     * @return The aggregated report of the validation.
+     */
+    public MarcValidationReport validateMarcFiles(File dir, int workers) {
+        ArgumentCheck.checkExistsDirectory(dir, "File dir");
+        File[] marcFiles = dir.listFiles((d, name) -> name.endsWith(Constants.MARC_METADATA_SUFFIX));
+        MarcValidationReport report = new MarcValidationReport();
+        if(marcFiles == null) {
+            return report;
+        }
+        Arrays.sort(marcFiles);
+        // The results are delivered in the order of submission, thus they can be matched with the submitted files
+        Deque<File> submitted = new ArrayDeque<>();
+        try (OrderedExecutor<XmlErrorHandler> executor = new OrderedExecutor<>(workers, "marc-validation",
+                errorHandler -> report.add(submitted.poll(), errorHandler))) {
+            for (File marcFile : marcFiles) {
+                submitted.add(marcFile);
+                executor.submit(() -> {
+                    XmlErrorHandler errorHandler = new XmlErrorHandler();
+                    if(!isValidMarc(marcFile, errorHandler)) {
+                        log.warn("Invalid MARC file '{}': {}", marcFile.getName(), errorHandler.getMessages());
+                    }
+                    return errorHandler;
+                });
+            }
+            executor.finish();
+        }
+        return report;
+    }
+
+    /**
+     * Loads and compiles a schema from the classpath.
+     * @param path The classpath location of the schema.
+     * @return The compiled schema.
+     */
+    protected static Schema loadSchema(String path) {
+        URL schemaUrl = MetadataValidator.class.getResource(path);
+        if(schemaUrl == null) {
+            throw new IllegalStateException("Could not find the schema '" + path + "' on the classpath");
+        }
+        try {
+            return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaUrl);
+        } catch (SAXException e) {
+            throw new IllegalStateException("Could not compile the schema '" + path + "'", e);
+        }
+    }
+
+    /**
+     * @return A namespace aware StAX factory, which does not resolve DTDs or external entities.
+     */
+    protected static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Closes a StAX reader, if it was opened.
+     * @param reader The reader, or null.
+     */
+    protected static void closeReader(XMLStreamReader reader) {
+        if(reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            log.debug("Could not close the XML reader", e);
+        }
+    }
 }
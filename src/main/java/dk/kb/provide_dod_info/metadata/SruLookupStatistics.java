@@ -0,0 +1,78 @@
+package dk.kb.provide_dod_info.metadata;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outcome of the barcode lookups in Alma during one run, by the number of records found for each barcode.
+ * The counters are updated by the worker threads, thus they are atomic.
+ */
+public class SruLookupStatistics {
+    /** The number of lookups, which found exactly one record.*/
+    protected final AtomicLong found = new AtomicLong();
+    /** The number of lookups, which found no records.*/
+    protected final AtomicLong notFound = new AtomicLong();
+    /** The number of lookups, which found more than one record.*/
+    protected final AtomicLong ambiguous = new AtomicLong();
+    /** The number of lookups, where the number of records was not a number.*/
+    protected final AtomicLong invalid = new AtomicLong();
+
+    /**
+     * Records the outcome of a lookup.
+     * @param numberOfRecords The number of records found, as given in the SRU response.
+     */
+    public void record(String numberOfRecords) {
+        int count;
+        try {
+            count = Integer.parseInt(numberOfRecords.trim());
+        } catch (NumberFormatException e) {
+            invalid.incrementAndGet();
+            return;
+        }
+        if(count == 1) {
+            found.incrementAndGet();
+        } else if(count == 0) {
+            notFound.incrementAndGet();
+        } else {
+            ambiguous.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records lookups, which each found exactly one record, e.g. the barcodes matched in a batch.
+     * @param count The number of lookups.
+     */
+    public void recordFound(int count) {
+        found.addAndGet(count);
+    }
+
+    /** @return The number of lookups, which found exactly one record.*/
+    public long getFound() {
+        return found.get();
+    }
+
+    /** @return The number of lookups, which found no records.*/
+    public long getNotFound() {
+        return notFound.get();
+    }
+
+    /** @return The number of lookups, which found more than one record.*/
+    public long getAmbiguous() {
+        return ambiguous.get();
+    }
+
+    /** @return The number of lookups, where the number of records was not a number.*/
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    /** @return The total number of lookups.*/
+    public long getLookups() {
+        return found.get() + notFound.get() + ambiguous.get() + invalid.get();
+    }
+
+    @Override
+    public String toString() {
+        return getLookups() + " lookups: " + found.get() + " found, " + notFound.get() + " not found, "
+                + ambiguous.get() + " ambiguous, " + invalid.get() + " invalid";
+    }
+}
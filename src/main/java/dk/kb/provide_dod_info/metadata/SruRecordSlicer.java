@@ -0,0 +1,589 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the MARC records in the raw UTF-8 bytes of an SRU response, so each record can be copied to the output
+ * as a byte range, instead of parsing the response into a DOM and serializing the record again.
+ *
+ * The response is scanned once by a small tokenizer, which only knows the markup of XML: tags, comments,
+ * CDATA sections, processing instructions and the predefined and numeric character references. The markup is
+ * ASCII, which never occurs within the multi-byte sequences of UTF-8, so the bytes need not be decoded.
+ * Responses in another encoding, with a document type declaration, or which are not well-formed are not sliced,
+ * and must be parsed by a real XML parser instead.
+ *
+ * The records can also be copied compactly, without the whitespace between their elements, and without comments and
+ * processing instructions. Their byte ranges are noted while scanning, so the bytes are still copied as they are.
+ *
+ * Each response is scanned by its own instance, thus responses can be sliced by many threads at once.
+ */
+public final class SruRecordSlicer {
+    /** The XML declaration written before each record.*/
+    protected static final byte[] XML_DECLARATION =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(StandardCharsets.UTF_8);
+    /** The UTF-8 byte order mark.*/
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    /** The local names of the elements, whose text is collected as field values of the records.*/
+    private static final Set<String> FIELD_ELEMENTS = Set.of("controlfield", "subfield");
+    /** The start of the XML declaration, as opposed to other processing instructions.*/
+    private static final Pattern XML_DECLARATION_START = Pattern.compile("<\\?xml\\s");
+    /** The encoding in the XML declaration.*/
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    /** The response.*/
+    private final byte[] data;
+    /** The open elements, innermost last.*/
+    private final Deque<Element> elements = new ArrayDeque<>();
+    /** The local names of the open elements, outermost first.*/
+    private final List<String> path = new ArrayList<>();
+    /** The records found so far.*/
+    private final List<Record> records = new ArrayList<>();
+    /** The text of the numberOfRecords element, or null if it has not been found.*/
+    private String numberOfRecords = null;
+    /** The record currently being read, or null if outside a record.*/
+    private Record current = null;
+    /** Whether the root element has been read.*/
+    private boolean rootSeen = false;
+
+    /**
+     * Constructor.
+     * @param data The response.
+     */
+    private SruRecordSlicer(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Finds the MARC records in an SRU response.
+     * @param response The raw bytes of the SRU response.
+     * @return The records, or null if the response cannot be sliced, e.g. when it is not well-formed.
+     */
+    public static SruRecords slice(byte[] response) {
+        ArgumentCheck.checkNotNull(response, "byte[] response");
+        SruRecordSlicer slicer = new SruRecordSlicer(response);
+        if(!slicer.scan()) {
+            return null;
+        }
+        return new SruRecords(slicer.numberOfRecords, slicer.records);
+    }
+
+    /**
+     * Scans the whole response.
+     * @return Whether the response was well-formed, as far as the tokenizer can tell.
+     */
+    private boolean scan() {
+        int pos = startsWith(0, BOM) ? BOM.length : 0;
+        int documentStart = pos;
+        while (pos < data.length) {
+            if(data[pos] != '<') {
+                int end = indexOf(pos, "<");
+                end = end < 0 ? data.length : end;
+                if(!text(pos, end)) {
+                    return false;
+                }
+                pos = end;
+            } else if(startsWith(pos, "<?")) {
+                int end = indexOf(pos + 2, "?>");
+                if(end < 0 || (pos == documentStart && !isUtf8Declaration(pos, end))) {
+                    return false;
+                }
+                skip(pos, end + 2);
+                pos = end + 2;
+            } else if(startsWith(pos, "<!--")) {
+                int end = indexOf(pos + 4, "-->");
+                if(end < 0) {
+                    return false;
+                }
+                skip(pos, end + 3);
+                pos = end + 3;
+            } else if(startsWith(pos, "<![CDATA[")) {
+                int end = indexOf(pos + 9, "]]>");
+                if(end < 0 || elements.isEmpty()) {
+                    return false;
+                }
+                Element element = elements.peekLast();
+                if(element.text != null) {
+                    element.text.write(data, pos + 9, end - pos - 9);
+                }
+                pos = end + 3;
+            } else if(startsWith(pos, "<!")) {
+                // A document type declaration might declare entities, which only a real parser can expand
+                return false;
+            } else if(startsWith(pos, "</")) {
+                pos = endTag(pos);
+            } else {
+                pos = startTag(pos);
+            }
+            if(pos < 0) {
+                return false;
+            }
+        }
+        return rootSeen && elements.isEmpty();
+    }
+
+    /**
+     * Handles the text between two tags.
+     * @param start The start of the text.
+     * @param end The end of the text.
+     * @return Whether the text is allowed here.
+     */
+    private boolean text(int start, int end) {
+        boolean whitespace = true;
+        for (int i = start; i < end && whitespace; i++) {
+            whitespace = isWhitespace(data[i]);
+        }
+        if(elements.isEmpty()) {
+            return whitespace;
+        }
+        if(whitespace && current != null) {
+            elements.peekLast().whitespace.add(new int[]{start, end});
+        }
+        return decode(start, end, elements.peekLast().text);
+    }
+
+    /**
+     * Notes a comment or processing instruction, which is left out when the current record is copied compactly.
+     * @param start The start of the markup.
+     * @param end The position after the markup.
+     */
+    private void skip(int start, int end) {
+        if(current != null) {
+            current.skipped.add(new int[]{start, end});
+        }
+    }
+
+    /**
+     * Reads a start tag, or an empty element tag.
+     * @param pos The position of the '&lt;'.
+     * @return The position after the tag, or -1 if it is not well-formed.
+     */
+    private int startTag(int pos) {
+        if(rootSeen && elements.isEmpty()) {
+            return -1;
+        }
+        int nameStart = pos + 1;
+        int i = nameStart;
+        while (i < data.length && !isWhitespace(data[i]) && data[i] != '/' && data[i] != '>') {
+            i++;
+        }
+        if(i == nameStart) {
+            return -1;
+        }
+        Element element = new Element(new String(data, nameStart, i - nameStart, StandardCharsets.UTF_8));
+        int nameEnd = i;
+        boolean empty;
+        while (true) {
+            i = skipWhitespace(i);
+            if(i >= data.length) {
+                return -1;
+            }
+            if(data[i] == '>') {
+                i++;
+                empty = false;
+                break;
+            }
+            if(startsWith(i, "/>")) {
+                i += 2;
+                empty = true;
+                break;
+            }
+            int attributeStart = i;
+            while (i < data.length && !isWhitespace(data[i]) && data[i] != '=' && data[i] != '>') {
+                i++;
+            }
+            String attribute = new String(data, attributeStart, i - attributeStart, StandardCharsets.UTF_8);
+            i = skipWhitespace(i);
+            if(attribute.isEmpty() || i >= data.length || data[i] != '=') {
+                return -1;
+            }
+            i = skipWhitespace(i + 1);
+            if(i >= data.length || (data[i] != '"' && data[i] != '\'')) {
+                return -1;
+            }
+            byte quote = data[i];
+            int valueEnd = i + 1;
+            while (valueEnd < data.length && data[valueEnd] != quote && data[valueEnd] != '<') {
+                valueEnd++;
+            }
+            if(valueEnd >= data.length || data[valueEnd] != quote) {
+                return -1;
+            }
+            if(attribute.equals("xmlns") || attribute.startsWith("xmlns:")) {
+                String prefix = attribute.equals("xmlns") ? "" : attribute.substring(6);
+                element.namespaces.put(prefix, new String(data, attributeStart, valueEnd + 1 - attributeStart,
+                        StandardCharsets.UTF_8));
+            }
+            i = valueEnd + 1;
+        }
+
+        rootSeen = true;
+        if(current != null) {
+            elements.peekLast().hasChildElements = true;
+        }
+        Map<String, String> inherited = null;
+        if(AlmaMetadataRetriever.MARC_RECORD_PATH.size() == path.size() + 1) {
+            inherited = new LinkedHashMap<>();
+            for (Element ancestor : elements) {
+                inherited.putAll(ancestor.namespaces);
+            }
+            inherited.keySet().removeAll(element.namespaces.keySet());
+        }
+        elements.addLast(element);
+        path.add(element.localName);
+        if(current == null && AlmaMetadataRetriever.MARC_RECORD_PATH.equals(path)) {
+            current = new Record(data, pos, nameEnd, inherited.values());
+            element.record = current;
+        } else if((current != null && FIELD_ELEMENTS.contains(element.localName))
+                || AlmaMetadataRetriever.NUM_RESULTS_PATH.equals(path)) {
+            element.text = new ByteArrayOutputStream();
+        }
+        if(empty) {
+            endElement(i);
+        }
+        return i;
+    }
+
+    /**
+     * Reads an end tag.
+     * @param pos The position of the '&lt;/'.
+     * @return The position after the tag, or -1 if it is not well-formed.
+     */
+    private int endTag(int pos) {
+        int end = indexOf(pos + 2, ">");
+        if(end < 0 || elements.isEmpty()) {
+            return -1;
+        }
+        String name = new String(data, pos + 2, end - pos - 2, StandardCharsets.UTF_8).trim();
+        if(!name.equals(elements.peekLast().name)) {
+            return -1;
+        }
+        endElement(end + 1);
+        return end + 1;
+    }
+
+    /**
+     * Closes the innermost open element.
+     * @param end The position after its end tag.
+     */
+    private void endElement(int end) {
+        Element element = elements.removeLast();
+        if(current != null && element.hasChildElements) {
+            // The whitespace between child elements is only indentation
+            current.skipped.addAll(element.whitespace);
+        }
+        if(element.text != null) {
+            String text = element.text.toString(StandardCharsets.UTF_8).trim();
+            if(current != null) {
+                current.fieldValues.add(text);
+            } else {
+                numberOfRecords = text;
+            }
+        }
+        if(element.record != null) {
+            current.end = end;
+            current.skipped.sort(Comparator.comparingInt(range -> range[0]));
+            records.add(current);
+            current = null;
+        }
+        path.remove(path.size() - 1);
+    }
+
+    /**
+     * Decodes text with character references.
+     * @param start The start of the text.
+     * @param end The end of the text.
+     * @param out The output for the decoded UTF-8 text, or null if the text is only checked.
+     * @return Whether the character references could be decoded.
+     */
+    private boolean decode(int start, int end, ByteArrayOutputStream out) {
+        int i = start;
+        while (i < end) {
+            int amp = i;
+            while (amp < end && data[amp] != '&') {
+                amp++;
+            }
+            if(out != null) {
+                out.write(data, i, amp - i);
+            }
+            if(amp == end) {
+                return true;
+            }
+            int semicolon = indexOf(amp, ";");
+            if(semicolon < 0 || semicolon > end) {
+                return false;
+            }
+            String reference = new String(data, amp + 1, semicolon - amp - 1, StandardCharsets.US_ASCII);
+            String decoded = decodeReference(reference);
+            if(decoded == null) {
+                return false;
+            }
+            if(out != null) {
+                out.writeBytes(decoded.getBytes(StandardCharsets.UTF_8));
+            }
+            i = semicolon + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @param reference The character reference without the '&amp;' and ';'.
+     * @return The character, or null if it is not a predefined or numeric character reference.
+     */
+    private static String decodeReference(String reference) {
+        switch (reference) {
+            case "amp": return "&";
+            case "lt": return "<";
+            case "gt": return ">";
+            case "quot": return "\"";
+            case "apos": return "'";
+            default:
+                break;
+        }
+        try {
+            if(reference.startsWith("#x")) {
+                return new String(Character.toChars(Integer.parseInt(reference.substring(2), 16)));
+            } else if(reference.startsWith("#")) {
+                return new String(Character.toChars(Integer.parseInt(reference.substring(1))));
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a valid character number, thus it is not well-formed.
+        }
+        return null;
+    }
+
+    /**
+     * @param start The position of the XML declaration.
+     * @param end The position of its '?&gt;'.
+     * @return Whether it is not an XML declaration, or one without an encoding or with UTF-8 encoding.
+     */
+    private boolean isUtf8Declaration(int start, int end) {
+        String declaration = new String(data, start, end - start, StandardCharsets.US_ASCII);
+        if(!XML_DECLARATION_START.matcher(declaration).lookingAt()) {
+            return true;
+        }
+        Matcher encoding = ENCODING.matcher(declaration);
+        return !encoding.find() || encoding.group(1).equalsIgnoreCase("UTF-8")
+                || encoding.group(1).equalsIgnoreCase("UTF8");
+    }
+
+    /**
+     * @param pos The position to search from.
+     * @param token The ASCII token.
+     * @return The position of the next occurrence of the token, or -1 if it does not occur.
+     */
+    private int indexOf(int pos, String token) {
+        for (int i = pos; i <= data.length - token.length(); i++) {
+            if(startsWith(i, token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param pos The position.
+     * @param token The ASCII token.
+     * @return Whether the token occurs at the position.
+     */
+    private boolean startsWith(int pos, String token) {
+        if(pos + token.length() > data.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if(data[pos + i] != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pos The position.
+     * @param bytes The bytes.
+     * @return Whether the bytes occur at the position.
+     */
+    private boolean startsWith(int pos, byte[] bytes) {
+        if(pos + bytes.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if(data[pos + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pos The position.
+     * @return The position of the first non-whitespace byte at or after the position.
+     */
+    private int skipWhitespace(int pos) {
+        while (pos < data.length && isWhitespace(data[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @param b The byte.
+     * @return Whether it is XML whitespace.
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * An open element.
+     */
+    private static final class Element {
+        /** The name of the element as written, with its prefix.*/
+        final String name;
+        /** The name of the element without its prefix.*/
+        final String localName;
+        /** The namespace declarations of the element, as written, by prefix. The default namespace has prefix "".*/
+        final Map<String, String> namespaces = new LinkedHashMap<>();
+        /** The collected text, or null if the text of the element is not collected.*/
+        ByteArrayOutputStream text = null;
+        /** The record, if the element is a recordData element.*/
+        Record record = null;
+        /** Whether the element has child elements. Only noted within a record.*/
+        boolean hasChildElements = false;
+        /** The byte ranges of the text of the element, which is only whitespace. Only noted within a record.*/
+        final List<int[]> whitespace = new ArrayList<>();
+
+        /**
+         * Constructor.
+         * @param name The name of the element as written.
+         */
+        Element(String name) {
+            this.name = name;
+            this.localName = name.substring(name.indexOf(':') + 1);
+        }
+    }
+
+    /**
+     * The result of slicing an SRU response.
+     */
+    public static final class SruRecords {
+        /** The number of records found by the search, or null if the response does not tell.*/
+        private final String numberOfRecords;
+        /** The records in the response.*/
+        private final List<Record> records;
+
+        /**
+         * Constructor.
+         * @param numberOfRecords The number of records found by the search, or null.
+         * @param records The records in the response.
+         */
+        SruRecords(String numberOfRecords, List<Record> records) {
+            this.numberOfRecords = numberOfRecords;
+            this.records = Collections.unmodifiableList(records);
+        }
+
+        /** @return The trimmed text of the numberOfRecords element, or null if the response does not have it.*/
+        public String getNumberOfRecords() {
+            return numberOfRecords;
+        }
+
+        /** @return The records in the response, in the order of the response.*/
+        public List<Record> getRecords() {
+            return records;
+        }
+    }
+
+    /**
+     * The byte range of a recordData element within the response.
+     */
+    public static final class Record {
+        /** The response.*/
+        private final byte[] data;
+        /** The position of the start tag.*/
+        private final int start;
+        /** The position after the element name in the start tag, where the inherited namespaces are inserted.*/
+        private final int nameEnd;
+        /** The namespace declarations of the ancestors, as written, which are not redeclared on the element.*/
+        private final List<String> inheritedNamespaces;
+        /** The trimmed text of the control fields and subfields.*/
+        private final Set<String> fieldValues = new HashSet<>();
+        /** The byte ranges left out, when the record is copied compactly, in the order of the response.*/
+        private final List<int[]> skipped = new ArrayList<>();
+        /** The position after the end tag.*/
+        private int end;
+
+        /**
+         * Constructor.
+         * @param data The response.
+         * @param start The position of the start tag.
+         * @param nameEnd The position after the element name in the start tag.
+         * @param inheritedNamespaces The namespace declarations of the ancestors, which are not redeclared.
+         */
+        Record(byte[] data, int start, int nameEnd, Iterable<String> inheritedNamespaces) {
+            this.data = data;
+            this.start = start;
+            this.nameEnd = nameEnd;
+            this.inheritedNamespaces = new ArrayList<>();
+            inheritedNamespaces.forEach(this.inheritedNamespaces::add);
+        }
+
+        /** @return The trimmed text of the control fields and subfields of the record.*/
+        public Set<String> getFieldValues() {
+            return Collections.unmodifiableSet(fieldValues);
+        }
+
+        /**
+         * Writes the recordData element as a standalone UTF-8 document. The bytes are copied as they are in the
+         * response, except that the namespaces declared by the ancestors are declared on the element.
+         * @param out The output stream.
+         * @throws IOException If the record cannot be written.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            writeTo(out, false);
+        }
+
+        /**
+         * Writes the recordData element as a standalone UTF-8 document. The bytes are copied as they are in the
+         * response, except that the namespaces declared by the ancestors are declared on the element.
+         * @param out The output stream.
+         * @param compact Whether the whitespace between the elements, the comments and the processing instructions
+         * are left out. Otherwise the record keeps the indentation of the response.
+         * @throws IOException If the record cannot be written.
+         */
+        public void writeTo(OutputStream out, boolean compact) throws IOException {
+            out.write(XML_DECLARATION);
+            if(!compact) {
+                out.write('\n');
+            }
+            out.write(data, start, nameEnd - start);
+            for (String namespace : inheritedNamespaces) {
+                out.write(' ');
+                out.write(namespace.getBytes(StandardCharsets.UTF_8));
+            }
+            int pos = nameEnd;
+            if(compact) {
+                for (int[] range : skipped) {
+                    out.write(data, pos, range[0] - pos);
+                    pos = range[1];
+                }
+            }
+            out.write(data, pos, end - pos);
+        }
+    }
+}
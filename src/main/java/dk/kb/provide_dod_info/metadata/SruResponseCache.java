@@ -0,0 +1,415 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent on-disk cache for the SRU responses from Alma.
+ * The responses are stored gzip compressed, in a file named after a hash of the normalized request URL.
+ * An entry expires, when it is older than the time-to-live. When the cache grows beyond its maximum size, the
+ * least recently used entries are evicted.
+ *
+ * The cache can be shared by several JVMs: entries are written to a temporary file and atomically moved into place,
+ * so readers never see a partial entry, and the eviction is guarded by a file lock.
+ */
+public class SruResponseCache {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(SruResponseCache.class);
+
+    /** The suffix of the cache entries.*/
+    protected static final String ENTRY_SUFFIX = ".xml.gz";
+    /** The suffix of entries being written.*/
+    protected static final String TMP_SUFFIX = ".tmp";
+    /** The name of the lock file guarding the eviction.*/
+    protected static final String LOCK_FILE_NAME = ".lock";
+    /** The number of stored entries between checking the size of the cache.*/
+    protected static final int STORES_BETWEEN_SIZE_CHECKS = 100;
+    /** When evicting, entries are removed until the cache is below this fraction of the maximum size.*/
+    protected static final double EVICTION_TARGET = 0.9;
+
+    /** The directory of the cache.*/
+    protected final File cacheDir;
+    /** The time-to-live for the entries, in milliseconds.*/
+    protected final long ttlMillis;
+    /** The maximum size of the cache in bytes.*/
+    protected final long maxBytes;
+
+    /** The number of requests answered from the cache.*/
+    protected final AtomicLong hits = new AtomicLong();
+    /** The number of requests not answered from the cache.*/
+    protected final AtomicLong misses = new AtomicLong();
+    /** The number of stored entries since the size of the cache was last checked.*/
+    protected final AtomicInteger storesSinceSizeCheck = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param cacheDir The directory of the cache. It is created, if it does not exist.
+     * @param ttlMillis The time-to-live for the entries, in milliseconds.
+     * @param maxBytes The maximum size of the cache in bytes.
+     * @throws IOException If the cache directory cannot be created.
+     */
+    public SruResponseCache(File cacheDir, long ttlMillis, long maxBytes) throws IOException {
+        ArgumentCheck.checkNotNull(cacheDir, "File cacheDir");
+        ArgumentCheck.checkPositiveLong(ttlMillis, "long ttlMillis");
+        ArgumentCheck.checkPositiveLong(maxBytes, "long maxBytes");
+        this.cacheDir = FileUtils.createDirectory(cacheDir.getAbsolutePath());
+        this.ttlMillis = ttlMillis;
+        this.maxBytes = maxBytes;
+        log.info("Using SRU response cache in '{}' (time-to-live {} hours, max {} MB)", cacheDir.getAbsolutePath(),
+                ttlMillis / 3600000L, maxBytes / (1024 * 1024));
+    }
+
+    /**
+     * Opens the cached response for a request, if it is cached and not expired.
+     * The response is decompressed, while it is read.
+     * @param requestUrl The SRU request URL.
+     * @return The stream with the response, which must be closed by the caller, or null if it is not cached.
+     */
+    public InputStream open(String requestUrl) {
+        ArgumentCheck.checkNotNullOrEmpty(requestUrl, "String requestUrl");
+        Path entry = getEntryPath(requestUrl);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+            if(isExpired(attributes)) {
+                log.trace("Cache entry for '{}' has expired", requestUrl);
+                misses.incrementAndGet();
+                return null;
+            }
+            // The access time is updated before the file is opened, so the file is not left open, if it fails.
+            Files.setAttribute(entry, "lastAccessTime", FileTime.fromMillis(System.currentTimeMillis()));
+            InputStream in = Files.newInputStream(entry);
+            InputStream res;
+            try {
+                res = new GZIPInputStream(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            hits.incrementAndGet();
+            return res;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            log.warn("Could not read the cache entry '{}'. Removing it.", entry, e);
+            deleteQuietly(entry);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response for a request. Failing to store the response is logged, but otherwise ignored.
+     * @param requestUrl The SRU request URL.
+     * @param content The response.
+     */
+    public void store(String requestUrl, byte[] content) {
+        ArgumentCheck.checkNotNull(content, "byte[] content");
+        try (PendingEntry entry = newEntry(requestUrl)) {
+            entry.write(content);
+            entry.commit();
+        }
+    }
+
+    /**
+     * Starts a new entry for a request, so the response can be stored while it is being downloaded.
+     * The entry only replaces a previous entry, when it is committed. Failing to write the entry is logged,
+     * but otherwise ignored, so the download is not interrupted by the cache.
+     * @param requestUrl The SRU request URL.
+     * @return The entry, which must be closed.
+     */
+    public PendingEntry newEntry(String requestUrl) {
+        ArgumentCheck.checkNotNullOrEmpty(requestUrl, "String requestUrl");
+        return new PendingEntry(requestUrl, getEntryPath(requestUrl));
+    }
+
+    /**
+     * Removes the expired entries, and if the cache is still larger than the maximum size, then the least
+     * recently used entries are removed. Only one JVM (and one thread) evicts at a time.
+     */
+    public synchronized void evict() {
+        File lockFile = new File(cacheDir, LOCK_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if(lock == null) {
+                log.debug("Another process is evicting from the SRU cache");
+                return;
+            }
+            List<CacheEntry> entries = listEntries();
+            long size = 0;
+            List<CacheEntry> live = new ArrayList<>();
+            for (CacheEntry entry : entries) {
+                if(isExpired(entry.attributes)) {
+                    deleteQuietly(entry.path);
+                } else {
+                    live.add(entry);
+                    size += entry.attributes.size();
+                }
+            }
+            if(size <= maxBytes) {
+                return;
+            }
+            long target = (long) (maxBytes * EVICTION_TARGET);
+            live.sort(Comparator.comparing(e -> e.attributes.lastAccessTime()));
+            int evicted = 0;
+            for (CacheEntry entry : live) {
+                if(size <= target) {
+                    break;
+                }
+                deleteQuietly(entry.path);
+                size -= entry.attributes.size();
+                evicted++;
+            }
+            log.info("Evicted {} entries from the SRU cache", evicted);
+        } catch (IOException e) {
+            log.warn("Could not evict entries from the SRU cache", e);
+        }
+    }
+
+    /** @return The number of requests answered from the cache.*/
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return The number of requests not answered from the cache.*/
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Normalizes an SRU request URL, so requests with the same parameters in a different order, or with empty
+     * parameters, have the same key.
+     * @param requestUrl The SRU request URL.
+     * @return The normalized request.
+     */
+    protected static String normalize(String requestUrl) {
+        int queryStart = requestUrl.indexOf('?');
+        if(queryStart < 0) {
+            return requestUrl;
+        }
+        String parameters = Arrays.stream(requestUrl.substring(queryStart + 1).split("&"))
+                .filter(p -> !p.isEmpty())
+                .sorted()
+                .collect(Collectors.joining("&"));
+        return requestUrl.substring(0, queryStart) + "?" + parameters;
+    }
+
+    /**
+     * @param requestUrl The SRU request URL.
+     * @return The path of the cache entry for the request.
+     */
+    protected Path getEntryPath(String requestUrl) {
+        String hash = sha256(normalize(requestUrl));
+        // Two levels, so a single directory does not end up with all the entries
+        return cacheDir.toPath().resolve(hash.substring(0, 2)).resolve(hash + ENTRY_SUFFIX);
+    }
+
+    /**
+     * @param attributes The attributes of a cache entry.
+     * @return Whether the entry is older than the time-to-live.
+     */
+    protected boolean isExpired(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().toMillis() + ttlMillis < System.currentTimeMillis();
+    }
+
+    /**
+     * @return All the entries in the cache.
+     * @throws IOException If the cache directory cannot be traversed.
+     */
+    protected List<CacheEntry> listEntries() throws IOException {
+        List<CacheEntry> res = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(cacheDir.toPath(), 2)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if(!path.getFileName().toString().endsWith(ENTRY_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    res.add(new CacheEntry(path, Files.readAttributes(path, BasicFileAttributes.class)));
+                } catch (NoSuchFileException e) {
+                    // Removed by another process in the meantime
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Deletes a file, and ignores failures. Another process might already have deleted it.
+     * @param path The file to delete.
+     */
+    protected static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.debug("Could not delete '{}'", path, e);
+        }
+    }
+
+    /**
+     * @param value The value to hash.
+     * @return The hex encoded SHA-256 hash of the value.
+     */
+    protected static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder res = new StringBuilder();
+            for (byte b : digest) {
+                res.append(String.format("%02x", b));
+            }
+            return res.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * An entry being written. The response is compressed into a temporary file, which is atomically moved into
+     * place, when the entry is committed. If it is closed without being committed, the temporary file is deleted.
+     */
+    public class PendingEntry extends OutputStream {
+        /** The SRU request URL.*/
+        protected final String requestUrl;
+        /** The path of the entry.*/
+        protected final Path entry;
+        /** The temporary file, which the response is written to.*/
+        protected final Path tmp;
+        /** The compressing stream to the temporary file. Null, if writing the entry has failed.*/
+        protected OutputStream out;
+
+        /**
+         * Constructor.
+         * @param requestUrl The SRU request URL.
+         * @param entry The path of the entry.
+         */
+        protected PendingEntry(String requestUrl, Path entry) {
+            this.requestUrl = requestUrl;
+            this.entry = entry;
+            this.tmp = entry.resolveSibling(entry.getFileName() + "." + UUID.randomUUID() + TMP_SUFFIX);
+            try {
+                Files.createDirectories(entry.getParent());
+                this.out = new GZIPOutputStream(Files.newOutputStream(tmp));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            if(out != null) {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if(out != null) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Finishes the entry and moves it into place, so it replaces any previous entry for the request.
+         */
+        public void commit() {
+            if(out == null) {
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if(storesSinceSizeCheck.incrementAndGet() >= STORES_BETWEEN_SIZE_CHECKS) {
+                storesSinceSizeCheck.set(0);
+                evict();
+            }
+        }
+
+        /**
+         * Removes the temporary file, if the entry has not been committed.
+         */
+        @Override
+        public void close() {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.trace("Could not close the cache entry '{}'", tmp, e);
+                }
+                out = null;
+            }
+            deleteQuietly(tmp);
+        }
+
+        /**
+         * Gives up the entry.
+         * @param e The cause.
+         */
+        protected void fail(IOException e) {
+            log.warn("Could not store the response for '{}' in the cache", requestUrl, e);
+            close();
+        }
+    }
+
+    /**
+     * A cache entry with its file attributes.
+     */
+    protected static class CacheEntry {
+        /** The path of the entry.*/
+        final Path path;
+        /** The file attributes of the entry.*/
+        final BasicFileAttributes attributes;
+
+        CacheEntry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package dk.kb.provide_dod_info.metadata.xsl;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXParseException;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -37,6 +38,17 @@ public class XmlErrorHandler implements ErrorHandler {
         return errors.size() != 0 || fatalErrors.size() != 0 || warnings.size() != 0;
     }
 
+    /**
+     * Returns all the recorded messages: the fatal errors, then the errors and then the warnings.
+     * @return all the recorded messages
+     */
+    public List<String> getMessages() {
+        List<String> messages = new ArrayList<>(fatalErrors);
+        messages.addAll(errors);
+        messages.addAll(warnings);
+        return messages;
+    }
+
     @Override
     public void warning(SAXParseException exception)  {
         warnings.add(exception.getMessage());
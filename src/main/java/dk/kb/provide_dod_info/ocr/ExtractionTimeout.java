@@ -0,0 +1,52 @@
+package dk.kb.provide_dod_info.ocr;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.io.File;
+
+/**
+ * The deadline for extracting the text of a PDF file, which grows with the size of the file: a number of seconds
+ * for any file, plus a number of seconds per started megabyte. It is immutable.
+ */
+public final class ExtractionTimeout {
+    /** No deadline: the extraction may run until it is done.*/
+    public static final ExtractionTimeout NONE = new ExtractionTimeout(0, 0);
+
+    /** The number of bytes in a megabyte.*/
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    /** The number of seconds for any file.*/
+    private final long seconds;
+    /** The number of seconds per started megabyte of the file.*/
+    private final long secondsPerMb;
+
+    /**
+     * Constructor.
+     * @param seconds The number of seconds for any file.
+     * @param secondsPerMb The number of seconds per started megabyte of the file.
+     */
+    public ExtractionTimeout(long seconds, long secondsPerMb) {
+        ArgumentCheck.checkNotNegativeLong(seconds, "long seconds");
+        ArgumentCheck.checkNotNegativeLong(secondsPerMb, "long secondsPerMb");
+        this.seconds = seconds;
+        this.secondsPerMb = secondsPerMb;
+    }
+
+    /**
+     * @param pdfFile The PDF file.
+     * @return The number of milliseconds the text of the file may take to extract, or 0 if there is no deadline.
+     */
+    public long getMillis(File pdfFile) {
+        if(seconds == 0 && secondsPerMb == 0) {
+            return 0;
+        }
+        long megabytes = (pdfFile.length() + MEGABYTE - 1) / MEGABYTE;
+        return 1000L * (seconds + secondsPerMb * megabytes);
+    }
+
+    @Override
+    public String toString() {
+        return seconds == 0 && secondsPerMb == 0 ? "no deadline"
+                : seconds + " seconds + " + secondsPerMb + " seconds per MB";
+    }
+}
@@ -0,0 +1,29 @@
+package dk.kb.provide_dod_info.ocr;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown when the text of a PDF file is not extracted by its deadline, and the extraction has been stopped.
+ */
+public class ExtractionTimeoutException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** The PDF file.*/
+    private final File pdfFile;
+
+    /**
+     * Constructor.
+     * @param pdfFile The PDF file.
+     * @param timeoutMillis The number of milliseconds the extraction was allowed to take.
+     */
+    public ExtractionTimeoutException(File pdfFile, long timeoutMillis) {
+        super("The text of '" + pdfFile + "' was not extracted within " + timeoutMillis + " ms");
+        this.pdfFile = pdfFile;
+    }
+
+    /** @return The PDF file.*/
+    public File getPdfFile() {
+        return pdfFile;
+    }
+}
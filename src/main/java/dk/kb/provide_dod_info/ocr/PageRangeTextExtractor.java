@@ -0,0 +1,230 @@
+package dk.kb.provide_dod_info.ocr;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.OrderedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts the text of large PDF files in ranges of pages at the same time, so a few very large books do not set
+ * the duration of the run. The texts of the ranges are written in the order of the pages, thus the text is the same
+ * as when the whole file is extracted at once.
+ *
+ * Only files of at least the given number of bytes have their pages counted, and only files with more than the given
+ * number of pages per range are split. Other files are extracted by the wrapped extractor as they are. The wrapped
+ * extractor still limits how many files or ranges are extracted at the same time.
+ *
+ * A split file has one deadline for all its ranges, from when its extraction starts, and the remaining ranges are
+ * cancelled, when it expires. The wrapped extractor should only read the pages of each range, like pdftotext does.
+ * PDFBox loads the whole document for each range, thus splitting does not make it faster.
+ */
+public class PageRangeTextExtractor implements TextExtractor {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(PageRangeTextExtractor.class);
+
+    /** The extractor of the files and the ranges of pages.*/
+    protected final TextExtractor extractor;
+    /** The workers extracting the ranges of pages.*/
+    protected final ExecutorService workers;
+    /** The minimum number of bytes of a file, before its pages are counted.*/
+    protected final long minBytes;
+    /** The number of pages in each range.*/
+    protected final int pagesPerRange;
+
+    /** The number of files extracted in ranges of pages.*/
+    protected final AtomicLong splitFiles = new AtomicLong();
+    /** The number of ranges of pages extracted.*/
+    protected final AtomicLong ranges = new AtomicLong();
+    /** The number of split files, whose ranges were not all extracted by the deadline of the file.*/
+    protected final AtomicLong timedOut = new AtomicLong();
+
+    /** The deadline for extracting all the ranges of a file.*/
+    protected final ExtractionTimeout timeout;
+
+    /**
+     * Constructor, for files without a deadline.
+     * @param extractor The extractor of the files and the ranges of pages.
+     * @param workers The number of workers extracting the ranges of pages.
+     * @param minBytes The minimum number of bytes of a file, before its pages are counted.
+     * @param pagesPerRange The number of pages in each range.
+     */
+    public PageRangeTextExtractor(TextExtractor extractor, int workers, long minBytes, int pagesPerRange) {
+        this(extractor, workers, minBytes, pagesPerRange, ExtractionTimeout.NONE);
+    }
+
+    /**
+     * Constructor.
+     * @param extractor The extractor of the files and the ranges of pages.
+     * @param workers The number of workers extracting the ranges of pages.
+     * @param minBytes The minimum number of bytes of a file, before its pages are counted.
+     * @param pagesPerRange The number of pages in each range.
+     * @param timeout The deadline for extracting all the ranges of a file.
+     */
+    public PageRangeTextExtractor(TextExtractor extractor, int workers, long minBytes, int pagesPerRange,
+                                  ExtractionTimeout timeout) {
+        ArgumentCheck.checkNotNull(extractor, "TextExtractor extractor");
+        ArgumentCheck.checkPositiveInt(workers, "int workers");
+        ArgumentCheck.checkPositiveLong(minBytes, "long minBytes");
+        ArgumentCheck.checkPositiveInt(pagesPerRange, "int pagesPerRange");
+        ArgumentCheck.checkNotNull(timeout, "ExtractionTimeout timeout");
+        this.extractor = extractor;
+        this.workers = Executors.newFixedThreadPool(workers, OrderedExecutor.namedThreads("page-range"));
+        this.minBytes = minBytes;
+        this.pagesPerRange = pagesPerRange;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void extract(File pdfFile, OutputStream out) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pdfFile, "File pdfFile");
+        ArgumentCheck.checkNotNull(out, "OutputStream out");
+        long start = System.currentTimeMillis();
+        int pages = getPagesToSplit(pdfFile);
+        if(pages == 0) {
+            extractor.extract(pdfFile, out);
+        } else {
+            extractRanges(pdfFile, pages, start, out);
+        }
+    }
+
+    /**
+     * Extracts the text of a PDF file to a text file. Files, which are not split, are extracted by the wrapped
+     * extractor directly to the text file.
+     * @param pdfFile The PDF file.
+     * @param textFile The text file. It is replaced, if it exists.
+     * @throws IOException If the text cannot be extracted or written.
+     */
+    @Override
+    public void extract(File pdfFile, File textFile) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pdfFile, "File pdfFile");
+        ArgumentCheck.checkNotNull(textFile, "File textFile");
+        if(getPagesToSplit(pdfFile) == 0) {
+            extractor.extract(pdfFile, textFile);
+        } else {
+            TextExtractor.super.extract(pdfFile, textFile);
+        }
+    }
+
+    @Override
+    public void extract(File pdfFile, int firstPage, int lastPage, OutputStream out) throws IOException {
+        extractor.extract(pdfFile, firstPage, lastPage, out);
+    }
+
+    @Override
+    public int getPageCount(File pdfFile) throws IOException {
+        return extractor.getPageCount(pdfFile);
+    }
+
+    @Override
+    public long getTimedOut() {
+        return extractor.getTimedOut() + timedOut.get();
+    }
+
+    /**
+     * Finds the number of pages of a file, which must be split into ranges of pages.
+     * If the pages cannot be counted, the file is not split, unless the counting timed out.
+     * @param pdfFile The PDF file.
+     * @return The number of pages, or 0 if the file is not split.
+     * @throws ExtractionTimeoutException If the pages were not counted by the deadline.
+     */
+    protected int getPagesToSplit(File pdfFile) throws ExtractionTimeoutException {
+        if(pdfFile.length() < minBytes) {
+            return 0;
+        }
+        try {
+            int pages = extractor.getPageCount(pdfFile);
+            return pages > pagesPerRange ? pages : 0;
+        } catch (ExtractionTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            log.warn("Could not count the pages of '{}'. Extracting it as a whole.", pdfFile, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Extracts the ranges of pages of a file on the workers, and writes their texts in the order of the pages.
+     * @param pdfFile The PDF file.
+     * @param pages The number of pages.
+     * @param start The time the extraction of the file started, in milliseconds since the epoch.
+     * @param out The output stream for the text.
+     * @throws IOException If a range cannot be extracted, or the text cannot be written.
+     * @throws ExtractionTimeoutException If the ranges were not all extracted by the deadline of the file.
+     */
+    protected void extractRanges(File pdfFile, int pages, long start, OutputStream out) throws IOException {
+        long timeoutMillis = timeout.getMillis(pdfFile);
+        List<Future<ByteArrayOutputStream>> texts = new ArrayList<>();
+        for (int firstPage = 1; firstPage <= pages; firstPage += pagesPerRange) {
+            int first = firstPage;
+            int last = Math.min(firstPage + pagesPerRange - 1, pages);
+            texts.add(workers.submit(() -> {
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                extractor.extract(pdfFile, first, last, text);
+                return text;
+            }));
+        }
+        log.debug("Extracting the {} pages of '{}' in {} ranges", pages, pdfFile, texts.size());
+        try {
+            for (Future<ByteArrayOutputStream> text : texts) {
+                if(timeoutMillis == 0) {
+                    text.get().writeTo(out);
+                } else {
+                    long remaining = start + timeoutMillis - System.currentTimeMillis();
+                    text.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS).writeTo(out);
+                }
+            }
+        } catch (TimeoutException e) {
+            log.warn("Stopping the extraction of '{}', since its ranges were not done by the deadline", pdfFile);
+            timedOut.incrementAndGet();
+            throw new ExtractionTimeoutException(pdfFile, timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while extracting '" + pdfFile + "'", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not extract the text of '" + pdfFile + "'", e.getCause());
+        } finally {
+            // The remaining ranges are not needed, when one has failed or the deadline has expired
+            texts.forEach(text -> text.cancel(true));
+        }
+        splitFiles.incrementAndGet();
+        ranges.addAndGet(texts.size());
+    }
+
+    /** @return The number of files extracted in ranges of pages.*/
+    public long getSplitFiles() {
+        return splitFiles.get();
+    }
+
+    /** @return The number of ranges of pages extracted.*/
+    public long getRanges() {
+        return ranges.get();
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        extractor.close();
+    }
+
+    @Override
+    public String toString() {
+        return extractor + ", " + splitFiles.get() + " files split into " + ranges.get() + " ranges of pages";
+    }
+}
@@ -0,0 +1,311 @@
+package dk.kb.provide_dod_info.ocr;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.OrderedExecutor;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts the text of PDF files within the JVM with Apache PDFBox, so no process is started per file.
+ * The text is written like 'pdftotext' does: UTF-8, with '\n' line endings and a form feed after each page.
+ *
+ * The files are extracted on the calling threads, but at most a fixed number at the same time. Each document keeps
+ * at most the given number of bytes in memory, and the rest in temporary files, so the memory use is bounded by
+ * the number of documents times the memory per document.
+ *
+ * A thread extracting a document cannot be killed like a process. Instead a watchdog closes the file and the
+ * document at their deadline, which makes the loading, the page counting or the extraction fail, when it next reads
+ * from them.
+ */
+public class PdfBoxTextExtractor implements TextExtractor {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(PdfBoxTextExtractor.class);
+
+    /** The name of the extractor.*/
+    protected static final String NAME = "pdfbox";
+    /** The line separator of the text.*/
+    protected static final String LINE_SEPARATOR = "\n";
+    /** The end of each page of the text: the end of its last line and a form feed, like pdftotext.*/
+    protected static final String PAGE_END = LINE_SEPARATOR + "\f";
+
+    /** The slots for the documents being extracted.*/
+    protected final Semaphore slots;
+    /** The maximum number of bytes of each document kept in memory.*/
+    protected final long maxMemoryBytes;
+
+    /** The number of extracted documents, or ranges of pages.*/
+    protected final AtomicLong extracted = new AtomicLong();
+    /** The number of documents, which could not be extracted, other than those timed out.*/
+    protected final AtomicLong failed = new AtomicLong();
+    /** The number of documents, which were closed by the watchdog at their deadline.*/
+    protected final AtomicLong timedOut = new AtomicLong();
+
+    /** The deadline for extracting a document.*/
+    protected final ExtractionTimeout timeout;
+    /** The watchdog closing the documents at their deadline.*/
+    protected final ScheduledExecutorService watchdog;
+
+    /**
+     * Constructor, for documents without a deadline.
+     * @param documents The maximum number of documents extracted at the same time.
+     * @param maxMemoryBytes The maximum number of bytes of each document kept in memory.
+     */
+    public PdfBoxTextExtractor(int documents, long maxMemoryBytes) {
+        this(documents, maxMemoryBytes, ExtractionTimeout.NONE);
+    }
+
+    /**
+     * Constructor.
+     * @param documents The maximum number of documents extracted at the same time.
+     * @param maxMemoryBytes The maximum number of bytes of each document kept in memory.
+     * @param timeout The deadline for extracting a document.
+     */
+    public PdfBoxTextExtractor(int documents, long maxMemoryBytes, ExtractionTimeout timeout) {
+        ArgumentCheck.checkPositiveInt(documents, "int documents");
+        ArgumentCheck.checkPositiveLong(maxMemoryBytes, "long maxMemoryBytes");
+        ArgumentCheck.checkNotNull(timeout, "ExtractionTimeout timeout");
+        this.slots = new Semaphore(documents, true);
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.timeout = timeout;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(OrderedExecutor.namedThreads("pdfbox-watchdog"));
+    }
+
+    @Override
+    public void extract(File pdfFile, OutputStream out) throws IOException {
+        extract(pdfFile, 1, Integer.MAX_VALUE, out);
+    }
+
+    @Override
+    public void extract(File pdfFile, int firstPage, int lastPage, OutputStream out) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pdfFile, "File pdfFile");
+        ArgumentCheck.checkPositiveInt(firstPage, "int firstPage");
+        ArgumentCheck.checkTrue(lastPage >= firstPage, "The last page must not be before the first page");
+        ArgumentCheck.checkNotNull(out, "OutputStream out");
+        acquireSlot(pdfFile);
+        boolean success = false;
+        Deadline deadline = new Deadline(pdfFile, timeout.getMillis(pdfFile));
+        try (deadline; PDDocument document = load(pdfFile, deadline)) {
+            // The stripper is not thread-safe, thus each document has its own
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setLineSeparator(LINE_SEPARATOR);
+            stripper.setPageEnd(PAGE_END);
+            stripper.setStartPage(firstPage);
+            stripper.setEndPage(lastPage);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            stripper.writeText(document, writer);
+            writer.flush();
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            throw deadline.checkExpired(e);
+        } finally {
+            slots.release();
+            if(success) {
+                extracted.incrementAndGet();
+            } else if(!deadline.isExpired()) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int getPageCount(File pdfFile) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pdfFile, "File pdfFile");
+        acquireSlot(pdfFile);
+        Deadline deadline = new Deadline(pdfFile, timeout.getMillis(pdfFile));
+        try (deadline; PDDocument document = load(pdfFile, deadline)) {
+            return document.getNumberOfPages();
+        } catch (IOException | RuntimeException e) {
+            throw deadline.checkExpired(e);
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * Loads a document like {@link PDDocument#load(File, MemoryUsageSetting)}, but with the file and the document
+     * closed by the watchdog at the deadline.
+     * @param pdfFile The PDF file.
+     * @param deadline The deadline of the document.
+     * @return The document.
+     * @throws IOException If the document cannot be loaded.
+     */
+    protected PDDocument load(File pdfFile, Deadline deadline) throws IOException {
+        RandomAccessRead source = deadline.register(openSource(pdfFile));
+        ScratchFile scratchFile = new ScratchFile(MemoryUsageSetting.setupMixed(maxMemoryBytes));
+        try {
+            PDFParser parser = new PDFParser(source, "", scratchFile);
+            parser.parse();
+            return deadline.register(parser.getPDDocument());
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(scratchFile);
+            IOUtils.closeQuietly(source);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a PDF file for loading its document.
+     * @param pdfFile The PDF file.
+     * @return The file for reading.
+     * @throws IOException If the file cannot be opened.
+     */
+    protected RandomAccessRead openSource(File pdfFile) throws IOException {
+        return new RandomAccessBufferedFileInputStream(pdfFile);
+    }
+
+    /**
+     * Waits for a slot for a document.
+     * @param pdfFile The PDF file, which will be loaded.
+     */
+    protected void acquireSlot(File pdfFile) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to extract '" + pdfFile + "'", e);
+        }
+    }
+
+    /** @return The number of extracted documents.*/
+    public long getExtracted() {
+        return extracted.get();
+    }
+
+    /** @return The number of documents, which could not be extracted.*/
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * The deadline of a document. At the deadline the watchdog closes the file and the document, which have been
+     * registered, and anything registered after the deadline is closed at once. Closing the deadline cancels it.
+     */
+    protected class Deadline implements Closeable {
+        /** The PDF file.*/
+        protected final File pdfFile;
+        /** The number of milliseconds the document may take, or 0 if there is no deadline.*/
+        protected final long timeoutMillis;
+        /** The file and the document, which are closed at the deadline.*/
+        protected final List<Closeable> resources = new ArrayList<>();
+        /** The watchdog task, or null if there is no deadline.*/
+        protected final ScheduledFuture<?> task;
+        /** Whether the deadline has expired.*/
+        protected boolean expired = false;
+
+        /**
+         * Constructor. Starts the deadline.
+         * @param pdfFile The PDF file.
+         * @param timeoutMillis The number of milliseconds the document may take, or 0 if there is no deadline.
+         */
+        protected Deadline(File pdfFile, long timeoutMillis) {
+            this.pdfFile = pdfFile;
+            this.timeoutMillis = timeoutMillis;
+            this.task = timeoutMillis == 0 ? null
+                    : watchdog.schedule(this::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Registers a file or a document to close at the deadline.
+         * @param resource The file or the document.
+         * @return The file or the document.
+         */
+        protected synchronized <T extends Closeable> T register(T resource) {
+            if(expired) {
+                IOUtils.closeQuietly(resource);
+            } else {
+                resources.add(resource);
+            }
+            return resource;
+        }
+
+        /**
+         * Closes the registered file and document, from the watchdog.
+         */
+        protected void expire() {
+            List<Closeable> toClose;
+            synchronized (this) {
+                expired = true;
+                toClose = new ArrayList<>(resources);
+            }
+            log.warn("Stopping the extraction of '{}', since it was not done by the deadline", pdfFile);
+            for (Closeable resource : toClose) {
+                try {
+                    resource.close();
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Could not close '{}' of '{}'", resource, pdfFile, e);
+                }
+            }
+        }
+
+        /** @return Whether the deadline has expired.*/
+        protected synchronized boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Gives the exception to throw for a failure. When the deadline has expired, the file or the document was
+         * closed under the reader, thus any failure is due to the deadline.
+         * @param e The failure.
+         * @return The failure, or an {@link ExtractionTimeoutException} if the deadline has expired.
+         */
+        protected IOException checkExpired(Exception e) {
+            if(isExpired()) {
+                timedOut.incrementAndGet();
+                return new ExtractionTimeoutException(pdfFile, timeoutMillis);
+            }
+            if(e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            return (IOException) e;
+        }
+
+        @Override
+        public void close() {
+            if(task != null) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // The documents are extracted on the calling threads, thus only the watchdog is stopped
+        watchdog.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return NAME + ": " + extracted.get() + " documents extracted, " + failed.get() + " failed, " + timedOut.get()
+                + " timed out";
+    }
+}
@@ -0,0 +1,158 @@
+package dk.kb.provide_dod_info.ocr;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the text of PDF files with the external 'pdftotext' command (from poppler-utils), which must be installed.
+ * The processes are run in a {@link ProcessPool}, which limits how many run at the same time, and kills the
+ * processes, which are not done by the deadline for their file.
+ */
+public class PdfToTextExtractor implements TextExtractor {
+    /** The pdftotext command.*/
+    protected static final String PDFTOTEXT = "pdftotext";
+    /** The pdftotext arguments for UTF-8 text, independent of the locale.*/
+    protected static final List<String> ENCODING_ARGUMENTS = List.of("-enc", "UTF-8");
+    /** The pdftotext output file argument for writing the text to stdout.*/
+    protected static final String STDOUT = "-";
+    /** The pdfinfo command, from poppler-utils like pdftotext, for counting the pages.*/
+    protected static final String PDFINFO = "pdfinfo";
+    /** The start of the line with the number of pages in the output of pdfinfo.*/
+    protected static final String PAGES_PREFIX = "Pages:";
+
+    /** The pool running the pdftotext processes.*/
+    protected final ProcessPool pool;
+    /** The deadline for the processes of a file.*/
+    protected final ExtractionTimeout timeout;
+
+    /**
+     * Constructor, for processes without a deadline.
+     * @param processes The maximum number of pdftotext processes running at the same time.
+     */
+    public PdfToTextExtractor(int processes) {
+        this(processes, ExtractionTimeout.NONE);
+    }
+
+    /**
+     * Constructor.
+     * @param processes The maximum number of pdftotext processes running at the same time.
+     * @param timeout The deadline for the processes of a file.
+     */
+    public PdfToTextExtractor(int processes, ExtractionTimeout timeout) {
+        ArgumentCheck.checkNotNull(timeout, "ExtractionTimeout timeout");
+        this.pool = new ProcessPool(processes);
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void extract(File pdfFile, OutputStream out) throws IOException {
+        ArgumentCheck.checkNotNull(out, "OutputStream out");
+        run(pdfFile, List.of(), STDOUT, out);
+    }
+
+    @Override
+    public void extract(File pdfFile, int firstPage, int lastPage, OutputStream out) throws IOException {
+        ArgumentCheck.checkPositiveInt(firstPage, "int firstPage");
+        ArgumentCheck.checkTrue(lastPage >= firstPage, "The last page must not be before the first page");
+        ArgumentCheck.checkNotNull(out, "OutputStream out");
+        run(pdfFile, List.of("-f", Integer.toString(firstPage), "-l", Integer.toString(lastPage)), STDOUT, out);
+    }
+
+    /**
+     * Counts the pages of a PDF file with pdfinfo.
+     * @param pdfFile The PDF file.
+     * @return The number of pages.
+     * @throws IOException If pdfinfo cannot be run, or it fails.
+     */
+    @Override
+    public int getPageCount(File pdfFile) throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pdfFile, "File pdfFile");
+        long timeoutMillis = timeout.getMillis(pdfFile);
+        ProcessResult result = pool.run(List.of(PDFINFO, pdfFile.getAbsolutePath()), null, timeoutMillis);
+        if(result.isTimedOut()) {
+            throw new ExtractionTimeoutException(pdfFile, timeoutMillis);
+        }
+        if(result.isSuccess()) {
+            for (String line : result.getStdout().split("\n")) {
+                if(line.startsWith(PAGES_PREFIX)) {
+                    return Integer.parseInt(line.substring(PAGES_PREFIX.length()).trim());
+                }
+            }
+        }
+        throw new IOException("Could not count the pages of '" + pdfFile + "': " + result);
+    }
+
+    /**
+     * Extracts the text of a PDF file to a text file, which pdftotext writes directly.
+     * @param pdfFile The PDF file.
+     * @param textFile The text file. It is replaced, if it exists.
+     * @throws IOException If pdftotext cannot be run, or it fails.
+     */
+    @Override
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void extract(File pdfFile, File textFile) throws IOException {
+        ArgumentCheck.checkNotNull(textFile, "File textFile");
+        boolean extracted = false;
+        try {
+            run(pdfFile, List.of(), textFile.getAbsolutePath(), null);
+            extracted = true;
+        } finally {
+            if(!extracted) {
+                textFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Runs pdftotext on a PDF file.
+     * @param pdfFile The PDF file.
+     * @param pageArguments The pdftotext arguments for the range of pages, or none for all the pages.
+     * @param output The output file argument of pdftotext.
+     * @param stdout The stream for the stdout of pdftotext, or null if it is not used.
+     * @throws IOException If pdftotext cannot be run, or it fails.
+     * @throws ExtractionTimeoutException If pdftotext was killed at the deadline.
+     */
+    protected void run(File pdfFile, List<String> pageArguments, String output, OutputStream stdout)
+            throws IOException {
+        ArgumentCheck.checkExistsNormalFile(pdfFile, "File pdfFile");
+        List<String> command = new ArrayList<>();
+        command.add(PDFTOTEXT);
+        command.addAll(ENCODING_ARGUMENTS);
+        command.addAll(pageArguments);
+        command.add(pdfFile.getAbsolutePath());
+        command.add(output);
+        long timeoutMillis = timeout.getMillis(pdfFile);
+        ProcessResult result = pool.run(command, stdout, timeoutMillis);
+        if(result.isTimedOut()) {
+            throw new ExtractionTimeoutException(pdfFile, timeoutMillis);
+        }
+        if(!result.isSuccess()) {
+            throw new IOException("Could not extract the text of '" + pdfFile + "': " + result);
+        }
+    }
+
+    /** @return The pool running the pdftotext processes.*/
+    public ProcessPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public long getTimedOut() {
+        return pool.getTimedOut();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return PDFTOTEXT + ": " + pool;
+    }
+}
@@ -0,0 +1,252 @@
+package dk.kb.provide_dod_info.ocr;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.utils.OrderedExecutor;
+import dk.kb.provide_dod_info.utils.UxCmdUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs external processes, e.g. 'pdftotext', with at most a fixed number of processes at the same time.
+ * The commands are given as argument lists, so paths with spaces are passed as they are, without a shell.
+ *
+ * The stdout and stderr of the processes are read by a fixed pool of drainer threads, two per process, which is
+ * shared by all the processes, so no threads are created per process. The beginning of stderr is captured for the
+ * result, and stdout is either streamed to the caller or captured too.
+ * The pool is thread-safe: callers block, while all the processes are running.
+ *
+ * A process can be given a deadline. A process, which has not exited by its deadline, is killed together with the
+ * processes it has started, and its result is marked as timed out.
+ */
+public class ProcessPool implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ProcessPool.class);
+
+    /** The maximum number of bytes of stdout and stderr captured for the result of a process.*/
+    protected static final int MAX_CAPTURED_BYTES = 64 * 1024;
+    /** The size of the buffer for draining the streams of the processes.*/
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The maximum number of processes running at the same time.*/
+    protected final int size;
+    /** The slots for the running processes.*/
+    protected final Semaphore slots;
+    /** The threads reading the stdout and stderr of the processes.*/
+    protected final ExecutorService drainers;
+
+    /** The number of processes started.*/
+    protected final AtomicLong started = new AtomicLong();
+    /** The number of processes, which exited with another exit code than 0.*/
+    protected final AtomicLong failed = new AtomicLong();
+    /** The number of processes, which were killed, since they did not exit by their deadline.*/
+    protected final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param size The maximum number of processes running at the same time.
+     */
+    public ProcessPool(int size) {
+        ArgumentCheck.checkPositiveInt(size, "int size");
+        this.size = size;
+        this.slots = new Semaphore(size, true);
+        this.drainers = Executors.newFixedThreadPool(2 * size, OrderedExecutor.namedThreads("process-drainer"));
+    }
+
+    /**
+     * Runs a process, and waits for it to exit. Waits for a free slot first, if all the processes are running.
+     * @param command The command and its arguments.
+     * @param stdout The stream for the stdout of the process, or null if stdout is captured for the result.
+     * It is not closed.
+     * @return The result of the process.
+     * @throws IOException If the process cannot be started, or its output cannot be read or written to stdout.
+     */
+    public ProcessResult run(List<String> command, OutputStream stdout) throws IOException {
+        return run(command, stdout, 0);
+    }
+
+    /**
+     * Runs a process, and waits for it to exit or to be killed at its deadline. Waits for a free slot first, if all
+     * the processes are running. The deadline starts, when the process is started.
+     * @param command The command and its arguments.
+     * @param stdout The stream for the stdout of the process, or null if stdout is captured for the result.
+     * It is not closed.
+     * @param timeoutMillis The number of milliseconds the process may run, or 0 if it may run until it exits.
+     * @return The result of the process.
+     * @throws IOException If the process cannot be started, or its output cannot be read or written to stdout.
+     */
+    public ProcessResult run(List<String> command, OutputStream stdout, long timeoutMillis) throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(command, "List<String> command");
+        ArgumentCheck.checkNotNegativeLong(timeoutMillis, "long timeoutMillis");
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to run " + command, e);
+        }
+        Process process = null;
+        try {
+            long start = System.currentTimeMillis();
+            process = new ProcessBuilder(command).start();
+            started.incrementAndGet();
+            process.getOutputStream().close();
+            CapturedOutput capturedStdout = stdout == null ? new CapturedOutput() : null;
+            CapturedOutput capturedStderr = new CapturedOutput();
+            Future<?> stdoutDrainer = drain(process.getInputStream(), stdout == null ? capturedStdout : stdout);
+            Future<?> stderrDrainer = drain(process.getErrorStream(), capturedStderr);
+            boolean expired = false;
+            if(timeoutMillis > 0 && !process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                // Killing the whole tree closes the output streams, so the drainers finish too
+                UxCmdUtils.destroyProcessTree(process);
+                expired = true;
+                timedOut.incrementAndGet();
+            }
+            int exitCode = process.waitFor();
+            await(stdoutDrainer);
+            await(stderrDrainer);
+
+            ProcessResult res = new ProcessResult(command, exitCode,
+                    capturedStdout == null ? null : capturedStdout.toString(), capturedStderr.toString(),
+                    System.currentTimeMillis() - start, expired);
+            if(expired) {
+                log.warn("Process killed after {} ms: {}", timeoutMillis, res);
+            } else if(!res.isSuccess()) {
+                failed.incrementAndGet();
+                log.debug("Process failed: {}", res);
+            }
+            return res;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running " + command, e);
+        } finally {
+            if(process != null && process.isAlive()) {
+                UxCmdUtils.destroyProcessTree(process);
+            }
+            slots.release();
+        }
+    }
+
+    /** @return The maximum number of processes running at the same time.*/
+    public int getSize() {
+        return size;
+    }
+
+    /** @return The number of processes started.*/
+    public long getStarted() {
+        return started.get();
+    }
+
+    /** @return The number of processes, which exited with another exit code than 0.*/
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** @return The number of processes, which were killed, since they did not exit by their deadline.*/
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Stops the drainer threads.
+     */
+    @Override
+    public void close() {
+        drainers.shutdownNow();
+        try {
+            if(!drainers.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("The process drainers did not terminate in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return started.get() + " processes started, " + failed.get() + " failed, " + timedOut.get() + " timed out";
+    }
+
+    /**
+     * Reads a stream of a process to the end on a drainer thread, and writes it to an output stream.
+     * @param in The stream of the process. It is closed, when it has been read.
+     * @param out The output stream.
+     * @return The future for the draining.
+     */
+    protected Future<?> drain(InputStream in, OutputStream out) {
+        return drainers.submit(() -> {
+            try (InputStream processStream = in) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = processStream.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Waits for a stream of a process to be drained.
+     * @param drainer The future for the draining.
+     * @throws IOException If the stream could not be read or written.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    protected static void await(Future<?> drainer) throws IOException, InterruptedException {
+        try {
+            drainer.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not drain the output of the process", e.getCause());
+        }
+    }
+
+    /**
+     * Output stream, which keeps the first bytes written to it, and discards the rest.
+     */
+    protected static class CapturedOutput extends OutputStream {
+        /** The captured bytes.*/
+        protected byte[] bytes = new byte[256];
+        /** The number of captured bytes.*/
+        protected int count = 0;
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int captured = Math.min(len, MAX_CAPTURED_BYTES - count);
+            if(captured <= 0) {
+                return;
+            }
+            if(count + captured > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.min(MAX_CAPTURED_BYTES, Math.max(2 * bytes.length,
+                        count + captured)));
+            }
+            System.arraycopy(b, off, bytes, count, captured);
+            count += captured;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return new String(bytes, 0, count, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package dk.kb.provide_dod_info.ocr;
+
+import java.util.List;
+
+/**
+ * The result of running an external process in the {@link ProcessPool}: its exit code and what it wrote to stderr,
+ * and to stdout, when stdout was not streamed to the caller, and whether it was killed at its deadline.
+ * It is immutable.
+ */
+public final class ProcessResult {
+    /** The command with its arguments.*/
+    private final List<String> command;
+    /** The exit code.*/
+    private final int exitCode;
+    /** The beginning of the stdout of the process, or null if it was streamed to the caller.*/
+    private final String stdout;
+    /** The beginning of the stderr of the process.*/
+    private final String stderr;
+    /** How long the process ran, in milliseconds.*/
+    private final long durationMillis;
+    /** Whether the process was killed, since it did not exit by its deadline.*/
+    private final boolean timedOut;
+
+    /**
+     * Constructor.
+     * @param command The command with its arguments.
+     * @param exitCode The exit code.
+     * @param stdout The beginning of the stdout of the process, or null if it was streamed to the caller.
+     * @param stderr The beginning of the stderr of the process.
+     * @param durationMillis How long the process ran, in milliseconds.
+     * @param timedOut Whether the process was killed, since it did not exit by its deadline.
+     */
+    public ProcessResult(List<String> command, int exitCode, String stdout, String stderr, long durationMillis,
+                         boolean timedOut) {
+        this.command = List.copyOf(command);
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.durationMillis = durationMillis;
+        this.timedOut = timedOut;
+    }
+
+    /** @return The command with its arguments.*/
+    public List<String> getCommand() {
+        return command;
+    }
+
+    /** @return The exit code.*/
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /** @return Whether the process succeeded, i.e. exited with 0 by itself.*/
+    public boolean isSuccess() {
+        return exitCode == 0 && !timedOut;
+    }
+
+    /** @return Whether the process was killed, since it did not exit by its deadline.*/
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /** @return The beginning of the stdout of the process, or null if it was streamed to the caller.*/
+    public String getStdout() {
+        return stdout;
+    }
+
+    /** @return The beginning of the stderr of the process.*/
+    public String getStderr() {
+        return stderr;
+    }
+
+    /** @return How long the process ran, in milliseconds.*/
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessResult{" + command + (timedOut ? ": killed" : ": exit code " + exitCode) + " after "
+                + durationMillis + " ms" + (stderr.isEmpty() ? "" : ", stderr: " + stderr.trim()) + "}";
+    }
+}
@@ -0,0 +1,69 @@
+package dk.kb.provide_dod_info.ocr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Extracts the text of PDF files as UTF-8 text, with a form feed after each page, like 'pdftotext'.
+ * The implementations are thread-safe, and limit how many files are extracted at the same time.
+ * An extraction, which is not done by its deadline, is stopped with an {@link ExtractionTimeoutException}.
+ */
+public interface TextExtractor extends Closeable {
+    /**
+     * Extracts the text of a PDF file to an output stream.
+     * @param pdfFile The PDF file.
+     * @param out The output stream for the text. It is not closed.
+     * @throws IOException If the text cannot be extracted or written.
+     */
+    void extract(File pdfFile, OutputStream out) throws IOException;
+
+    /**
+     * Extracts the text of a range of pages of a PDF file to an output stream. The texts of consecutive ranges
+     * together are the text of the whole file.
+     * @param pdfFile The PDF file.
+     * @param firstPage The first page of the range, starting from 1.
+     * @param lastPage The last page of the range, which is included.
+     * @param out The output stream for the text. It is not closed.
+     * @throws IOException If the text cannot be extracted or written.
+     */
+    void extract(File pdfFile, int firstPage, int lastPage, OutputStream out) throws IOException;
+
+    /**
+     * Counts the pages of a PDF file.
+     * @param pdfFile The PDF file.
+     * @return The number of pages.
+     * @throws IOException If the PDF file cannot be read.
+     */
+    int getPageCount(File pdfFile) throws IOException;
+
+    /** @return The number of files or ranges of pages, which were stopped at their deadline.*/
+    long getTimedOut();
+
+    /**
+     * Extracts the text of a PDF file to a text file. The text file is removed, if the extraction fails.
+     * @param pdfFile The PDF file.
+     * @param textFile The text file. It is replaced, if it exists.
+     * @throws IOException If the text cannot be extracted or written.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    default void extract(File pdfFile, File textFile) throws IOException {
+        boolean extracted = false;
+        try (OutputStream out = new FileOutputStream(textFile)) {
+            extract(pdfFile, out);
+            extracted = true;
+        } finally {
+            if(!extracted) {
+                textFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Stops the extraction.
+     */
+    @Override
+    void close();
+}
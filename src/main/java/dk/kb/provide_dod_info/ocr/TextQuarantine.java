@@ -0,0 +1,94 @@
+package dk.kb.provide_dod_info.ocr;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The list of PDF files, whose text could not be extracted by the deadline. The text of these files is not
+ * extracted again, neither later in the run nor in the following runs, until they are removed from the list.
+ *
+ * The list is a text file with the name of one PDF file per line, which is read when the quarantine is created,
+ * and which the files are added to, when they time out. It is thread-safe.
+ */
+public class TextQuarantine {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(TextQuarantine.class);
+
+    /** The file with the list.*/
+    protected final File file;
+    /** The names of the quarantined PDF files.*/
+    protected final Set<String> names = ConcurrentHashMap.newKeySet();
+    /** The number of PDF files added during this run.*/
+    protected int added = 0;
+
+    /**
+     * Constructor. Reads the list, if it exists.
+     * @param file The file with the list.
+     * @throws IOException If the list exists, but cannot be read.
+     */
+    public TextQuarantine(File file) throws IOException {
+        ArgumentCheck.checkNotNull(file, "File file");
+        this.file = file;
+        if(file.isFile()) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if(!line.isBlank()) {
+                    names.add(line.trim());
+                }
+            }
+            log.info("Read {} quarantined PDF files from '{}'", names.size(), file);
+        }
+    }
+
+    /**
+     * @param pdfFile The PDF file.
+     * @return Whether the PDF file is quarantined.
+     */
+    public boolean contains(File pdfFile) {
+        return names.contains(pdfFile.getName());
+    }
+
+    /**
+     * Quarantines a PDF file, and adds it to the list. If the list cannot be written, the file is only quarantined
+     * for the rest of the run.
+     * @param pdfFile The PDF file.
+     */
+    public synchronized void add(File pdfFile) {
+        ArgumentCheck.checkNotNull(pdfFile, "File pdfFile");
+        if(!names.add(pdfFile.getName())) {
+            return;
+        }
+        added++;
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(pdfFile.getName() + "\n");
+        } catch (IOException e) {
+            log.error("Could not add '{}' to the quarantine list '{}'", pdfFile.getName(), file, e);
+        }
+        log.warn("Quarantined '{}', since its text was not extracted in time", pdfFile);
+    }
+
+    /** @return The number of quarantined PDF files.*/
+    public int size() {
+        return names.size();
+    }
+
+    /** @return The number of PDF files added during this run.*/
+    public synchronized int getAdded() {
+        return added;
+    }
+
+    @Override
+    public String toString() {
+        return size() + " quarantined PDF files in '" + file + "', " + getAdded() + " added in this run";
+    }
+}
@@ -0,0 +1,58 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+/**
+ * Removes a fixed set of ASCII characters from strings.
+ * The characters are looked up in a precompiled table, so no regular expression is compiled or run per string,
+ * and strings without any of the characters are returned as they are.
+ * The filter is immutable, thus it can be shared between threads.
+ */
+public final class CharFilter {
+    /** The table of the removed characters, indexed by the character.*/
+    private final boolean[] removed = new boolean[128];
+
+    /**
+     * Constructor.
+     * @param chars The characters to remove. Only ASCII characters are allowed.
+     */
+    public CharFilter(String chars) {
+        ArgumentCheck.checkNotNull(chars, "String chars");
+        for (char c : chars.toCharArray()) {
+            if(c >= removed.length) {
+                throw new IllegalArgumentException("Only ASCII characters can be removed. Got: '" + c + "'");
+            }
+            removed[c] = true;
+        }
+    }
+
+    /**
+     * @param value The string.
+     * @return The string without the removed characters.
+     */
+    public String removeFrom(String value) {
+        int i = 0;
+        while (i < value.length() && !isRemoved(value.charAt(i))) {
+            i++;
+        }
+        if(i == value.length()) {
+            return value;
+        }
+        StringBuilder res = new StringBuilder(value.length()).append(value, 0, i);
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(!isRemoved(c)) {
+                res.append(c);
+            }
+        }
+        return res.toString();
+    }
+
+    /**
+     * @param c The character.
+     * @return Whether the character is removed.
+     */
+    private boolean isRemoved(char c) {
+        return c < removed.length && removed[c];
+    }
+}
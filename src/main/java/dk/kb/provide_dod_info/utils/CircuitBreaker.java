@@ -0,0 +1,163 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for calls to a remote service.
+ * After a number of consecutive failures the circuit opens, and all callers are paused, instead of failing one
+ * after another. When the pause has passed, a single call is let through as a probe: if it succeeds the circuit
+ * closes and the paused callers continue, otherwise the pause starts over.
+ * If the circuit stays open for longer than the maximum open time, the callers are given up with a
+ * {@link CircuitOpenException}.
+ */
+public class CircuitBreaker {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** The name of the service, for the log.*/
+    protected final String name;
+    /** The number of consecutive failures, which opens the circuit.*/
+    protected final int failureThreshold;
+    /** The pause between the probes, when the circuit is open, in milliseconds.*/
+    protected final long pauseMs;
+    /** The maximum time the circuit may stay open, before the callers are given up, in milliseconds.*/
+    protected final long maxOpenMs;
+
+    /** The number of consecutive failures.*/
+    protected int consecutiveFailures = 0;
+    /** When the circuit was opened, or 0 if it is closed.*/
+    protected long openSince = 0;
+    /** When the next probe may be let through.*/
+    protected long nextProbe = 0;
+    /** Whether a probe is currently in flight.*/
+    protected boolean probing = false;
+
+    /**
+     * Constructor.
+     * @param name The name of the service, for the log.
+     * @param failureThreshold The number of consecutive failures, which opens the circuit.
+     * @param pauseMs The pause between the probes, when the circuit is open, in milliseconds.
+     * @param maxOpenMs The maximum time the circuit may stay open, in milliseconds.
+     */
+    public CircuitBreaker(String name, int failureThreshold, long pauseMs, long maxOpenMs) {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        ArgumentCheck.checkPositiveInt(failureThreshold, "int failureThreshold");
+        ArgumentCheck.checkPositiveLong(pauseMs, "long pauseMs");
+        ArgumentCheck.checkPositiveLong(maxOpenMs, "long maxOpenMs");
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.pauseMs = pauseMs;
+        this.maxOpenMs = maxOpenMs;
+    }
+
+    /**
+     * Waits until a call may be made. Returns at once when the circuit is closed. When it is open, it waits
+     * until the caller can be let through as the probe, or until the circuit has closed.
+     * @throws CircuitOpenException If the circuit has been open for longer than the maximum open time.
+     */
+    public synchronized void acquire() {
+        for (long waitMs = tryAcquire(); waitMs > 0; waitMs = tryAcquire()) {
+            try {
+                wait(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the " + name + " service", e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a call may be made, without waiting. When the circuit is open, and the pause has passed,
+     * the caller is let through as the probe.
+     * For asynchronous callers, which must not block a thread while the circuit is open.
+     * @return 0 if the call may be made now, otherwise the time to wait before asking again, in milliseconds.
+     * @throws CircuitOpenException If the circuit has been open for longer than the maximum open time.
+     */
+    public synchronized long tryAcquire() {
+        if(openSince == 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if(now - openSince > maxOpenMs) {
+            throw new CircuitOpenException("The " + name + " service has been unavailable for more than "
+                    + (maxOpenMs / 1000) + " seconds. Giving up.");
+        }
+        if(!probing && now >= nextProbe) {
+            log.info("Probing whether the {} service is available again", name);
+            probing = true;
+            return 0;
+        }
+        return Math.max(1, (probing ? pauseMs : nextProbe - now));
+    }
+
+    /**
+     * Records a successful call. Closes the circuit, if it is open.
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        if(openSince != 0) {
+            log.info("The {} service is available again after {} seconds. Resuming.", name,
+                    (System.currentTimeMillis() - openSince) / 1000);
+            openSince = 0;
+            probing = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records a failed call. Opens the circuit, when the number of consecutive failures reaches the threshold,
+     * and restarts the pause, if the failed call was the probe.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        long now = System.currentTimeMillis();
+        if(openSince != 0) {
+            if(probing) {
+                probing = false;
+                nextProbe = now + pauseMs;
+                log.warn("The {} service is still unavailable. Next probe in {} seconds", name, pauseMs / 1000);
+                notifyAll();
+            }
+        } else if(consecutiveFailures >= failureThreshold) {
+            openSince = now;
+            nextProbe = now + pauseMs;
+            log.warn("The {} service failed {} times in a row. Pausing all calls for {} seconds", name,
+                    consecutiveFailures, pauseMs / 1000);
+        }
+    }
+
+    /**
+     * Records a call, which ended without telling whether the service is available, e.g. because it was cancelled.
+     * If the call was the probe, the next caller is let through as the probe at once, so the circuit is not left
+     * waiting for a probe, which will never be recorded.
+     */
+    public synchronized void releaseProbe() {
+        if(probing) {
+            probing = false;
+            nextProbe = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /** @return Whether the circuit is open.*/
+    public synchronized boolean isOpen() {
+        return openSince != 0;
+    }
+
+    /**
+     * Thrown when the circuit has been open for too long, thus the remote service is considered unavailable.
+     */
+    public static class CircuitOpenException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         * @param message The message.
+         */
+        public CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+}
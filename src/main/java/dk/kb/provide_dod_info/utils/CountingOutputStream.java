@@ -0,0 +1,41 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream, which counts the bytes written through it.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    /** The number of bytes written.*/
+    protected long count = 0;
+
+    /**
+     * Constructor.
+     * @param out The output stream to write to.
+     */
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+        ArgumentCheck.checkNotNull(out, "OutputStream out");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    /** @return The number of bytes written.*/
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,146 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Executes tasks on a bounded number of worker threads, but delivers the results to the consumer in the order
+ * the tasks were submitted, and on the thread which submits the tasks.
+ * At most a fixed window of tasks is pending at any time, so submitting blocks when the workers are behind.
+ * With a single worker the tasks are run directly on the calling thread.
+ * @param <T> The type of the task results.
+ */
+public class OrderedExecutor<T> implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(OrderedExecutor.class);
+    /** The number of pending tasks allowed per worker.*/
+    protected static final int TASKS_PER_WORKER = 4;
+
+    /** The executor running the tasks. Null, if the tasks are run on the calling thread.*/
+    protected final ExecutorService executor;
+    /** The tasks, which have been submitted but whose results have not yet been delivered.*/
+    protected final Deque<Future<T>> pending;
+    /** The maximum number of pending tasks.*/
+    protected final int window;
+    /** The consumer of the results.*/
+    protected final Consumer<T> consumer;
+
+    /**
+     * Constructor.
+     * @param workers The number of worker threads.
+     * @param threadName The name prefix for the worker threads.
+     * @param consumer The consumer of the results.
+     */
+    public OrderedExecutor(int workers, String threadName, Consumer<T> consumer) {
+        ArgumentCheck.checkPositiveInt(workers, "int workers");
+        ArgumentCheck.checkNotNull(consumer, "Consumer<T> consumer");
+        this.consumer = consumer;
+        this.pending = new ArrayDeque<>();
+        this.window = workers * TASKS_PER_WORKER;
+        this.executor = workers > 1 ? Executors.newFixedThreadPool(workers, namedThreads(threadName)) : null;
+    }
+
+    /**
+     * Submits a task. If the maximum number of tasks are pending, then it waits for the oldest task to finish
+     * and delivers its result, before the new task is submitted.
+     * @param task The task.
+     */
+    public void submit(Callable<T> task) {
+        if(executor == null) {
+            consumer.accept(call(task));
+            return;
+        }
+        while (pending.size() >= window) {
+            deliverOldest();
+        }
+        pending.add(executor.submit(task));
+    }
+
+    /**
+     * Waits for all the pending tasks and delivers their results.
+     */
+    public void finish() {
+        while (!pending.isEmpty()) {
+            deliverOldest();
+        }
+    }
+
+    /**
+     * Stops the workers. Tasks which have not been delivered are cancelled.
+     */
+    @Override
+    public void close() {
+        if(executor == null) {
+            return;
+        }
+        for (Future<T> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+        try {
+            if(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("The workers did not terminate in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the oldest pending task and delivers its result.
+     */
+    protected void deliverOldest() {
+        Future<T> future = pending.poll();
+        try {
+            consumer.accept(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a task", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A task failed", e.getCause());
+        }
+    }
+
+    /**
+     * Runs a task on the calling thread.
+     * @param task The task.
+     * @return The result of the task.
+     */
+    protected T call(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("A task failed", e);
+        }
+    }
+
+    /**
+     * @param threadName The name prefix for the threads.
+     * @return A thread factory for daemon threads with the given name prefix.
+     */
+    public static ThreadFactory namedThreads(String threadName) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, threadName + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream, which copies everything read from it to an output stream.
+ * The output stream is not closed, when this stream is closed.
+ */
+public class TeeInputStream extends FilterInputStream {
+    /** The output stream, which receives a copy of the data.*/
+    protected final OutputStream copy;
+
+    /**
+     * Constructor.
+     * @param in The input stream to read from.
+     * @param copy The output stream, which receives a copy of the data.
+     */
+    public TeeInputStream(InputStream in, OutputStream copy) {
+        super(in);
+        ArgumentCheck.checkNotNull(in, "InputStream in");
+        ArgumentCheck.checkNotNull(copy, "OutputStream copy");
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b != -1) {
+            copy.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if(n > 0) {
+            copy.write(b, off, n);
+        }
+        return n;
+    }
+
+    /** Skipping would leave a gap in the copy, so the skipped data is read instead.*/
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if(read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -1,51 +1,75 @@
 package dk.kb.provide_dod_info.utils;
 
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Executors;
-import java.util.function.Consumer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
-/** Class for executing a Unix command */
+/**
+ * Class for executing a Unix command.
+ * The command is given as its arguments, so they are passed as they are, without a shell. The output of the command
+ * (stdout and stderr) is read on a separate thread and logged, while the calling thread waits for the command to
+ * exit, at most {@link #TIMEOUT_MINUTES} minutes. A command, which does not exit in time, is killed with the
+ * processes it has started.
+ * For running many processes, e.g. 'pdftotext', see {@link dk.kb.provide_dod_info.ocr.ProcessPool}.
+ */
 public class UxCmdUtils {
     private static final Logger log = LoggerFactory.getLogger(UxCmdUtils.class);
 
-    private static class StreamGobbler implements Runnable {
-        private final InputStream inputStream;
-        private final Consumer<String> consumer;
+    /** The number of minutes a command may run, before it is killed.*/
+    public static final long TIMEOUT_MINUTES = 10;
 
-        public StreamGobbler(InputStream inputStream, Consumer<String> consumer) {
-            this.inputStream = inputStream;
-            this.consumer = consumer;
-        }
-
-        @Override
-        public void run() {
-            new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))
-                    .lines()
-                    .forEach(consumer);
-        }
-    }
-
-    public static void execCmd(String param)  {
-        Process process;
+    /**
+     * Executes a command and waits for it to exit. Failures are logged.
+     * @param command The command and its arguments.
+     */
+    public static void execCmd(String... command)  {
+        ArgumentCheck.checkTrue(command.length > 0, "A command must be given");
         try {
-            process = Runtime.getRuntime().exec( param );
-            StreamGobbler streamGobbler = new StreamGobbler(process.getInputStream(), System.out::println);
-            Executors.newSingleThreadExecutor().submit(streamGobbler);
-            int exitCode = process.waitFor();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            Thread output = OrderedExecutor.namedThreads("command-output").newThread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                        StandardCharsets.UTF_8))) {
+                    reader.lines().forEach(line -> log.debug("{}: {}", command[0], line));
+                } catch (IOException | UncheckedIOException e) {
+                    log.debug("Could not read the output of '{}'", command[0], e);
+                }
+            });
+            output.start();
+            if(!process.waitFor(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                destroyProcessTree(process);
+                log.warn("UNIX command '{}' did not exit within {} minutes, and was killed",
+                        Arrays.toString(command), TIMEOUT_MINUTES);
+                return;
+            }
+            output.join(TimeUnit.MINUTES.toMillis(1));
+            int exitCode = process.exitValue();
             if (exitCode != 0){
-                log.warn("UNIX command '{}' failed, exit code = {}", param, exitCode);
-//                throw new IllegalStateException("UNIX command failed");
+                log.warn("UNIX command '{}' failed, exit code = {}", Arrays.toString(command), exitCode);
             }
-
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             log.error("Failed executing Unix command: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while executing Unix command: " + e);
         }
     }
+
+    /**
+     * Kills a process and all the processes it has started, e.g. when it has run for too long. The started processes
+     * are killed first, so none of them keep running or keep the output streams of the process open.
+     * @param process The process.
+     */
+    public static void destroyProcessTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
 }
@@ -0,0 +1,343 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility class for parsing, querying and writing XML, which is safe to use from many threads at once.
+ * The factories are looked up once. Document builders, XPaths and the compiled XPATH expressions are not
+ * thread-safe, so each thread has its own, which are reused for all its calls. The XPATH expressions are compiled
+ * once per thread, keyed by the path (e.g. the XPATHs in Constants). Nodes are written by a streaming XML writer,
+ * either indented or compact, without changing any global settings.
+ */
+public final class XmlUtils {
+    /** The indentation per level, when writing indented XML.*/
+    public static final String INDENTATION = "    ";
+    /** The name of the default namespace declaration, and the prefix of the other namespace declarations.*/
+    private static final String XMLNS = "xmlns";
+
+    /** The factory for the namespace aware document builders.*/
+    private static final DocumentBuilderFactory NAMESPACE_AWARE_FACTORY = createFactory(true);
+    /** The factory for the document builders, which are not namespace aware.*/
+    private static final DocumentBuilderFactory PLAIN_FACTORY = createFactory(false);
+    /** The XPath factory.*/
+    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+    /** The factory for the streaming XML writers. Thread-safe once configured.*/
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /** The namespace aware document builder of each thread.*/
+    private static final ThreadLocal<DocumentBuilder> NAMESPACE_AWARE_BUILDER =
+            ThreadLocal.withInitial(() -> newDocumentBuilder(NAMESPACE_AWARE_FACTORY));
+    /** The document builder of each thread, which is not namespace aware.*/
+    private static final ThreadLocal<DocumentBuilder> PLAIN_BUILDER =
+            ThreadLocal.withInitial(() -> newDocumentBuilder(PLAIN_FACTORY));
+    /** The XPath of each thread.*/
+    private static final ThreadLocal<XPath> XPATH = ThreadLocal.withInitial(XmlUtils::newXPath);
+    /** The compiled XPATH expressions of each thread, by path.*/
+    private static final ThreadLocal<Map<String, XPathExpression>> XPATH_EXPRESSIONS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    /** Utility class, thus no constructor.*/
+    private XmlUtils() {}
+
+    /**
+     * Parses an XML document.
+     * @param in The input stream with the XML.
+     * @param namespaceAware Whether the element names are namespace aware. The XP_MARC_* XPATHs need them not to be.
+     * @return The document.
+     * @throws IOException If the input cannot be read.
+     * @throws SAXException If the input is not valid XML.
+     */
+    public static Document parse(InputStream in, boolean namespaceAware) throws IOException, SAXException {
+        ArgumentCheck.checkNotNull(in, "InputStream in");
+        return getDocumentBuilder(namespaceAware).parse(in);
+    }
+
+    /**
+     * Parses an XML file.
+     * @param file The XML file.
+     * @param namespaceAware Whether the element names are namespace aware. The XP_MARC_* XPATHs need them not to be.
+     * @return The document.
+     * @throws IOException If the file cannot be read.
+     * @throws SAXException If the file is not valid XML.
+     */
+    public static Document parse(File file, boolean namespaceAware) throws IOException, SAXException {
+        ArgumentCheck.checkExistsNormalFile(file, "File file");
+        return getDocumentBuilder(namespaceAware).parse(file);
+    }
+
+    /**
+     * The compiled XPATH expression for a path. It is compiled the first time the current thread uses the path.
+     * The expression must only be used by the current thread.
+     * @param path The XPATH.
+     * @return The compiled expression.
+     * @throws XPathExpressionException If the XPATH is not valid.
+     */
+    public static XPathExpression getXPathExpression(String path) throws XPathExpressionException {
+        ArgumentCheck.checkNotNullOrEmpty(path, "String path");
+        Map<String, XPathExpression> expressions = XPATH_EXPRESSIONS.get();
+        XPathExpression res = expressions.get(path);
+        if(res == null) {
+            res = XPATH.get().compile(path);
+            expressions.put(path, res);
+        }
+        return res;
+    }
+
+    /**
+     * Evaluates an XPATH to a string.
+     * @param path The XPATH.
+     * @param item The document or node to evaluate the XPATH on.
+     * @return The string value.
+     * @throws XPathExpressionException If the XPATH is not valid, or cannot be evaluated.
+     */
+    public static String evaluateString(String path, Object item) throws XPathExpressionException {
+        return (String) getXPathExpression(path).evaluate(item, XPathConstants.STRING);
+    }
+
+    /**
+     * Evaluates an XPATH to a list of nodes.
+     * @param path The XPATH.
+     * @param item The document or node to evaluate the XPATH on.
+     * @return The nodes.
+     * @throws XPathExpressionException If the XPATH is not valid, or cannot be evaluated.
+     */
+    public static NodeList evaluateNodes(String path, Object item) throws XPathExpressionException {
+        return (NodeList) getXPathExpression(path).evaluate(item, XPathConstants.NODESET);
+    }
+
+    /**
+     * Writes an element or document to the output stream as indented UTF-8 XML with an XML declaration.
+     * The child elements are indented by 4 spaces per level, and the lines end with '\n' on all platforms.
+     * @param node The element or document.
+     * @param out The output stream.
+     * @throws XMLStreamException If the node cannot be written.
+     */
+    public static void writeIndented(Node node, OutputStream out) throws XMLStreamException {
+        write(node, out, INDENTATION);
+    }
+
+    /**
+     * Writes an element or document to the output stream as compact UTF-8 XML with an XML declaration: without
+     * whitespace between the elements, and without comments and processing instructions.
+     * @param node The element or document.
+     * @param out The output stream.
+     * @throws XMLStreamException If the node cannot be written.
+     */
+    public static void writeCompact(Node node, OutputStream out) throws XMLStreamException {
+        write(node, out, "");
+    }
+
+    /**
+     * Writes an element within a document, which is being written, e.g. as one of several records in a collection.
+     * It is written like {@link #writeIndented(Node, OutputStream)} or {@link #writeCompact(Node, OutputStream)},
+     * but without an XML declaration, and starting at the given depth.
+     * @param writer The writer of the enclosing document.
+     * @param element The element.
+     * @param indentation The indentation per level, or the empty string for compact XML.
+     * @param depth The indentation of the element.
+     * @throws XMLStreamException If the element cannot be written.
+     */
+    public static void writeElement(XMLStreamWriter writer, Element element, String indentation, String depth)
+            throws XMLStreamException {
+        ArgumentCheck.checkNotNull(writer, "XMLStreamWriter writer");
+        ArgumentCheck.checkNotNull(element, "Element element");
+        writeElement(writer, element, inheritedNamespaces(element), indentation, depth);
+    }
+
+    /**
+     * Writes an element or document to the output stream as UTF-8 XML with an XML declaration.
+     * The names are written as they are in the document, with their prefixes. The namespaces declared by the
+     * ancestors of the element are declared on it, so it stands alone. Text consisting only of whitespace between
+     * child elements is replaced by the indentation, and comments and processing instructions are left out.
+     * @param node The element or document.
+     * @param out The output stream.
+     * @param indentation The indentation per level, or the empty string for compact XML.
+     * @throws XMLStreamException If the node cannot be written.
+     */
+    private static void write(Node node, OutputStream out, String indentation) throws XMLStreamException {
+        ArgumentCheck.checkNotNull(node, "Node node");
+        ArgumentCheck.checkNotNull(out, "OutputStream out");
+        Element element = node instanceof Document ? ((Document) node).getDocumentElement() : (Element) node;
+        XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+        writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+        writeElement(writer, element, inheritedNamespaces(element), indentation, "");
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Writes an element and its content.
+     * @param writer The writer.
+     * @param element The element.
+     * @param namespaces The namespace declarations written on the element before its own, by name.
+     * @param indentation The indentation per level, or the empty string for compact XML.
+     * @param depth The indentation of the element.
+     * @throws XMLStreamException If the element cannot be written.
+     */
+    private static void writeElement(XMLStreamWriter writer, Element element, Map<String, String> namespaces,
+                                     String indentation, String depth) throws XMLStreamException {
+        List<Node> content = new ArrayList<>();
+        boolean hasChildElements = false;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if(child.getNodeType() == Node.ELEMENT_NODE) {
+                hasChildElements = true;
+                content.add(child);
+            } else if(child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                content.add(child);
+            }
+        }
+        if(hasChildElements) {
+            content.removeIf(child -> child.getNodeType() != Node.ELEMENT_NODE && child.getNodeValue().isBlank());
+        }
+
+        if(content.isEmpty()) {
+            writer.writeEmptyElement(element.getTagName());
+        } else {
+            writer.writeStartElement(element.getTagName());
+        }
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            if(isNamespaceDeclaration(attribute)) {
+                namespaces.put(attribute.getNodeName(), attribute.getNodeValue());
+            }
+        }
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            writer.writeAttribute(namespace.getKey(), namespace.getValue());
+        }
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            if(!isNamespaceDeclaration(attribute)) {
+                writer.writeAttribute(attribute.getNodeName(), attribute.getNodeValue());
+            }
+        }
+        if(content.isEmpty()) {
+            return;
+        }
+
+        String childDepth = depth + indentation;
+        for (Node child : content) {
+            if(child.getNodeType() == Node.ELEMENT_NODE) {
+                if(!indentation.isEmpty()) {
+                    writer.writeCharacters("\n" + childDepth);
+                }
+                writeElement(writer, (Element) child, new LinkedHashMap<>(), indentation, childDepth);
+            } else {
+                writer.writeCharacters(child.getNodeValue());
+            }
+        }
+        if(hasChildElements && !indentation.isEmpty()) {
+            writer.writeCharacters("\n" + depth);
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * @param element The element.
+     * @return The namespace declarations of the ancestors of the element, by name, outermost first.
+     */
+    private static Map<String, String> inheritedNamespaces(Element element) {
+        Deque<Element> ancestors = new ArrayDeque<>();
+        for (Node parent = element.getParentNode(); parent instanceof Element; parent = parent.getParentNode()) {
+            ancestors.addFirst((Element) parent);
+        }
+        Map<String, String> res = new LinkedHashMap<>();
+        for (Element ancestor : ancestors) {
+            NamedNodeMap attributes = ancestor.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                if(isNamespaceDeclaration(attribute)) {
+                    res.remove(attribute.getNodeName());
+                    res.put(attribute.getNodeName(), attribute.getNodeValue());
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param attribute The attribute.
+     * @return Whether the attribute is a namespace declaration. Also for documents, which are not namespace aware.
+     */
+    private static boolean isNamespaceDeclaration(Node attribute) {
+        String name = attribute.getNodeName();
+        return name.equals(XMLNS) || name.startsWith(XMLNS + ":");
+    }
+
+    /**
+     * @param namespaceAware Whether the document builder must be namespace aware.
+     * @return The document builder of the current thread, reset to its initial configuration.
+     */
+    private static DocumentBuilder getDocumentBuilder(boolean namespaceAware) {
+        DocumentBuilder res = (namespaceAware ? NAMESPACE_AWARE_BUILDER : PLAIN_BUILDER).get();
+        res.reset();
+        return res;
+    }
+
+    /**
+     * @param namespaceAware Whether the document builders must be namespace aware.
+     * @return The document builder factory.
+     */
+    private static DocumentBuilderFactory createFactory(boolean namespaceAware) {
+        DocumentBuilderFactory res = DocumentBuilderFactory.newInstance();
+        res.setNamespaceAware(namespaceAware);
+        return res;
+    }
+
+    /**
+     * The document builder factory is not guaranteed to be thread-safe, so the creation of document builders is
+     * synchronized.
+     * @param factory The factory.
+     * @return A new document builder.
+     */
+    private static DocumentBuilder newDocumentBuilder(DocumentBuilderFactory factory) {
+        synchronized (factory) {
+            try {
+                return factory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("Could not create a new 'DocumentBuilder'!", e);
+            }
+        }
+    }
+
+    /**
+     * The XPath factory is not thread-safe, so the creation of XPath objects is synchronized.
+     * @return A new XPath.
+     */
+    private static XPath newXPath() {
+        synchronized (XPATH_FACTORY) {
+            return XPATH_FACTORY.newXPath();
+        }
+    }
+}
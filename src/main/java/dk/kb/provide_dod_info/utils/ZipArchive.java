@@ -0,0 +1,136 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip file, which entries can be added to from several threads, e.g. the extracted texts while they are extracted.
+ * The entries are written one at a time, in the order they are added.
+ *
+ * The zip file is written to a temporary '.part' file next to it, which is moved into place, when the archive is
+ * finished. If the archive is closed without being finished, e.g. because the run failed, the temporary file is
+ * removed, so an incomplete zip file is never left behind.
+ */
+public class ZipArchive implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(ZipArchive.class);
+
+    /** The suffix of the zip file, while it is written.*/
+    protected static final String PART_SUFFIX = ".part";
+
+    /** The zip file.*/
+    protected final File zipFile;
+    /** The zip file, while it is written.*/
+    protected final File partFile;
+    /** The stream writing the zip file.*/
+    protected final ZipOutputStream zipOut;
+    /** Whether the archive has been finished.*/
+    protected boolean finished = false;
+    /** The number of entries added with {@link #addEntry(String, ByteArrayOutputStream)}.*/
+    protected long entries = 0;
+    /** The number of uncompressed bytes added with {@link #addEntry(String, ByteArrayOutputStream)}.*/
+    protected long bytes = 0;
+
+    /**
+     * Constructor. Starts writing the zip file.
+     * @param zipFile The zip file. It is replaced, when the archive is finished.
+     * @throws IOException If the zip file cannot be created.
+     */
+    public ZipArchive(File zipFile) throws IOException {
+        ArgumentCheck.checkNotNull(zipFile, "File zipFile");
+        this.zipFile = zipFile;
+        this.partFile = new File(zipFile.getAbsolutePath() + PART_SUFFIX);
+        this.zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partFile)));
+    }
+
+    /**
+     * Adds an entry with the content of a buffer.
+     * @param name The name of the entry, with '/' between the directories.
+     * @param content The content of the entry.
+     * @throws IOException If the entry cannot be written, e.g. if an entry with the same name has been added.
+     */
+    public synchronized void addEntry(String name, ByteArrayOutputStream content) throws IOException {
+        ArgumentCheck.checkNotNullOrEmpty(name, "String name");
+        ArgumentCheck.checkNotNull(content, "ByteArrayOutputStream content");
+        checkNotFinished();
+        zipOut.putNextEntry(new ZipEntry(name));
+        content.writeTo(zipOut);
+        zipOut.closeEntry();
+        entries++;
+        bytes += content.size();
+    }
+
+    /**
+     * Adds a directory with all its files and subdirectories, like {@link ZipUtils#zipFile(File, String,
+     * ZipOutputStream)}.
+     * @param dir The directory.
+     * @param name The name of the directory in the zip file.
+     */
+    public synchronized void addDirectory(File dir, String name) {
+        ArgumentCheck.checkExistsDirectory(dir, "File dir");
+        checkNotFinished();
+        ZipUtils.zipFile(dir, name, zipOut);
+    }
+
+    /**
+     * Completes the zip file, and moves it into place.
+     * @throws IOException If the zip file cannot be completed or moved.
+     */
+    public synchronized void finish() throws IOException {
+        checkNotFinished();
+        finished = true;
+        zipOut.close();
+        Files.move(partFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Wrote the zip file '{}'", zipFile);
+    }
+
+    /** @return The number of entries added from buffers.*/
+    public synchronized long getEntries() {
+        return entries;
+    }
+
+    /** @return The number of uncompressed bytes added from buffers.*/
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Closes the archive. If it has not been finished, the incomplete zip file is removed.
+     * @throws IOException If the incomplete zip file cannot be removed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(finished) {
+            return;
+        }
+        finished = true;
+        try {
+            zipOut.close();
+        } catch (IOException e) {
+            log.debug("Could not close the incomplete zip file '{}'", partFile, e);
+        }
+        Files.deleteIfExists(partFile.toPath());
+        log.warn("The zip file '{}' was not finished, and has been removed", zipFile);
+    }
+
+    /**
+     * Checks that the archive has not been finished or closed.
+     */
+    protected void checkNotFinished() {
+        if(finished) {
+            throw new IllegalStateException("The zip file '" + zipFile + "' has already been finished");
+        }
+    }
+}
@@ -2,18 +2,41 @@ package dk.kb.provide_dod_info;
 
 import dk.kb.provide_dod_info.config.Configuration;
 import dk.kb.provide_dod_info.metadata.AlmaMetadataRetriever;
+import dk.kb.provide_dod_info.testutils.SruFixtureServer;
 import dk.kb.provide_dod_info.testutils.TestConfigurations;
 import dk.kb.provide_dod_info.testutils.TestFileUtils;
 import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
 public class AlmaMetadataRetrieverTest extends ExtendedTestCase {
 
@@ -59,4 +82,281 @@ public class AlmaMetadataRetrieverTest extends ExtendedTestCase {
         File output = new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString());
         retriever.retrieveMetadataForBarcode(INVALID_ID, new FileOutputStream(output));
     }
+
+    @Test
+    public void testRetrieveMetadataForBarcodes() throws IOException {
+        addDescription("Test that the records of a batch response are matched to the barcodes, and that ambiguous "
+                + "and missing barcodes are left out.");
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_SRU_BATCH_SIZE, 10);
+        byte[] response = Files.readAllBytes(new File("src/test/resources/sru/batch_response.xml").toPath());
+        HttpClient httpClient = mock(HttpClient.class);
+        doAnswer((Answer<Void>) invocation -> {
+            OutputStream out = (OutputStream) invocation.getArguments()[1];
+            out.write(response);
+            return null;
+        }).when(httpClient).retrieveUrlContent(anyString(), any(OutputStream.class));
+
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(new Configuration(confMap), httpClient);
+        Map<String, byte[]> res = retriever.retrieveMetadataForBarcodes(
+                Arrays.asList("130019875918", "130019875926", "130020011111", "130020099999"));
+
+        Assert.assertEquals(res.size(), 2);
+        String marc = new String(res.get("130019875918"), StandardCharsets.UTF_8);
+        Assert.assertTrue(marc.contains("<controlfield tag=\"001\">99122058486905763</controlfield>"));
+        Assert.assertTrue(res.containsKey("130019875926"));
+        Assert.assertFalse(res.containsKey("130020011111"), "Ambiguous barcode must be left out");
+        Assert.assertFalse(res.containsKey("130020099999"), "Missing barcode must be left out");
+    }
+
+    @Test
+    public void testRetrieveMetadataForBarcodeStreaming() throws IOException {
+        addDescription("Test that the MARC record is written directly from the streamed SRU response.");
+        HttpClient httpClient = mockStreamingResponse("src/test/resources/sru/barcode_response.xml");
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, httpClient);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        retriever.retrieveMetadataForBarcode("130019875918", out);
+
+        String marc = out.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(marc.contains("<recordData xmlns=\"http://www.loc.gov/zing/srw/\">"));
+        Assert.assertTrue(marc.contains("<record xmlns=\"http://www.loc.gov/MARC21/slim\">"));
+        Assert.assertTrue(marc.contains("<controlfield tag=\"001\">99122058486905763</controlfield>"));
+        Assert.assertTrue(marc.contains("<subfield code=\"a\">Kjøbenhavn :</subfield>"));
+        Assert.assertFalse(marc.contains("recordIdentifier"));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testRetrieveMetadataForBarcodeStreamingMultipleRecords() throws IOException {
+        addDescription("Test that nothing is written, when the SRU response does not contain exactly one record.");
+        HttpClient httpClient = mockStreamingResponse("src/test/resources/sru/batch_response.xml");
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, httpClient);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            retriever.retrieveMetadataForBarcode("130020011111", out);
+        } finally {
+            Assert.assertEquals(out.size(), 0);
+        }
+    }
+
+    @Test
+    public void testRetrieveMetadataForBarcodeFromFixtureServer() throws IOException {
+        addDescription("Test the complete retrieval through the HTTP client against the offline SRU fixture "
+                + "server, with compression and a bandwidth cap.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            server.addResponse("alma.barcode=130019875918", new File("src/test/resources/sru/barcode_response.xml"))
+                    .withCompression(true)
+                    .withBandwidth(256 * 1024L);
+            Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+            confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, server.getSruSearchUrl());
+            Configuration conf = new Configuration(confMap);
+            try (HttpClient httpClient = new HttpClient(conf)) {
+                AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(conf, httpClient);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                retriever.retrieveMetadataForBarcode("130019875918", out);
+
+                Assert.assertTrue(out.toString(StandardCharsets.UTF_8)
+                        .contains("<controlfield tag=\"001\">99122058486905763</controlfield>"));
+                Assert.assertEquals(server.getRequestCount(), 1);
+                Assert.assertTrue(httpClient.getCompressedBytes() < httpClient.getUncompressedBytes());
+                Assert.assertEquals(retriever.getLookupStatistics().getFound(), 1);
+            }
+        }
+    }
+
+    @Test
+    public void testECollectionPagesAreNotCached() throws IOException {
+        addDescription("Test that the barcode responses are cached, while the pages of an electronic collection are "
+                + "always retrieved from Alma.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            server.addResponse("alma.barcode=130019875918", new File("src/test/resources/sru/barcode_response.xml"))
+                    .addResponse("alma.packageName=coll", new File("src/test/resources/sru/barcode_response.xml"));
+            Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+            confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, server.getSruSearchUrl());
+            confMap.put(Configuration.CONF_SRU_CACHE_DIR,
+                    new File(TestFileUtils.getTempDir(), UUID.randomUUID().toString()).getAbsolutePath());
+            try (HttpClient httpClient = new HttpClient(new Configuration(confMap))) {
+                AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(new Configuration(confMap), httpClient);
+
+                for (int i = 0; i < 2; i++) {
+                    retriever.retrieveMetadataForBarcode("130019875918", new ByteArrayOutputStream());
+                    retriever.retrieveMetadataForECollection("coll", 1, 10);
+                }
+
+                Assert.assertEquals(server.getRequestCount("alma.barcode=130019875918"), 1);
+                Assert.assertEquals(server.getRequestCount("alma.packageName=coll"), 2);
+            }
+        }
+    }
+
+    @Test
+    public void testRetrieveMetadataForBarcodeCompact() throws IOException {
+        addDescription("Test that the MARC record is written without the indentation of the response, when compact "
+                + "MARC is configured.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            server.addResponse("alma.barcode=130019875918", new File("src/test/resources/sru/barcode_response.xml"));
+            Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+            confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, server.getSruSearchUrl());
+            ByteArrayOutputStream indented = new ByteArrayOutputStream();
+            try (HttpClient httpClient = new HttpClient(new Configuration(confMap))) {
+                new AlmaMetadataRetriever(new Configuration(confMap), httpClient)
+                        .retrieveMetadataForBarcode("130019875918", indented);
+            }
+            confMap.put(Configuration.CONF_COMPACT_MARC, true);
+            ByteArrayOutputStream compact = new ByteArrayOutputStream();
+            try (HttpClient httpClient = new HttpClient(new Configuration(confMap))) {
+                new AlmaMetadataRetriever(new Configuration(confMap), httpClient)
+                        .retrieveMetadataForBarcode("130019875918", compact);
+            }
+
+            String marc = compact.toString(StandardCharsets.UTF_8);
+            Assert.assertTrue(compact.size() < indented.size());
+            Assert.assertFalse(marc.contains("\n"), marc);
+            Assert.assertTrue(marc.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><recordData "), marc);
+            Assert.assertTrue(marc.contains("\"><record xmlns=\"http://www.loc.gov/MARC21/slim\"><leader>"), marc);
+            Assert.assertTrue(marc.contains("<subfield code=\"a\">Kjøbenhavn :</subfield><subfield code=\"b\">"), marc);
+        }
+    }
+
+    @Test
+    public void testRetrieveMetadataForBarcodeMissFromFixtureServer() throws IOException {
+        addDescription("Test that a barcode without a record fails, and is counted as not found.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+            confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, server.getSruSearchUrl());
+            Configuration conf = new Configuration(confMap);
+            try (HttpClient httpClient = new HttpClient(conf)) {
+                AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(conf, httpClient);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    retriever.retrieveMetadataForBarcode("130020099999", out);
+                    Assert.fail("A barcode without a record must fail");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+                Assert.assertEquals(out.size(), 0);
+                Assert.assertEquals(retriever.getLookupStatistics().getNotFound(), 1);
+                Assert.assertEquals(retriever.getLookupStatistics().getLookups(), 1);
+            }
+        }
+    }
+
+    @Test
+    public void testRetrieveMetadataForBarcodeAbortsOnMultipleRecords() throws IOException {
+        addDescription("Test that the response is not read beyond the number of records, when it is not 1.");
+        byte[] response = Files.readAllBytes(new File("src/test/resources/sru/batch_response.xml").toPath());
+        InputStream header = new ByteArrayInputStream(Arrays.copyOf(response, 300));
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Read beyond the number of records");
+            }
+        };
+        try (HttpClient httpClient = new HttpClient(configuration)) {
+            AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(configuration, httpClient) {
+                @Override
+                protected void retrieveSruResponse(String requestUrl, HttpClient.ContentConsumer consumer)
+                        throws IOException {
+                    consumer.accept(new SequenceInputStream(header, failing));
+                }
+            };
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                retriever.retrieveMetadataForBarcode("130020011111", out);
+                Assert.fail("A barcode with several records must fail");
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(e.getMessage().contains("Received: 3"), e.getMessage());
+            }
+            Assert.assertEquals(out.size(), 0);
+            Assert.assertEquals(retriever.getLookupStatistics().getAmbiguous(), 1);
+        }
+    }
+
+    @Test
+    public void testConcurrentRetrievalAgainstFixtureServer() throws Exception {
+        addDescription("Test that sequential lookups reach the SRU fixture server one at a time, and that lookups "
+                + "from several threads are handled by the server at the same time.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            server.addResponse("alma.barcode=130019875918", new File("src/test/resources/sru/barcode_response.xml"))
+                    .withLatency(SruFixtureServer.logNormalLatency(50L, 0.3));
+            Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+            confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, server.getSruSearchUrl());
+            Configuration conf = new Configuration(confMap);
+            try (HttpClient httpClient = new HttpClient(conf)) {
+                AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(conf, httpClient);
+                int lookups = 16;
+
+                for (int i = 0; i < lookups; i++) {
+                    retriever.retrieveMetadataForBarcode("130019875918", new ByteArrayOutputStream());
+                }
+                Assert.assertEquals(server.getMaxInFlight(), 1);
+
+                ExecutorService executor = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int i = 0; i < lookups; i++) {
+                        futures.add(executor.submit(() -> retriever.retrieveMetadataForBarcode("130019875918",
+                                new ByteArrayOutputStream())));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdown();
+                }
+
+                Assert.assertEquals(server.getRequestCount(), 2 * lookups);
+                // Each lookup waits for the latency of the server, so the 4 threads overlap
+                Assert.assertTrue(server.getMaxInFlight() > 1, "Max in flight: " + server.getMaxInFlight());
+            }
+        }
+    }
+
+    @Test
+    public void testRetrieveMetadataForBarcodeAsync() throws Exception {
+        addDescription("Test the non-blocking retrieval of the MARC records for many barcodes at the same time "
+                + "against the SRU fixture server.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            server.addResponse("alma.barcode=130019875918", new File("src/test/resources/sru/barcode_response.xml"))
+                    .withLatency(SruFixtureServer.uniformLatency(20L, 80L));
+            Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+            confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, server.getSruSearchUrl());
+            Configuration conf = new Configuration(confMap);
+            try (AsyncHttpClient asyncHttpClient = new AsyncHttpClient(conf)) {
+                AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(conf, new HttpClient(conf),
+                        asyncHttpClient);
+
+                List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    futures.add(retriever.retrieveMetadataForBarcodeAsync("130019875918"));
+                }
+                CompletableFuture<byte[]> unknown = retriever.retrieveMetadataForBarcodeAsync("130020099999");
+
+                for (CompletableFuture<byte[]> future : futures) {
+                    Assert.assertTrue(new String(future.get(), StandardCharsets.UTF_8)
+                            .contains("<controlfield tag=\"001\">99122058486905763</controlfield>"));
+                }
+                try {
+                    unknown.get();
+                    Assert.fail("The lookup of an unknown barcode must fail");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+                }
+                Assert.assertEquals(server.getRequestCount(), 51);
+            }
+        }
+    }
+
+    private HttpClient mockStreamingResponse(String responseFile) throws IOException {
+        byte[] response = Files.readAllBytes(new File(responseFile).toPath());
+        HttpClient httpClient = mock(HttpClient.class);
+        doAnswer((Answer<Void>) invocation -> {
+            HttpClient.ContentConsumer consumer = (HttpClient.ContentConsumer) invocation.getArguments()[1];
+            consumer.accept(new ByteArrayInputStream(response));
+            return null;
+        }).when(httpClient).retrieveUrlContent(anyString(), any(HttpClient.ContentConsumer.class));
+        return httpClient;
+    }
 }
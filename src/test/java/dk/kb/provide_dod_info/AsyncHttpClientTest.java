@@ -0,0 +1,106 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.testutils.SruFixtureServer;
+import dk.kb.provide_dod_info.utils.CircuitBreaker;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class AsyncHttpClientTest extends ExtendedTestCase {
+
+    String QUERY = "alma.barcode=130019875918";
+    File RESPONSE_FILE = new File("src/test/resources/sru/barcode_response.xml");
+
+    @Test
+    public void testManyRequestsInFlight() throws Exception {
+        addDescription("Test that many requests are in flight at the same time with only a few threads, limited "
+                + "by the maximum number in flight.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L);
+             AsyncHttpClient client = createClient(20)) {
+            server.addResponse(QUERY, RESPONSE_FILE)
+                    .withLatency(SruFixtureServer.fixedLatency(100L))
+                    .withCompression(true);
+            int requests = 100;
+
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                futures.add(client.retrieveUrlContent(server.getSruSearchUrl() + "query=" + QUERY));
+            }
+            Assert.assertTrue(client.getPendingRequests() > 0, "Requests beyond the limit must be queued");
+            CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).get();
+
+            for (CompletableFuture<byte[]> future : futures) {
+                Assert.assertTrue(new String(future.get(), StandardCharsets.UTF_8).contains("99122058486905763"));
+            }
+            Assert.assertEquals(server.getRequestCount(), requests);
+            Assert.assertTrue(client.getCompressedBytes() < client.getUncompressedBytes());
+            Assert.assertTrue(server.getMaxInFlight() > 1, "In flight " + server.getMaxInFlight());
+            Assert.assertTrue(server.getMaxInFlight() <= 20, "In flight " + server.getMaxInFlight());
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        addDescription("Test that transient errors are retried, until the response is delivered.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L);
+             AsyncHttpClient client = createClient(5)) {
+            server.addResponse(QUERY, RESPONSE_FILE).failNext(2, 503);
+
+            byte[] content = client.retrieveUrlContent(server.getSruSearchUrl() + "query=" + QUERY).get();
+
+            Assert.assertTrue(new String(content, StandardCharsets.UTF_8).contains("99122058486905763"));
+            Assert.assertEquals(server.getRequestCount(QUERY), 3);
+        }
+    }
+
+    @Test
+    public void testBadResponse() throws IOException, InterruptedException {
+        addDescription("Test that a response with a non-transient error status fails without retries.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L);
+             AsyncHttpClient client = createClient(5)) {
+            server.addResponse(QUERY, RESPONSE_FILE).failNext(1, 404);
+
+            try {
+                client.retrieveUrlContent(server.getSruSearchUrl() + "query=" + QUERY).get();
+                Assert.fail("The request must fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException, e.getCause().toString());
+            }
+            Assert.assertEquals(server.getRequestCount(QUERY), 1);
+        }
+    }
+
+    @Test
+    public void testOtherFailureReleasesProbe() throws IOException {
+        addDescription("Test that a request, which fails with an error other than an I/O error, releases the probe "
+                + "of the circuit breaker.");
+        CircuitBreaker breaker = new CircuitBreaker("Alma", 1, 1L, 60000L);
+        try (AsyncHttpClient client = new AsyncHttpClient(5, 2, 1000, 5000, 3, 10L, 100L, breaker)) {
+            breaker.recordFailure();
+            breaker.acquire();
+            Assert.assertTrue(breaker.tryAcquire() > 0, "The probe is in flight");
+
+            CompletableFuture<byte[]> res = client.onFailure(HttpRequest.newBuilder(URI.create("http://localhost/"))
+                    .build(), 0, new CancellationException());
+
+            Assert.assertTrue(res.isCompletedExceptionally());
+            Assert.assertEquals(breaker.tryAcquire(), 0L);
+        }
+    }
+
+    private AsyncHttpClient createClient(int maxInFlight) {
+        return new AsyncHttpClient(maxInFlight, 2, 1000, 5000, 3, 10L, 100L,
+                new CircuitBreaker("Alma", 5, 1000L, 60000L));
+    }
+}
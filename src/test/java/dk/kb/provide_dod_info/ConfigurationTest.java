@@ -4,6 +4,8 @@ import dk.kb.provide_dod_info.testutils.TestConfigurations;
 import dk.kb.provide_dod_info.testutils.TestFileUtils;
 import dk.kb.provide_dod_info.utils.FileUtils;
 import dk.kb.provide_dod_info.config.Configuration;
+import dk.kb.provide_dod_info.config.ExtractColumn;
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
@@ -12,6 +14,8 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 public class ConfigurationTest extends ExtendedTestCase {
 
@@ -47,6 +51,73 @@ public class ConfigurationTest extends ExtendedTestCase {
 
     }
 
+    @Test
+    public void testHttpTransportSettings() throws IOException {
+        addDescription("Test that the HTTP transport settings have defaults and can be overridden.");
+        Configuration conf = TestConfigurations.getTestConfiguration();
+        Assert.assertEquals(conf.getHttpMaxPerRoute(), Configuration.DEFAULT_HTTP_MAX_PER_ROUTE);
+        Assert.assertEquals(conf.getHttpSocketTimeoutMs(), Configuration.DEFAULT_HTTP_SOCKET_TIMEOUT_MS);
+
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_HTTP_MAX_PER_ROUTE, 4);
+        confMap.put(Configuration.CONF_HTTP_SOCKET_TIMEOUT_MS, "2500");
+        conf = new Configuration(confMap);
+        Assert.assertEquals(conf.getHttpMaxPerRoute(), 4);
+        Assert.assertEquals(conf.getHttpSocketTimeoutMs(), 2500);
+    }
+
+    @Test
+    public void testExtractColumns() throws IOException {
+        addDescription("Test that the extracted columns have defaults and can be configured as a list of maps.");
+        Configuration conf = TestConfigurations.getTestConfiguration();
+        Assert.assertEquals(conf.getExtractColumns(), Configuration.DEFAULT_EXTRACT_COLUMNS);
+
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_EXTRACT_COLUMNS, List.of(
+                Map.of(ExtractColumn.CONF_NAME, "Publisher", ExtractColumn.CONF_FIELD, "264$b",
+                        ExtractColumn.CONF_REMOVE, "[]:,"),
+                Map.of(ExtractColumn.CONF_NAME, "Language", ExtractColumn.CONF_FIELD, "041$a")));
+        conf = new Configuration(confMap);
+        Assert.assertEquals(conf.getExtractColumns().size(), 2);
+        ExtractColumn publisher = conf.getExtractColumns().get(0);
+        Assert.assertEquals(publisher.getName(), "Publisher");
+        Assert.assertEquals(publisher.getTag(), "264");
+        Assert.assertEquals(publisher.getCode(), "b");
+        Assert.assertEquals(publisher.clean("[Reitzel], :"), "Reitzel ");
+        Assert.assertEquals(conf.getExtractColumns().get(1).clean("[dan]"), "[dan]");
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testExtractColumnsInvalidField() throws IOException {
+        addDescription("Test that a column must have a datafield tag and a subfield code.");
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_EXTRACT_COLUMNS, List.of(
+                Map.of(ExtractColumn.CONF_NAME, "Publisher", ExtractColumn.CONF_FIELD, "264")));
+        new Configuration(confMap);
+    }
+
+    @Test
+    public void testTextExtractor() throws IOException {
+        addDescription("Test that the text extractor is pdftotext by default, and can be set to pdfbox.");
+        Configuration conf = TestConfigurations.getTestConfiguration();
+        Assert.assertEquals(conf.getTextExtractor(), Configuration.TEXT_EXTRACTOR_PDFTOTEXT);
+
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_TEXT_EXTRACTOR, Configuration.TEXT_EXTRACTOR_PDFBOX);
+        confMap.put(Configuration.CONF_PDFBOX_MAX_MEMORY_MB, 16);
+        conf = new Configuration(confMap);
+        Assert.assertEquals(conf.getTextExtractor(), Configuration.TEXT_EXTRACTOR_PDFBOX);
+        Assert.assertEquals(conf.getPdfboxMaxMemoryMb(), 16);
+    }
+
+    @Test(expectedExceptions = ArgumentCheck.class)
+    public void testUnknownTextExtractor() throws IOException {
+        addDescription("Test that an unknown text extractor is not accepted.");
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_TEXT_EXTRACTOR, "tesseract");
+        new Configuration(confMap);
+    }
+
     @Test
     public void testConfigurationWithoutTransfer() {
         Configuration conf = TestConfigurations.getTestConfiguration();
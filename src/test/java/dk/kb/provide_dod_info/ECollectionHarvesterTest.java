@@ -0,0 +1,65 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.metadata.AlmaMetadataRetriever;
+import dk.kb.provide_dod_info.metadata.ECollectionHarvester;
+import org.jaccept.structure.ExtendedTestCase;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ECollectionHarvesterTest extends ExtendedTestCase {
+
+    String E_COLLECTION = "Historisk_laerebogssamling";
+
+    @Test
+    public void testHarvestAllPages() {
+        addDescription("Test that all the records of an electronic collection are harvested in order, "
+                + "with one request per page.");
+        int numberOfRecords = 23;
+        AlmaMetadataRetriever retriever = mock(AlmaMetadataRetriever.class);
+        doAnswer((Answer<ByteArrayInputStream>) invocation -> {
+            int startRecord = (Integer) invocation.getArguments()[1];
+            int maximumRecords = (Integer) invocation.getArguments()[2];
+            return createPage(startRecord, Math.min(startRecord + maximumRecords - 1, numberOfRecords),
+                    numberOfRecords);
+        }).when(retriever).retrieveMetadataForECollection(eq(E_COLLECTION), anyInt(), anyInt());
+
+        List<String> links;
+        try (ECollectionHarvester harvester = new ECollectionHarvester(retriever, E_COLLECTION, 10);
+             Stream<org.w3c.dom.Node> records = harvester.records()) {
+            links = records.flatMap(r -> harvester.getLinksToEEdition(r).stream()).collect(Collectors.toList());
+        }
+
+        Assert.assertEquals(links.size(), numberOfRecords);
+        for (int i = 0; i < numberOfRecords; i++) {
+            Assert.assertEquals(links.get(i), "https://www.kb.dk/e-mat/dod/" + (i + 1) + "-color.pdf");
+        }
+        verify(retriever, times(3)).retrieveMetadataForECollection(eq(E_COLLECTION), anyInt(), eq(10));
+    }
+
+    private ByteArrayInputStream createPage(int first, int last, int numberOfRecords) {
+        StringBuilder res = new StringBuilder("<searchRetrieveResponse xmlns=\"http://www.loc.gov/zing/srw/\">"
+                + "<numberOfRecords>" + numberOfRecords + "</numberOfRecords><records>");
+        for (int i = first; i <= last; i++) {
+            res.append("<record><recordData><record xmlns=\"http://www.loc.gov/MARC21/slim\">")
+                    .append("<datafield tag=\"856\" ind1=\"4\" ind2=\"0\"><subfield code=\"u\">")
+                    .append("https://www.kb.dk/e-mat/dod/").append(i).append("-color.pdf")
+                    .append("</subfield></datafield></record></recordData></record>");
+        }
+        res.append("</records></searchRetrieveResponse>");
+        return new ByteArrayInputStream(res.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,114 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.exception.ArgumentCheck;
+import dk.kb.provide_dod_info.metadata.MarcFields;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ExcelRowCollectorTest extends ExtendedTestCase {
+
+    @Test
+    public void testRowsInNumericOrder() {
+        addDescription("Test that the rows are returned in the order of their numbers, also beyond 10 rows.");
+        ExcelRowCollector collector = new ExcelRowCollector();
+        for (int i = 1; i <= 12; i++) {
+            collector.add(new Object[] {"row" + i});
+        }
+        List<String> keys = new ArrayList<>(collector.getData().keySet());
+        Assert.assertEquals(keys.size(), 12);
+        for (int i = 1; i <= 12; i++) {
+            Assert.assertEquals(keys.get(i - 1), String.valueOf(i));
+            Assert.assertEquals(collector.getData().get(String.valueOf(i))[0], "row" + i);
+        }
+    }
+
+    @Test
+    public void testConcurrentRows() throws Exception {
+        addDescription("Test that rows allocated in order can be put from several threads in any order.");
+        ExcelRowCollector collector = new ExcelRowCollector();
+        int numberOfRows = 200;
+        int[] allocated = new int[numberOfRows];
+        for (int i = 0; i < numberOfRows; i++) {
+            allocated[i] = collector.allocateRow();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = numberOfRows - 1; i >= 0; i--) {
+                int index = i;
+                futures.add(executor.submit(() -> collector.put(allocated[index], new Object[] {index})));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        int expected = 0;
+        for (Map.Entry<String, Object[]> row : collector.getData().entrySet()) {
+            Assert.assertEquals(row.getKey(), String.valueOf(expected + 1));
+            Assert.assertEquals(row.getValue()[0], expected);
+            expected++;
+        }
+        Assert.assertEquals(expected, numberOfRows);
+    }
+
+    @Test
+    public void testPutRowTwice() {
+        addDescription("Test that a row cannot be put twice, and that rows must be allocated first.");
+        ExcelRowCollector collector = new ExcelRowCollector();
+        int row = collector.allocateRow();
+        collector.put(row, new Object[] {"first"});
+        try {
+            collector.put(row, new Object[] {"second"});
+            Assert.fail("A row must not be put twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            collector.put(row + 1, new Object[] {"unallocated"});
+            Assert.fail("A row must be allocated first");
+        } catch (ArgumentCheck e) {
+            // expected
+        }
+        Assert.assertEquals(collector.getData().get("1")[0], "first");
+    }
+
+    @Test
+    public void testBarcodeResults() {
+        addDescription("Test the rows and the counts of the results of the barcodes.");
+        ExcelRowCollector collector = new ExcelRowCollector();
+        MarcFields fields = new MarcFields("1850", List.of("Author", "Title"), List.of("An author", "A title"));
+        collector.addAll(List.of(BarcodeResult.ok("1", fields), BarcodeResult.skipped("2"),
+                BarcodeResult.failed("3")));
+
+        Assert.assertEquals(collector.getOk(), 1);
+        Assert.assertEquals(collector.getFailed(), 1);
+        Assert.assertEquals(collector.getSkipped(), 1);
+        Map<String, Object[]> data = collector.getData();
+        Assert.assertEquals(data.size(), 2);
+        Assert.assertEquals(Arrays.asList(data.get("1")), List.of("1", Constants.OK, "1850", "An author", "A title"));
+        Assert.assertEquals(Arrays.asList(data.get("2")), List.of("3", Constants.NOK));
+        Assert.assertNull(BarcodeResult.skipped("2").getRow());
+    }
+
+    @Test
+    public void testTimedOutResult() {
+        addDescription("Test that a barcode, whose text was not extracted in time, is counted and marked as such.");
+        ExcelRowCollector collector = new ExcelRowCollector();
+        collector.add(BarcodeResult.timedOut("1"));
+
+        Assert.assertEquals(collector.getTimedOut(), 1);
+        Assert.assertEquals(collector.getSkipped(), 0);
+        Assert.assertEquals(Arrays.asList(collector.getData().get("1")), List.of("1", Constants.TIMEOUT));
+    }
+}
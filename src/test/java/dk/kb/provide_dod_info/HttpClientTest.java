@@ -1,13 +1,28 @@
 package dk.kb.provide_dod_info;
 
+import dk.kb.provide_dod_info.testutils.SruFixtureServer;
+import dk.kb.provide_dod_info.utils.CircuitBreaker;
+import org.apache.http.message.BasicHeader;
 import org.jaccept.structure.ExtendedTestCase;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class HttpClientTest extends ExtendedTestCase {
 
@@ -60,4 +75,158 @@ public class HttpClientTest extends ExtendedTestCase {
         Assert.assertFalse(httpClient.validateResponseCode(418)); // I'm a teapot
         Assert.assertFalse(httpClient.validateResponseCode(505)); // HTTP Version Not Supported
     }
+
+    @Test
+    public void testIsTransientStatus() {
+        addDescription("Test which response codes are retried");
+
+        Assert.assertTrue(HttpClient.isTransientStatus(408)); // Request Timeout
+        Assert.assertTrue(HttpClient.isTransientStatus(429)); // Too Many Requests
+        Assert.assertTrue(HttpClient.isTransientStatus(500)); // Internal Server Error
+        Assert.assertTrue(HttpClient.isTransientStatus(503)); // Service Unavailable
+        Assert.assertFalse(HttpClient.isTransientStatus(404)); // Not Found
+        Assert.assertFalse(HttpClient.isTransientStatus(501)); // Not Implemented
+    }
+
+    @Test
+    public void testDecode() throws IOException {
+        addDescription("Test that gzip and deflate compressed content is decompressed, and identity is left as is");
+        byte[] content = "<searchRetrieveResponse/>".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(content);
+        }
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(deflated)) {
+            out.write(content);
+        }
+
+        Assert.assertEquals(HttpClient.decode(new ByteArrayInputStream(gzipped.toByteArray()),
+                new BasicHeader("Content-Encoding", "gzip")).readAllBytes(), content);
+        Assert.assertEquals(HttpClient.decode(new ByteArrayInputStream(deflated.toByteArray()),
+                new BasicHeader("Content-Encoding", "deflate")).readAllBytes(), content);
+        Assert.assertEquals(HttpClient.decode(new ByteArrayInputStream(content), null).readAllBytes(), content);
+    }
+
+    @Test
+    public void testRetryAgainstFixtureServer() throws IOException {
+        addDescription("Test that transient errors from the SRU fixture server are retried, until the response is "
+                + "delivered.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            String query = "alma.barcode=130019875918";
+            server.addResponse(query, new File("src/test/resources/sru/barcode_response.xml"));
+            server.failNext(2, 503);
+            HttpClient httpClient = new HttpClient(4, 4, 5, 1000, 5000, 3, 10L, 100L,
+                    new CircuitBreaker("Alma", 5, 1000L, 60000L));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            httpClient.retrieveUrlContent(server.getSruSearchUrl() + "query=" + query, baos);
+
+            Assert.assertTrue(baos.toString(StandardCharsets.UTF_8).contains("99122058486905763"));
+            Assert.assertEquals(server.getRequestCount(query), 3);
+        }
+    }
+
+    @Test
+    public void testOutputStreamIsFlushedButNotClosed() throws IOException {
+        addDescription("Test that the output stream of the caller is flushed, but not closed.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            String query = "alma.barcode=130019875918";
+            server.addResponse(query, new File("src/test/resources/sru/barcode_response.xml"));
+            HttpClient httpClient = new HttpClient(4, 4, 5, 1000, 5000, 0, 10L, 100L,
+                    new CircuitBreaker("Alma", 5, 1000L, 60000L));
+
+            AtomicBoolean flushed = new AtomicBoolean(false);
+            AtomicBoolean closed = new AtomicBoolean(false);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+                @Override
+                public void flush() {
+                    flushed.set(true);
+                }
+
+                @Override
+                public void close() {
+                    closed.set(true);
+                }
+            };
+            httpClient.retrieveUrlContent(server.getSruSearchUrl() + "query=" + query, baos);
+            httpClient.close();
+
+            Assert.assertTrue(baos.toString(StandardCharsets.UTF_8).contains("99122058486905763"));
+            Assert.assertTrue(flushed.get());
+            Assert.assertFalse(closed.get());
+        }
+    }
+
+    @Test
+    public void testConsumerFailureDoesNotOpenCircuitBreaker() throws IOException {
+        addDescription("Test that a failure to write the content, e.g. a full disk, is thrown as it is, and is not "
+                + "counted as a failure of the server by the circuit breaker.");
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            String query = "alma.barcode=130019875918";
+            server.addResponse(query, new File("src/test/resources/sru/barcode_response.xml"));
+            CircuitBreaker circuitBreaker = new CircuitBreaker("Alma", 1, 1000L, 60000L);
+            HttpClient httpClient = new HttpClient(4, 4, 5, 1000, 5000, 3, 10L, 100L, circuitBreaker);
+
+            OutputStream fullDisk = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("No space left on device");
+                }
+            };
+            try {
+                httpClient.retrieveUrlContent(server.getSruSearchUrl() + "query=" + query, fullDisk);
+                Assert.fail("The failure to write must be thrown");
+            } catch (IOException e) {
+                Assert.assertEquals(e.getMessage(), "No space left on device");
+            }
+            httpClient.close();
+
+            Assert.assertFalse(circuitBreaker.isOpen());
+            Assert.assertEquals(server.getRequestCount(query), 1);
+        }
+    }
+
+    @Test
+    public void testWaitingForPooledConnectionTimesOut() throws Exception {
+        addDescription("Test that a request fails, instead of waiting forever, when the only pooled connection "
+                + "is leased.");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (SruFixtureServer server = new SruFixtureServer(null, 42L)) {
+            String query = "alma.barcode=130019875918";
+            server.addResponse(query, new File("src/test/resources/sru/barcode_response.xml"));
+            String url = server.getSruSearchUrl() + "query=" + query;
+            HttpClient httpClient = new HttpClient(1, 1, 5, 200, 5000, 0, 10L, 100L,
+                    new CircuitBreaker("Alma", 5, 1000L, 60000L));
+
+            CountDownLatch leased = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<?> holder = executor.submit(() -> {
+                httpClient.retrieveUrlContent(url, content -> {
+                    leased.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                return null;
+            });
+            Assert.assertTrue(leased.await(10, TimeUnit.SECONDS));
+
+            try {
+                httpClient.retrieveUrlContent(url, new ByteArrayOutputStream());
+                Assert.fail("The request should not get a pooled connection");
+            } catch (IOException e) {
+                // expected
+            } finally {
+                release.countDown();
+            }
+            holder.get(10, TimeUnit.SECONDS);
+            httpClient.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.metadata.MarcCollectionWriter;
+import dk.kb.provide_dod_info.metadata.MetadataValidator;
+import dk.kb.provide_dod_info.metadata.xsl.XmlErrorHandler;
+import dk.kb.provide_dod_info.testutils.TestFileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class MarcCollectionWriterTest extends ExtendedTestCase {
+
+    @Test
+    public void testWriteIndentedCollection() throws Exception {
+        addDescription("Test that the records of several MARC files are written to one valid, indented collection, "
+                + "and that the index points at each record.");
+        testWriteCollection(false);
+    }
+
+    @Test
+    public void testWriteCompactCollection() throws Exception {
+        addDescription("Test that the records of several MARC files are written to one valid, compact collection, "
+                + "and that the index points at each record.");
+        testWriteCollection(true);
+    }
+
+    @Test
+    public void testAddInvalidFile() throws Exception {
+        addDescription("Test that a file without a MARC record is not added, and that the collection stays valid.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/marc-collection-invalid");
+        try {
+            File notMarc = new File(dir, "1" + Constants.MARC_METADATA_SUFFIX);
+            TestFileUtils.createFile(notMarc, "<recordData><record/></recordData>");
+            File collectionFile = new File(dir, Constants.MARC_COLLECTION_FILE_NAME);
+            File indexFile = new File(dir, Constants.MARC_COLLECTION_INDEX_FILE_NAME);
+            try (MarcCollectionWriter writer = new MarcCollectionWriter(collectionFile, indexFile, false)) {
+                try {
+                    writer.add("1", notMarc);
+                    Assert.fail("A file without a MARC21 slim record must not be added");
+                } catch (IOException e) {
+                    // expected
+                }
+                Assert.assertEquals(writer.getRecords(), 0);
+            }
+            Assert.assertEquals(Files.readAllLines(indexFile.toPath()).size(), 1);
+            XmlErrorHandler errorHandler = new XmlErrorHandler();
+            Assert.assertTrue(new MetadataValidator().isValidMarc(collectionFile, errorHandler),
+                    errorHandler.getMessages().toString());
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+
+    private void testWriteCollection(boolean compact) throws Exception {
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/marc-collection-" + compact);
+        try {
+            String marc = new String(Files.readAllBytes(new File("src/test/resources/metadata/marc_record.xml")
+                    .toPath()), StandardCharsets.UTF_8);
+            File first = new File(dir, "130019875918" + Constants.MARC_METADATA_SUFFIX);
+            TestFileUtils.createFile(first, marc);
+            File second = new File(dir, "130019875926" + Constants.MARC_METADATA_SUFFIX);
+            TestFileUtils.createFile(second, marc.replace("99122058486905763", "99122058486905764"));
+
+            File collectionFile = new File(dir, Constants.MARC_COLLECTION_FILE_NAME);
+            File indexFile = new File(dir, Constants.MARC_COLLECTION_INDEX_FILE_NAME);
+            try (MarcCollectionWriter writer = new MarcCollectionWriter(collectionFile, indexFile, compact)) {
+                writer.add("130019875918", first);
+                writer.add("130019875926", second);
+                Assert.assertEquals(writer.getRecords(), 2);
+            }
+
+            XmlErrorHandler errorHandler = new XmlErrorHandler();
+            Assert.assertTrue(new MetadataValidator().isValidMarc(collectionFile, errorHandler),
+                    errorHandler.getMessages().toString());
+            String collection = new String(Files.readAllBytes(collectionFile.toPath()), StandardCharsets.UTF_8);
+            Assert.assertTrue(collection.contains("<collection xmlns=\"http://www.loc.gov/MARC21/slim\">"));
+            Assert.assertEquals(collection.contains("\n    <record"), !compact);
+            Assert.assertFalse(collection.contains("recordData"));
+
+            byte[] bytes = Files.readAllBytes(collectionFile.toPath());
+            List<String> index = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+            Assert.assertEquals(index.size(), 3);
+            Assert.assertEquals(index.get(0), "barcode\trecord\toffset\tlength");
+            String[] barcodes = {"130019875918", "130019875926"};
+            String[] mmsIds = {"99122058486905763", "99122058486905764"};
+            for (int i = 1; i < index.size(); i++) {
+                List<String> entry = Arrays.asList(index.get(i).split("\t"));
+                Assert.assertEquals(entry.get(0), barcodes[i - 1]);
+                Assert.assertEquals(entry.get(1), String.valueOf(i - 1));
+                String record = new String(bytes, Integer.parseInt(entry.get(2)), Integer.parseInt(entry.get(3)),
+                        StandardCharsets.UTF_8);
+                Assert.assertTrue(record.startsWith("<record"), record);
+                Assert.assertTrue(record.endsWith("</record>"), record);
+                Assert.assertTrue(record.contains(mmsIds[i - 1]), record);
+            }
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.config.Configuration;
+import dk.kb.provide_dod_info.config.ExtractColumn;
+import dk.kb.provide_dod_info.metadata.BibRecordCache;
+import dk.kb.provide_dod_info.metadata.MarcFieldExtractor;
+import dk.kb.provide_dod_info.metadata.MarcFields;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class MarcFieldExtractorTest extends ExtendedTestCase {
+
+    @Test
+    public void testExtract() {
+        addDescription("Test that all the fields are extracted and sanitized in one pass, using the first "
+                + "matching subfield.");
+        MarcFields fields = new MarcFieldExtractor().extract(new File("src/test/resources/metadata/marc_record.xml"));
+
+        Assert.assertEquals(fields.getYear(), "1845");
+        Assert.assertEquals(fields.get("Author"), "Andersen, H.C.");
+        Assert.assertEquals(fields.get("Title"), "Eventyr  fortalte for børn ");
+        Assert.assertEquals(fields.get("Place"), "Kjøbenhavn ");
+        Assert.assertEquals(fields.get("Publisher"), "Reitzel C.A. ");
+        Assert.assertEquals(fields.get("Classification"), "86.6");
+    }
+
+    @Test
+    public void testExtractMissingFields() {
+        addDescription("Test that missing fields are not available, and that an invalid year is null.");
+        String marc = "<recordData><record>"
+                + "<controlfield tag=\"008\">850725s0000    dk</controlfield>"
+                + "<datafield tag=\"100\"><subfield code=\"a\"></subfield></datafield>"
+                + "</record></recordData>";
+        MarcFields fields = new MarcFieldExtractor().extract(
+                new ByteArrayInputStream(marc.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertNull(fields.getYear());
+        Assert.assertEquals(fields.get("Author"), MarcFields.NOT_AVAILABLE);
+        Assert.assertEquals(fields.get("Title"), MarcFields.NOT_AVAILABLE);
+    }
+
+    @Test
+    public void testExtractOtherRoot() {
+        addDescription("Test that nothing is extracted, when the record is not within recordData.");
+        String marc = "<record><controlfield tag=\"008\">850725s1845    dk</controlfield></record>";
+        MarcFields fields = new MarcFieldExtractor().extract(
+                new ByteArrayInputStream(marc.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertNull(fields.getYear());
+        Assert.assertEquals(fields.get("Author"), MarcFields.NOT_AVAILABLE);
+    }
+
+    @Test
+    public void testExtractConfiguredColumns() {
+        addDescription("Test that configured columns are extracted in their order, also several columns from the "
+                + "same subfield, and that missing columns are not available.");
+        List<ExtractColumn> columns = List.of(
+                new ExtractColumn("Other title", "246$a", ""),
+                new ExtractColumn("Place", "260$a", ""),
+                new ExtractColumn("Clean place", "260$a", "[];"),
+                new ExtractColumn("Language", "041$a", ""));
+        MarcFields fields = new MarcFieldExtractor(columns).extract(
+                new File("src/test/resources/metadata/marc_record.xml"));
+
+        Assert.assertEquals(fields.getYear(), "1845");
+        Assert.assertEquals(fields.getValues(),
+                List.of("Other title", "[Kjøbenhavn] ;", "Kjøbenhavn ", MarcFields.NOT_AVAILABLE));
+        Assert.assertEquals(fields.get("Author"), MarcFields.NOT_AVAILABLE);
+    }
+
+    @Test
+    public void testExtractWithCache() {
+        addDescription("Test that the fields of a record are reused for another barcode of the same record, "
+                + "and that the hits and misses are counted.");
+        BibRecordCache cache = new BibRecordCache(10);
+        MarcFieldExtractor extractor = new MarcFieldExtractor(Configuration.DEFAULT_EXTRACT_COLUMNS, cache);
+        MarcFields first = extractor.extract(new File("src/test/resources/metadata/marc_record.xml"));
+        Assert.assertEquals(cache.getMisses(), 1L);
+        Assert.assertEquals(cache.size(), 1);
+
+        // Another volume of the same record, which has been written with other fields
+        String volume = "<recordData><record>"
+                + "<controlfield tag=\"001\">99122058486905763</controlfield>"
+                + "<controlfield tag=\"008\">850725s1900    dk</controlfield>"
+                + "</record></recordData>";
+        MarcFields second = extractor.extract(new ByteArrayInputStream(volume.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertSame(second, first);
+        Assert.assertEquals(second.getYear(), "1845");
+        Assert.assertEquals(cache.getHits(), 1L);
+        Assert.assertEquals(cache.getHitRate(), 0.5);
+
+        String other = volume.replace("99122058486905763", "99122058486905764");
+        Assert.assertEquals(extractor.extract(new ByteArrayInputStream(other.getBytes(StandardCharsets.UTF_8)))
+                .getYear(), "1900");
+        Assert.assertEquals(cache.getMisses(), 2L);
+    }
+
+    @Test
+    public void testCacheEviction() {
+        addDescription("Test that the cache keeps at most its maximum number of records, and evicts the least "
+                + "recently used record.");
+        BibRecordCache cache = new BibRecordCache(2);
+        MarcFields fields = new MarcFields("1845", List.of("Title"), List.of("Eventyr"));
+        cache.put("1", fields);
+        cache.put("2", fields);
+        Assert.assertSame(cache.get("1"), fields);
+        cache.put("3", fields);
+
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertNull(cache.get("2"));
+        Assert.assertSame(cache.get("1"), fields);
+        Assert.assertSame(cache.get("3"), fields);
+    }
+}
@@ -0,0 +1,83 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.metadata.MarcValidationReport;
+import dk.kb.provide_dod_info.metadata.MetadataValidator;
+import dk.kb.provide_dod_info.metadata.xsl.XmlErrorHandler;
+import dk.kb.provide_dod_info.testutils.TestFileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class MetadataValidatorTest extends ExtendedTestCase {
+
+    @Test
+    public void testValidateMarcRecord() {
+        addDescription("Test that the MARC record inside the SRU recordData is valid according to the bundled "
+                + "MARC21 slim schema.");
+        MetadataValidator validator = new MetadataValidator();
+        XmlErrorHandler errorHandler = new XmlErrorHandler();
+        Assert.assertTrue(validator.isValidMarc(new File("src/test/resources/metadata/marc_record.xml"),
+                errorHandler), errorHandler.getMessages().toString());
+        Assert.assertTrue(errorHandler.getMessages().isEmpty());
+    }
+
+    @Test
+    public void testValidateInvalidMarcRecord() {
+        addDescription("Test that a MARC record with an invalid indicator and a document without a MARC record "
+                + "are not valid, and that the errors are reported.");
+        MetadataValidator validator = new MetadataValidator();
+        XmlErrorHandler errorHandler = new XmlErrorHandler();
+        Assert.assertFalse(validator.validateMarc(stream("<record xmlns=\"http://www.loc.gov/MARC21/slim\">"
+                + "<leader>00000nam a2200000 c 4500</leader>"
+                + "<datafield tag=\"245\" ind1=\"X\" ind2=\"0\"><subfield code=\"a\">Title</subfield></datafield>"
+                + "</record>"), errorHandler));
+        Assert.assertFalse(errorHandler.getMessages().isEmpty());
+
+        Assert.assertFalse(validator.validateMarc(stream("<record><leader/></record>"), errorHandler));
+        Assert.assertEquals(errorHandler.getMessages().size(), 1);
+
+        Assert.assertFalse(validator.validateMarc(stream("<record xmlns=\"http://www.loc.gov/MARC21/slim\">"),
+                errorHandler));
+        Assert.assertEquals(errorHandler.getMessages().size(), 1);
+    }
+
+    @Test
+    public void testValidateMarcFiles() throws Exception {
+        addDescription("Test that all the MARC files in a directory are validated in parallel, and that the "
+                + "invalid files and their errors are aggregated in the report.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/marc-validation");
+        try {
+            String marc = new String(Files.readAllBytes(new File("src/test/resources/metadata/marc_record.xml")
+                    .toPath()), StandardCharsets.UTF_8);
+            for (int i = 0; i < 10; i++) {
+                TestFileUtils.createFile(new File(dir, "valid" + i + Constants.MARC_METADATA_SUFFIX), marc);
+            }
+            String invalid = marc.replace("ind1=\"1\" ind2=\"0\"", "ind1=\"X\" ind2=\"0\"");
+            TestFileUtils.createFile(new File(dir, "invalid1" + Constants.MARC_METADATA_SUFFIX), invalid);
+            TestFileUtils.createFile(new File(dir, "invalid2" + Constants.MARC_METADATA_SUFFIX), invalid);
+            TestFileUtils.createFile(new File(dir, "other.txt"), "Not MARC");
+
+            MarcValidationReport report = new MetadataValidator().validateMarcFiles(dir, 4);
+            Assert.assertEquals(report.getFiles(), 12);
+            Assert.assertEquals(report.getValidFiles(), 10);
+            Assert.assertEquals(report.getInvalidFiles().size(), 2);
+            Assert.assertEquals(report.getInvalidFiles().get(0).getName(),
+                    "invalid1" + Constants.MARC_METADATA_SUFFIX);
+            Assert.assertFalse(report.getErrorCounts().isEmpty());
+            for (Integer count : report.getErrorCounts().values()) {
+                Assert.assertEquals(count.intValue(), 2);
+            }
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+
+    private ByteArrayInputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,116 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.ocr.ExtractionTimeout;
+import dk.kb.provide_dod_info.ocr.ExtractionTimeoutException;
+import dk.kb.provide_dod_info.ocr.PageRangeTextExtractor;
+import dk.kb.provide_dod_info.ocr.PdfBoxTextExtractor;
+import dk.kb.provide_dod_info.ocr.TextExtractor;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class PageRangeTextExtractorTest extends ExtendedTestCase {
+
+    File PDF_FILE = new File("src/test/resources/ocr/two_pages.pdf");
+
+    @Test
+    public void testExtractRange() throws IOException {
+        addDescription("Test that the pages are counted, and that the text of a range of pages is extracted.");
+        try (PdfBoxTextExtractor extractor = new PdfBoxTextExtractor(1, 1024L * 1024L)) {
+            Assert.assertEquals(extractor.getPageCount(PDF_FILE), 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            extractor.extract(PDF_FILE, 2, 2, out);
+            Assert.assertEquals(out.toString(StandardCharsets.UTF_8), "Page two\n\f");
+        }
+    }
+
+    @Test
+    public void testExtractInRanges() throws IOException {
+        addDescription("Test that a file with more pages than a range is extracted in ranges, and that the texts of "
+                + "the ranges are joined in the order of the pages.");
+        try (PageRangeTextExtractor extractor = new PageRangeTextExtractor(
+                new PdfBoxTextExtractor(2, 1024L * 1024L), 2, 1L, 1)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            extractor.extract(PDF_FILE, out);
+            Assert.assertEquals(out.toString(StandardCharsets.UTF_8), "Hello World\n\fPage two\n\f");
+            Assert.assertEquals(extractor.getSplitFiles(), 1L);
+            Assert.assertEquals(extractor.getRanges(), 2L);
+        }
+    }
+
+    @Test
+    public void testExtractWithoutRanges() throws IOException {
+        addDescription("Test that small files, and files with no more pages than a range, are extracted as a whole.");
+        try (PageRangeTextExtractor extractor = new PageRangeTextExtractor(
+                new PdfBoxTextExtractor(2, 1024L * 1024L), 2, 1L, 2)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            extractor.extract(PDF_FILE, out);
+            Assert.assertEquals(out.toString(StandardCharsets.UTF_8), "Hello World\n\fPage two\n\f");
+            Assert.assertEquals(extractor.getSplitFiles(), 0L);
+        }
+        try (PageRangeTextExtractor extractor = new PageRangeTextExtractor(
+                new PdfBoxTextExtractor(2, 1024L * 1024L), 2, PDF_FILE.length() + 1, 1)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            extractor.extract(PDF_FILE, out);
+            Assert.assertEquals(out.toString(StandardCharsets.UTF_8), "Hello World\n\fPage two\n\f");
+            Assert.assertEquals(extractor.getSplitFiles(), 0L);
+        }
+    }
+
+    @Test
+    public void testOneDeadlineForAllRanges() throws IOException {
+        addDescription("Test that the ranges of a file share the deadline of the file, and that the remaining ranges "
+                + "are stopped, when it expires.");
+        try (PageRangeTextExtractor extractor = new PageRangeTextExtractor(new SlowRangeTextExtractor(), 1, 1L, 1,
+                new ExtractionTimeout(1, 0))) {
+            // Each range takes 700 ms, which is within the deadline, but the two ranges on one worker are not.
+            try {
+                extractor.extract(PDF_FILE, new ByteArrayOutputStream());
+                Assert.fail("The extraction must be stopped at the deadline of the file");
+            } catch (ExtractionTimeoutException e) {
+                Assert.assertEquals(e.getPdfFile(), PDF_FILE);
+            }
+            Assert.assertEquals(extractor.getTimedOut(), 1L);
+            Assert.assertEquals(extractor.getSplitFiles(), 0L);
+        }
+    }
+
+    /** Extractor of two pages, which takes 700 ms for each range of pages.*/
+    private static class SlowRangeTextExtractor implements TextExtractor {
+        @Override
+        public void extract(File pdfFile, OutputStream out) throws IOException {
+            extract(pdfFile, 1, 2, out);
+        }
+
+        @Override
+        public void extract(File pdfFile, int firstPage, int lastPage, OutputStream out) throws IOException {
+            try {
+                Thread.sleep(700L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            out.write(("Pages " + firstPage + "-" + lastPage + "\f").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int getPageCount(File pdfFile) {
+            return 2;
+        }
+
+        @Override
+        public long getTimedOut() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
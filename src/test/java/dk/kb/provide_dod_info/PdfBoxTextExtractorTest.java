@@ -0,0 +1,117 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.ocr.ExtractionTimeout;
+import dk.kb.provide_dod_info.ocr.ExtractionTimeoutException;
+import dk.kb.provide_dod_info.ocr.PdfBoxTextExtractor;
+import dk.kb.provide_dod_info.testutils.TestFileUtils;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class PdfBoxTextExtractorTest extends ExtendedTestCase {
+
+    File PDF_FILE = new File("src/test/resources/ocr/two_pages.pdf");
+
+    @Test
+    public void testExtractToStream() throws IOException {
+        addDescription("Test that the text of all the pages is extracted, with a form feed after each page.");
+        try (PdfBoxTextExtractor extractor = new PdfBoxTextExtractor(1, 1024L * 1024L)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            extractor.extract(PDF_FILE, out);
+            Assert.assertEquals(out.toString(StandardCharsets.UTF_8), "Hello World\n\fPage two\n\f");
+            Assert.assertEquals(extractor.getExtracted(), 1L);
+        }
+    }
+
+    @Test
+    public void testExtractToFile() throws IOException {
+        addDescription("Test that the text is extracted to a file, and that the file is removed, when the "
+                + "extraction fails.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/pdfbox");
+        try (PdfBoxTextExtractor extractor = new PdfBoxTextExtractor(1, 1024L * 1024L)) {
+            File textFile = new File(dir, "two_pages.txt");
+            extractor.extract(PDF_FILE, textFile);
+            Assert.assertTrue(new String(Files.readAllBytes(textFile.toPath()), StandardCharsets.UTF_8)
+                    .startsWith("Hello World"));
+
+            File notPdf = new File(dir, "not.pdf");
+            TestFileUtils.createFile(notPdf, "Not a PDF");
+            File failedTextFile = new File(dir, "not.txt");
+            try {
+                extractor.extract(notPdf, failedTextFile);
+                Assert.fail("A file, which is not a PDF, must not be extracted");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertFalse(failedTextFile.exists());
+            Assert.assertEquals(extractor.getFailed(), 1L);
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+
+    @Test
+    public void testLoadingIsStoppedAtTheDeadline() throws IOException {
+        addDescription("Test that a document, which is loaded too slowly, is stopped at the deadline, both when it is "
+                + "extracted and when its pages are counted.");
+        try (PdfBoxTextExtractor extractor = new SlowPdfBoxTextExtractor(new ExtractionTimeout(1, 0))) {
+            try {
+                extractor.extract(PDF_FILE, new ByteArrayOutputStream());
+                Assert.fail("The extraction must be stopped at the deadline");
+            } catch (ExtractionTimeoutException e) {
+                Assert.assertEquals(e.getPdfFile(), PDF_FILE);
+            }
+            try {
+                extractor.getPageCount(PDF_FILE);
+                Assert.fail("The page counting must be stopped at the deadline");
+            } catch (ExtractionTimeoutException e) {
+                Assert.assertEquals(e.getPdfFile(), PDF_FILE);
+            }
+            Assert.assertEquals(extractor.getTimedOut(), 2L);
+            Assert.assertEquals(extractor.getFailed(), 0L);
+        }
+    }
+
+    /** Extractor, which reads the PDF files slowly, until they are closed.*/
+    private static class SlowPdfBoxTextExtractor extends PdfBoxTextExtractor {
+        SlowPdfBoxTextExtractor(ExtractionTimeout timeout) {
+            super(1, 1024L * 1024L, timeout);
+        }
+
+        @Override
+        protected RandomAccessRead openSource(File pdfFile) throws IOException {
+            return new RandomAccessBufferedFileInputStream(pdfFile) {
+                @Override
+                public int read() throws IOException {
+                    waitBeforeRead();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    waitBeforeRead();
+                    return super.read(b, off, len);
+                }
+
+                private void waitBeforeRead() throws IOException {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if(isClosed()) {
+                        throw new IOException("The file is closed");
+                    }
+                }
+            };
+        }
+    }
+}
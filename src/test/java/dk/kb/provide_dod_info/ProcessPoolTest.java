@@ -0,0 +1,118 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.ocr.ProcessPool;
+import dk.kb.provide_dod_info.ocr.ProcessResult;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ProcessPoolTest extends ExtendedTestCase {
+
+    @Test
+    public void testRunWithArguments() throws Exception {
+        addDescription("Test that the arguments are passed as they are, also with spaces, and that stdout is "
+                + "captured.");
+        try (ProcessPool pool = new ProcessPool(1)) {
+            ProcessResult result = pool.run(List.of("echo", "a path/with spaces.pdf"), null);
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertEquals(result.getStdout(), "a path/with spaces.pdf\n");
+            Assert.assertEquals(result.getStderr(), "");
+            Assert.assertEquals(pool.getStarted(), 1L);
+        }
+    }
+
+    @Test
+    public void testExitCodeAndStderr() throws Exception {
+        addDescription("Test that the exit code and stderr of a failing process are captured.");
+        try (ProcessPool pool = new ProcessPool(1)) {
+            ProcessResult result = pool.run(List.of("sh", "-c", "echo 'Syntax Error' >&2; exit 3"), null);
+            Assert.assertFalse(result.isSuccess());
+            Assert.assertEquals(result.getExitCode(), 3);
+            Assert.assertEquals(result.getStderr(), "Syntax Error\n");
+            Assert.assertEquals(pool.getFailed(), 1L);
+        }
+    }
+
+    @Test
+    public void testStreamLargeStdout() throws Exception {
+        addDescription("Test that a large stdout is streamed to the caller, while stderr is drained too.");
+        try (ProcessPool pool = new ProcessPool(1)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ProcessResult result = pool.run(List.of("sh", "-c",
+                    "head -c 1000000 /dev/zero; head -c 1000000 /dev/zero >&2"), out);
+            Assert.assertTrue(result.isSuccess());
+            Assert.assertNull(result.getStdout());
+            Assert.assertEquals(out.size(), 1000000);
+            Assert.assertTrue(result.getStderr().length() < 1000000);
+        }
+    }
+
+    @Test
+    public void testUnknownCommand() {
+        addDescription("Test that a command, which cannot be started, fails.");
+        try (ProcessPool pool = new ProcessPool(1)) {
+            pool.run(List.of("no-such-command-for-provide-dod-info"), null);
+            Assert.fail("The command must not be started");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBoundedProcesses() throws Exception {
+        addDescription("Test that at most the size of the pool processes run at the same time, and that the "
+                + "threads reading their output are reused.");
+        ExecutorService callers = Executors.newFixedThreadPool(6);
+        try (ProcessPool pool = new ProcessPool(2)) {
+            long start = System.currentTimeMillis();
+            List<Future<ProcessResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                futures.add(callers.submit(() -> pool.run(List.of("sleep", "0.2"), null)));
+            }
+            for (Future<ProcessResult> future : futures) {
+                Assert.assertTrue(future.get().isSuccess());
+            }
+            // 12 processes of 0.2 seconds, 2 at a time, take at least 1.2 seconds
+            Assert.assertTrue(System.currentTimeMillis() - start >= 1200);
+            Assert.assertEquals(pool.getStarted(), 12L);
+            long drainers = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().startsWith("process-drainer")).count();
+            Assert.assertTrue(drainers <= 4, "Drainer threads: " + drainers);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeoutKillsProcessTree() throws Exception {
+        addDescription("Test that a process, which does not exit by its deadline, is killed together with the "
+                + "processes it has started, also when they keep its output open.");
+        try (ProcessPool pool = new ProcessPool(1)) {
+            long start = System.currentTimeMillis();
+            ProcessResult result = pool.run(List.of("sh", "-c", "sleep 30 & echo $!; wait"), null, 500);
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+            Assert.assertTrue(result.isTimedOut());
+            Assert.assertFalse(result.isSuccess());
+            Assert.assertEquals(pool.getTimedOut(), 1L);
+            Assert.assertEquals(pool.getFailed(), 0L);
+
+            long child = Long.parseLong(result.getStdout().trim());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ProcessHandle.of(child).map(ProcessHandle::isAlive).orElse(false)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertFalse(ProcessHandle.of(child).map(ProcessHandle::isAlive).orElse(false));
+
+            Assert.assertTrue(pool.run(List.of("true"), null, 5000).isSuccess());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.metadata.SruRecordSlicer;
+import dk.kb.provide_dod_info.utils.XmlUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class SruRecordSlicerTest extends ExtendedTestCase {
+
+    @Test
+    public void testSliceBatchResponse() throws Exception {
+        addDescription("Test that all the records of a response are found, with their field values, and that each "
+                + "record is copied as a standalone document with the inherited namespace.");
+        byte[] response = Files.readAllBytes(new File("src/test/resources/sru/batch_response.xml").toPath());
+        SruRecordSlicer.SruRecords sliced = SruRecordSlicer.slice(response);
+
+        Assert.assertNotNull(sliced);
+        Assert.assertEquals(sliced.getNumberOfRecords(), "3");
+        Assert.assertEquals(sliced.getRecords().size(), 3);
+        SruRecordSlicer.Record record = sliced.getRecords().get(0);
+        Assert.assertTrue(record.getFieldValues().contains("130019875926"));
+        Assert.assertTrue(record.getFieldValues().contains("Kjøbenhavn :"));
+        Assert.assertFalse(record.getFieldValues().contains("99122058486905763 "));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record.writeTo(out);
+        String marc = out.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(marc.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<recordData xmlns=\"http://www.loc.gov/zing/srw/\">"), marc);
+        Assert.assertTrue(marc.endsWith("</recordData>"), marc);
+        Assert.assertTrue(marc.contains("<subfield code=\"a\">Kjøbenhavn :</subfield>"));
+        Assert.assertFalse(marc.contains("recordIdentifier"));
+
+        Document doc = XmlUtils.parse(new ByteArrayInputStream(out.toByteArray()), true);
+        Assert.assertEquals(doc.getDocumentElement().getNamespaceURI(), "http://www.loc.gov/zing/srw/");
+    }
+
+    @Test
+    public void testSlicePrefixedResponse() throws Exception {
+        addDescription("Test that prefixed elements, comments, CDATA and character references are handled, and "
+                + "that only the namespaces, which are not redeclared, are inherited.");
+        String response = "<?xml version='1.0'?>\n"
+                + "<srw:searchRetrieveResponse xmlns:srw=\"http://www.loc.gov/zing/srw/\" xmlns=\"urn:other\">"
+                + "<srw:numberOfRecords> 1 </srw:numberOfRecords><!-- <recordData> -->"
+                + "<srw:records><srw:record><srw:recordData xmlns=\"http://www.loc.gov/MARC21/slim\">"
+                + "<record><controlfield tag=\"001\">A&amp;B&#x41;</controlfield>"
+                + "<datafield tag=\"ITM\"><subfield code=\"b\"><![CDATA[<123>]]></subfield></datafield>"
+                + "</record></srw:recordData></srw:record></srw:records></srw:searchRetrieveResponse>";
+        SruRecordSlicer.SruRecords sliced = SruRecordSlicer.slice(response.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertNotNull(sliced);
+        Assert.assertEquals(sliced.getNumberOfRecords(), "1");
+        Assert.assertEquals(sliced.getRecords().size(), 1);
+        SruRecordSlicer.Record record = sliced.getRecords().get(0);
+        Assert.assertTrue(record.getFieldValues().contains("A&BA"), record.getFieldValues().toString());
+        Assert.assertTrue(record.getFieldValues().contains("<123>"), record.getFieldValues().toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record.writeTo(out);
+        String marc = out.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(marc.contains("<srw:recordData xmlns:srw=\"http://www.loc.gov/zing/srw/\" "
+                + "xmlns=\"http://www.loc.gov/MARC21/slim\">"), marc);
+        Document doc = XmlUtils.parse(new ByteArrayInputStream(out.toByteArray()), true);
+        Assert.assertEquals(doc.getDocumentElement().getLocalName(), "recordData");
+    }
+
+    @Test
+    public void testWriteCompact() throws Exception {
+        addDescription("Test that a record is copied without the whitespace between its elements, and without "
+                + "comments and processing instructions, while the text of the fields is kept as it is.");
+        String response = "<searchRetrieveResponse xmlns=\"http://www.loc.gov/zing/srw/\"><records><record>\n"
+                + "  <recordData>\n    <!-- a comment -->\n"
+                + "    <record xmlns=\"http://www.loc.gov/MARC21/slim\">\n      <?pi data?>\n"
+                + "      <datafield tag=\"245\" ind1=\"1\" ind2=\"0\">\r\n"
+                + "        <subfield code=\"a\"> Title\n over lines </subfield>\n"
+                + "        <subfield code=\"b\">  </subfield>\n"
+                + "      </datafield>\n    </record>\n  </recordData>\n</record></records></searchRetrieveResponse>";
+        SruRecordSlicer.Record record = slice(response).getRecords().get(0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record.writeTo(out, true);
+        Assert.assertEquals(out.toString(StandardCharsets.UTF_8), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<recordData xmlns=\"http://www.loc.gov/zing/srw/\">"
+                + "<record xmlns=\"http://www.loc.gov/MARC21/slim\"><datafield tag=\"245\" ind1=\"1\" ind2=\"0\">"
+                + "<subfield code=\"a\"> Title\n over lines </subfield><subfield code=\"b\">  </subfield>"
+                + "</datafield></record></recordData>");
+
+        out.reset();
+        record.writeTo(out);
+        Assert.assertTrue(out.toString(StandardCharsets.UTF_8).contains("<!-- a comment -->"));
+    }
+
+    @Test
+    public void testSliceUnsupportedResponses() {
+        addDescription("Test that responses, which are not well-formed or need a real parser, are not sliced.");
+        Assert.assertNull(slice("<searchRetrieveResponse><records></searchRetrieveResponse>"));
+        Assert.assertNull(slice("<searchRetrieveResponse><records>"));
+        Assert.assertNull(slice("<searchRetrieveResponse a=\"1></searchRetrieveResponse>"));
+        Assert.assertNull(slice("<searchRetrieveResponse>&unknown;</searchRetrieveResponse>"));
+        Assert.assertNull(slice("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><searchRetrieveResponse/>"));
+        Assert.assertNull(slice("<!DOCTYPE a [<!ENTITY e \"x\">]><searchRetrieveResponse/>"));
+        Assert.assertNull(slice("<searchRetrieveResponse/><searchRetrieveResponse/>"));
+        Assert.assertNull(slice(""));
+
+        SruRecordSlicer.SruRecords empty = slice("<searchRetrieveResponse/>");
+        Assert.assertNotNull(empty);
+        Assert.assertNull(empty.getNumberOfRecords());
+        Assert.assertTrue(empty.getRecords().isEmpty());
+    }
+
+    private SruRecordSlicer.SruRecords slice(String response) {
+        return SruRecordSlicer.slice(response.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,111 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.metadata.SruResponseCache;
+import dk.kb.provide_dod_info.testutils.TestFileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class SruResponseCacheTest extends ExtendedTestCase {
+
+    String REQUEST_URL = "https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2"
+            + "&operation=searchRetrieve&startRecord=1&maximumRecords=2&recordSchema=marcxml"
+            + "&query=alma.barcode=130019875918";
+    String RESPONSE = "<searchRetrieveResponse><numberOfRecords>1</numberOfRecords></searchRetrieveResponse>";
+
+    @BeforeMethod
+    public void setup() {
+        TestFileUtils.setup();
+    }
+
+    @AfterClass
+    public void tearDown() {
+        TestFileUtils.tearDown();
+    }
+
+    @Test
+    public void testStoreAndRetrieve() throws IOException {
+        addDescription("Test that a stored response is delivered again, also when the request parameters are in "
+                + "another order.");
+        SruResponseCache cache = new SruResponseCache(new File(TestFileUtils.getTempDir(), "cache"), 3600000L,
+                1024L * 1024L);
+        Assert.assertNull(read(cache, REQUEST_URL));
+
+        cache.store(REQUEST_URL, RESPONSE.getBytes(StandardCharsets.UTF_8));
+        String reordered = "https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?operation=searchRetrieve"
+                + "&version=1.2&&recordSchema=marcxml&startRecord=1&maximumRecords=2"
+                + "&query=alma.barcode=130019875918";
+        Assert.assertEquals(read(cache, reordered), RESPONSE);
+        Assert.assertEquals(cache.getHits(), 1L);
+        Assert.assertEquals(cache.getMisses(), 1L);
+    }
+
+    @Test
+    public void testSharedDirectory() throws IOException {
+        addDescription("Test that a response stored by one cache is delivered by another cache on the same "
+                + "directory.");
+        File cacheDir = new File(TestFileUtils.getTempDir(), "cache");
+        new SruResponseCache(cacheDir, 3600000L, 1024L * 1024L).store(REQUEST_URL,
+                RESPONSE.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertEquals(read(new SruResponseCache(cacheDir, 3600000L, 1024L * 1024L), REQUEST_URL), RESPONSE);
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        addDescription("Test that the cache is kept below its maximum size.");
+        File cacheDir = new File(TestFileUtils.getTempDir(), "cache");
+        long maxBytes = 4096L;
+        SruResponseCache cache = new SruResponseCache(cacheDir, 3600000L, maxBytes);
+        for (int i = 0; i < 100; i++) {
+            cache.store(REQUEST_URL + i, (RESPONSE + i).getBytes(StandardCharsets.UTF_8));
+        }
+        cache.evict();
+
+        long size;
+        try (Stream<Path> files = Files.walk(cacheDir.toPath())) {
+            size = files.filter(f -> f.toString().endsWith(".xml.gz")).mapToLong(f -> f.toFile().length()).sum();
+        }
+        Assert.assertTrue(size > 0);
+        Assert.assertTrue(size <= maxBytes, "Cache size " + size);
+    }
+
+    @Test
+    public void testCorruptEntryIsRemoved() throws IOException {
+        addDescription("Test that an entry, which is not gzip compressed, is a miss and is removed from the cache.");
+        File cacheDir = new File(TestFileUtils.getTempDir(), "cache");
+        SruResponseCache cache = new SruResponseCache(cacheDir, 3600000L, 1024L * 1024L);
+        cache.store(REQUEST_URL, RESPONSE.getBytes(StandardCharsets.UTF_8));
+        Path entry;
+        try (Stream<Path> files = Files.walk(cacheDir.toPath())) {
+            entry = files.filter(f -> f.toString().endsWith(".xml.gz")).findFirst().orElseThrow();
+        }
+        Files.write(entry, RESPONSE.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertNull(read(cache, REQUEST_URL));
+        Assert.assertFalse(Files.exists(entry));
+        Assert.assertEquals(cache.getMisses(), 1L);
+    }
+
+    /**
+     * Reads the cached response for a request.
+     * @param cache The cache.
+     * @param requestUrl The SRU request URL.
+     * @return The response, or null if it is not cached.
+     */
+    private String read(SruResponseCache cache, String requestUrl) throws IOException {
+        try (InputStream in = cache.open(requestUrl)) {
+            return in == null ? null : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package dk.kb.provide_dod_info;
+
+import dk.kb.provide_dod_info.ocr.ExtractionTimeout;
+import dk.kb.provide_dod_info.ocr.TextQuarantine;
+import dk.kb.provide_dod_info.testutils.TestFileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class TextQuarantineTest extends ExtendedTestCase {
+
+    @Test
+    public void testQuarantineIsKeptBetweenRuns() throws Exception {
+        addDescription("Test that a quarantined PDF file is written to the list, and is quarantined in the next run.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/quarantine");
+        try {
+            File listFile = new File(dir, "text_quarantine.txt");
+            TextQuarantine quarantine = new TextQuarantine(listFile);
+            File pdfFile = new File("corpus/130018852943.pdf");
+            Assert.assertFalse(quarantine.contains(pdfFile));
+            Assert.assertFalse(listFile.exists());
+
+            quarantine.add(pdfFile);
+            quarantine.add(pdfFile);
+            Assert.assertTrue(quarantine.contains(pdfFile));
+            Assert.assertEquals(quarantine.getAdded(), 1);
+            Assert.assertEquals(Files.readAllLines(listFile.toPath(), StandardCharsets.UTF_8),
+                    List.of("130018852943.pdf"));
+
+            TextQuarantine nextRun = new TextQuarantine(listFile);
+            Assert.assertTrue(nextRun.contains(new File("other/130018852943.pdf")));
+            Assert.assertEquals(nextRun.size(), 1);
+            Assert.assertEquals(nextRun.getAdded(), 0);
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+
+    @Test
+    public void testTimeoutScalesWithFileSize() throws Exception {
+        addDescription("Test that the deadline is the seconds for any file plus the seconds per started megabyte.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/quarantine-timeout");
+        try {
+            File pdfFile = new File(dir, "large.pdf");
+            Files.write(pdfFile.toPath(), new byte[2 * 1024 * 1024 + 1]);
+            Assert.assertEquals(new ExtractionTimeout(60, 10).getMillis(pdfFile), 90000L);
+            Assert.assertEquals(ExtractionTimeout.NONE.getMillis(pdfFile), 0L);
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+}
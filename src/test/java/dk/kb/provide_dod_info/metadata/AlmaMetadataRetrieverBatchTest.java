@@ -0,0 +1,38 @@
+package dk.kb.provide_dod_info.metadata;
+
+import dk.kb.provide_dod_info.HttpClient;
+import dk.kb.provide_dod_info.config.Configuration;
+import dk.kb.provide_dod_info.testutils.TestConfigurations;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class AlmaMetadataRetrieverBatchTest extends ExtendedTestCase {
+
+    @Test
+    public void testSplitIntoBatches() throws IOException {
+        addDescription("Test that barcodes are split into batches within both the batch size and the URL length.");
+        Map<String, Object> confMap = TestConfigurations.getTestConfigurationMap();
+        confMap.put(Configuration.CONF_SRU_BATCH_SIZE, 3);
+        AlmaMetadataRetriever retriever = new AlmaMetadataRetriever(new Configuration(confMap), new HttpClient());
+
+        List<List<String>> batches = retriever.splitIntoBatches(Arrays.asList("1", "2", "3", "4", "5", "6", "7"));
+        Assert.assertEquals(batches.size(), 3);
+        Assert.assertEquals(batches.get(0), Arrays.asList("1", "2", "3"));
+        Assert.assertEquals(batches.get(2), Arrays.asList("7"));
+        Assert.assertTrue(retriever.createBatchRequestUrl(batches.get(0))
+                .endsWith("query=alma.barcode=1%20or%20alma.barcode=2%20or%20alma.barcode=3"));
+
+        confMap.put(Configuration.CONF_SRU_MAX_URL_LENGTH,
+                retriever.createBatchRequestUrl(Arrays.asList("1", "2")).length());
+        retriever = new AlmaMetadataRetriever(new Configuration(confMap), new HttpClient());
+        batches = retriever.splitIntoBatches(Arrays.asList("1", "2", "3", "4", "5"));
+        Assert.assertEquals(batches.size(), 3);
+        Assert.assertEquals(batches.get(0), Arrays.asList("1", "2"));
+    }
+}
@@ -0,0 +1,446 @@
+package dk.kb.provide_dod_info.testutils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Embedded HTTP server, which replays recorded Alma SRU responses, so the SRU client can be tested and benchmarked
+ * without network access.
+ * The responses are looked up by the CQL query of the request: first among the responses added with
+ * {@link #addResponse(String, byte[])}, then as files in the fixture directory named after the query (see
+ * {@link #getFixtureName(String, String)}). Unknown queries get an empty response with zero records, unless the
+ * server records from an upstream SRU service, in which case the response is fetched and saved as a fixture.
+ *
+ * The latency, error rate and bandwidth of the responses can be configured, and are drawn from a seeded random
+ * generator, so runs are reproducible.
+ *
+ * Use {@link #getSruSearchUrl()} as the 'alma_sru_search' of the configuration.
+ */
+public class SruFixtureServer implements Closeable {
+    /** The logger.*/
+    private static final Logger log = LoggerFactory.getLogger(SruFixtureServer.class);
+
+    /** The path of the SRU service.*/
+    public static final String SRU_PATH = "/view/sru/45KBDK_KGL";
+    /** The fixed parameters of the SRU search, which the client appends its parameters to.*/
+    public static final String SRU_SEARCH_PARAMETERS = "version=1.2&operation=searchRetrieve&";
+    /** The response for queries without a fixture.*/
+    public static final String EMPTY_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+            + "<searchRetrieveResponse xmlns=\"http://www.loc.gov/zing/srw/\">\n"
+            + "  <version>1.2</version>\n"
+            + "  <numberOfRecords>0</numberOfRecords>\n"
+            + "</searchRetrieveResponse>\n";
+
+    /** The underlying HTTP server.*/
+    protected final HttpServer server;
+    /** The threads handling the requests.*/
+    protected final ExecutorService executor;
+    /** The directory with the recorded responses. Might be null.*/
+    protected final File fixtureDir;
+    /** The responses added directly, by query.*/
+    protected final Map<String, byte[]> responses = new ConcurrentHashMap<>();
+    /** The number of requests per query.*/
+    protected final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    /** The total number of requests.*/
+    protected final AtomicInteger requestCount = new AtomicInteger();
+    /** The number of requests being handled.*/
+    protected final AtomicInteger inFlight = new AtomicInteger();
+    /** The largest number of requests handled at the same time.*/
+    protected final AtomicInteger maxInFlight = new AtomicInteger();
+    /** The seeded random generator for the latencies and errors.*/
+    protected final Random random;
+
+    /** The latency model.*/
+    protected volatile Latency latency = fixedLatency(0);
+    /** The fraction of the requests, which fail.*/
+    protected volatile double errorRate = 0;
+    /** The status code of the failing requests.*/
+    protected volatile int errorStatus = 503;
+    /** The number of following requests, which must fail.*/
+    protected final AtomicInteger failNext = new AtomicInteger();
+    /** The maximum number of bytes sent per second for each response, or 0 for no limit.*/
+    protected volatile long bytesPerSecond = 0;
+    /** Whether the responses are gzip compressed, when the client accepts it.*/
+    protected volatile boolean compression = false;
+    /** The SRU search URL of the upstream service to record from. Null, if not recording.*/
+    protected volatile String upstreamSruSearch = null;
+
+    /**
+     * Constructor. Starts the server on a free port on the loopback interface.
+     * @param fixtureDir The directory with the recorded responses. Might be null.
+     * @param seed The seed for the random latencies and errors.
+     * @throws IOException If the server cannot be started.
+     */
+    public SruFixtureServer(File fixtureDir, long seed) throws IOException {
+        this.fixtureDir = fixtureDir;
+        this.random = new Random(seed);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "sru-fixture");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(SRU_PATH, this::handle);
+        server.start();
+        log.debug("SRU fixture server listening on {}", getSruSearchUrl());
+    }
+
+    /** @return The SRU search base URL of the server, for the 'alma_sru_search' configuration.*/
+    public String getSruSearchUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + SRU_PATH
+                + "?" + SRU_SEARCH_PARAMETERS;
+    }
+
+    /**
+     * Adds a response for a query.
+     * @param query The CQL query, e.g. 'alma.barcode=130019875918'.
+     * @param response The response.
+     * @return This server.
+     */
+    public SruFixtureServer addResponse(String query, byte[] response) {
+        responses.put(query, response);
+        return this;
+    }
+
+    /**
+     * Adds a response file for a query.
+     * @param query The CQL query, e.g. 'alma.barcode=130019875918'.
+     * @param responseFile The file with the response.
+     * @return This server.
+     * @throws IOException If the file cannot be read.
+     */
+    public SruFixtureServer addResponse(String query, File responseFile) throws IOException {
+        return addResponse(query, Files.readAllBytes(responseFile.toPath()));
+    }
+
+    /**
+     * @param latency The latency model for the responses.
+     * @return This server.
+     */
+    public SruFixtureServer withLatency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param errorRate The fraction of the requests, which fail, between 0 and 1.
+     * @param errorStatus The status code of the failing requests.
+     * @return This server.
+     */
+    public SruFixtureServer withErrorRate(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+        return this;
+    }
+
+    /**
+     * Makes the next requests fail.
+     * @param count The number of requests, which must fail.
+     * @param status The status code of the failing requests.
+     * @return This server.
+     */
+    public SruFixtureServer failNext(int count, int status) {
+        this.errorStatus = status;
+        this.failNext.set(count);
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond The maximum number of bytes sent per second for each response, or 0 for no limit.
+     * @return This server.
+     */
+    public SruFixtureServer withBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param compression Whether the responses are gzip compressed, when the client accepts it.
+     * @return This server.
+     */
+    public SruFixtureServer withCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Records the responses for unknown queries from an upstream SRU service into the fixture directory.
+     * @param upstreamSruSearch The SRU search base URL of the upstream service, e.g. the real Alma.
+     * @return This server.
+     */
+    public SruFixtureServer recordFrom(String upstreamSruSearch) {
+        if(fixtureDir == null) {
+            throw new IllegalStateException("Cannot record without a fixture directory");
+        }
+        this.upstreamSruSearch = upstreamSruSearch;
+        return this;
+    }
+
+    /** @return The total number of requests.*/
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** @return The largest number of requests handled at the same time.*/
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * @param query The CQL query.
+     * @return The number of requests for the query.
+     */
+    public int getRequestCount(String query) {
+        AtomicInteger count = requestCounts.get(query);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Handles a request: waits for the latency, possibly fails, and otherwise sends the response for the query.
+     * @param exchange The HTTP exchange.
+     * @throws IOException If the response cannot be sent.
+     */
+    protected void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Map<String, String> parameters = parseParameters(exchange.getRequestURI().getRawQuery());
+            String query = parameters.getOrDefault("query", "");
+            requestCount.incrementAndGet();
+            requestCounts.computeIfAbsent(query, q -> new AtomicInteger()).incrementAndGet();
+
+            sleep(nextLatency());
+            if(shouldFail()) {
+                // A body, so the connection is kept alive like with the real service.
+                byte[] error = ("Fixture error " + errorStatus).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(errorStatus, error.length);
+                exchange.getResponseBody().write(error);
+                return;
+            }
+
+            byte[] response = findResponse(query, parameters.get("startRecord"), exchange.getRequestURI().getRawQuery());
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if(compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = new GZIPOutputStream(compressed)) {
+                    out.write(response);
+                }
+                response = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/xml;charset=UTF-8");
+            exchange.sendResponseHeaders(200, response.length);
+            writeThrottled(exchange.getResponseBody(), response);
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * Finds the response for a query.
+     * @param query The CQL query.
+     * @param startRecord The startRecord parameter of the request, or null.
+     * @param rawQuery The raw query string of the request, for recording.
+     * @return The response.
+     * @throws IOException If the fixture cannot be read or recorded.
+     */
+    protected byte[] findResponse(String query, String startRecord, String rawQuery) throws IOException {
+        if(responses.containsKey(query)) {
+            return responses.get(query);
+        }
+        if(fixtureDir != null) {
+            File pageFixture = new File(fixtureDir, getFixtureName(query, startRecord));
+            if(pageFixture.isFile()) {
+                return Files.readAllBytes(pageFixture.toPath());
+            }
+            File fixture = new File(fixtureDir, getFixtureName(query, null));
+            if(fixture.isFile()) {
+                return Files.readAllBytes(fixture.toPath());
+            }
+            if(upstreamSruSearch != null) {
+                return record(rawQuery, pageFixture);
+            }
+        }
+        return EMPTY_RESPONSE.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fetches a response from the upstream service and saves it as a fixture.
+     * @param rawQuery The raw query string of the request.
+     * @param fixture The fixture file.
+     * @return The response.
+     * @throws IOException If the response cannot be fetched or saved.
+     */
+    protected byte[] record(String rawQuery, File fixture) throws IOException {
+        String clientParameters = Arrays.stream(rawQuery.split("&"))
+                .filter(p -> !p.startsWith("version=") && !p.startsWith("operation=") && !p.isEmpty())
+                .collect(Collectors.joining("&"));
+        URL url = new URL(upstreamSruSearch + clientParameters);
+        log.info("Recording SRU response from {} into {}", url, fixture);
+        byte[] response;
+        try (InputStream in = url.openStream()) {
+            response = in.readAllBytes();
+        }
+        Files.write(fixture.toPath(), response);
+        return response;
+    }
+
+    /**
+     * The name of the fixture file for a query. Characters, which are not safe in file names, are replaced by '_'.
+     * E.g. 'alma.barcode_130019875918.xml' for the query 'alma.barcode=130019875918', and
+     * 'alma.packageName_Historisk_laerebogssamling_start51.xml' for the page starting at record 51.
+     * @param query The CQL query.
+     * @param startRecord The first record of the page, or null for the response regardless of page.
+     * @return The name of the fixture file.
+     */
+    public static String getFixtureName(String query, String startRecord) {
+        String name = query.replaceAll("[^A-Za-z0-9._-]", "_");
+        if(startRecord != null && !"1".equals(startRecord)) {
+            name += "_start" + startRecord;
+        }
+        return name + ".xml";
+    }
+
+    /**
+     * @param rawQuery The raw query string of a request.
+     * @return The decoded parameters.
+     */
+    protected static Map<String, String> parseParameters(String rawQuery) {
+        Map<String, String> res = new LinkedHashMap<>();
+        if(rawQuery == null) {
+            return res;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int split = parameter.indexOf('=');
+            if(split > 0) {
+                res.put(parameter.substring(0, split),
+                        URLDecoder.decode(parameter.substring(split + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return res;
+    }
+
+    /** @return The latency of the next response in milliseconds.*/
+    protected long nextLatency() {
+        synchronized (random) {
+            return Math.max(0, latency.nextMillis(random));
+        }
+    }
+
+    /** @return Whether the current request must fail.*/
+    protected boolean shouldFail() {
+        if(failNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            return true;
+        }
+        synchronized (random) {
+            return errorRate > 0 && random.nextDouble() < errorRate;
+        }
+    }
+
+    /**
+     * Writes the response, at most with the configured bandwidth.
+     * @param out The response body.
+     * @param response The response.
+     * @throws IOException If the response cannot be written.
+     */
+    protected void writeThrottled(OutputStream out, byte[] response) throws IOException {
+        if(bytesPerSecond <= 0) {
+            out.write(response);
+            return;
+        }
+        int chunkSize = (int) Math.max(1, Math.min(8192, bytesPerSecond / 10));
+        long start = System.nanoTime();
+        for (int offset = 0; offset < response.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, response.length - offset);
+            out.write(response, offset, length);
+            out.flush();
+            long dueNanos = (offset + length) * 1000000000L / bytesPerSecond;
+            sleep((dueNanos - (System.nanoTime() - start)) / 1000000L);
+        }
+    }
+
+    /**
+     * @param millis The time to sleep in milliseconds. Nothing happens, if it is not positive.
+     */
+    protected static void sleep(long millis) {
+        if(millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param millis The latency in milliseconds.
+     * @return A latency model with a fixed latency.
+     */
+    public static Latency fixedLatency(long millis) {
+        return random -> millis;
+    }
+
+    /**
+     * @param minMillis The minimum latency in milliseconds.
+     * @param maxMillis The maximum latency in milliseconds.
+     * @return A latency model with latencies uniformly distributed between the minimum and maximum.
+     */
+    public static Latency uniformLatency(long minMillis, long maxMillis) {
+        return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+    }
+
+    /**
+     * Log-normally distributed latencies, which have the long tail of real network latencies.
+     * @param medianMillis The median latency in milliseconds.
+     * @param sigma The standard deviation of the logarithm of the latency, e.g. 0.5.
+     * @return The latency model.
+     */
+    public static Latency logNormalLatency(long medianMillis, double sigma) {
+        return random -> Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    /**
+     * Model of the latency of the responses.
+     */
+    @FunctionalInterface
+    public interface Latency {
+        /**
+         * @param random The seeded random generator.
+         * @return The latency of the next response in milliseconds.
+         */
+        long nextMillis(Random random);
+    }
+}
@@ -33,6 +33,14 @@ public class TestConfigurations {
 
 
     public static Configuration getTestConfiguration(){
+        try {
+            return new Configuration(getTestConfigurationMap());
+        } catch (Exception e) {
+            throw new RuntimeException("", e);
+        }
+    }
+
+    public static Map<String, Object> getTestConfigurationMap(){
         try {
             File baseDir = TestFileUtils.createEmptyDirectory(TestFileUtils.getTempDir().getAbsolutePath());
             File corpusOrigDir = TestFileUtils.createEmptyDirectory(baseDir.getAbsolutePath() + "/testfiler");
@@ -46,7 +54,7 @@ public class TestConfigurations {
             confMap.put(Configuration.CONF_ALMA_SRU_SEARCH, "https://kbdk-kgl.alma.exlibrisgroup.com/view/sru/45KBDK_KGL?version=1.2&operation=searchRetrieve&");
             confMap.put(Configuration.CONF_IS_TEST, true);
 
-            return new Configuration(confMap);
+            return confMap;
         } catch (Exception e) {
             throw new RuntimeException("", e);
         }
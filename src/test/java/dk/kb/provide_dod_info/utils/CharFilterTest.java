@@ -0,0 +1,30 @@
+package dk.kb.provide_dod_info.utils;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CharFilterTest extends ExtendedTestCase {
+
+    @Test
+    public void testRemoveFrom() {
+        addDescription("Test that the characters are removed like with the regular expression it replaces.");
+        CharFilter filter = new CharFilter("[]:/");
+        String value = "[Eventyr] : fortalte for børn / 1. samling";
+        Assert.assertEquals(filter.removeFrom(value), value.replaceAll("[\\[\\]:/]", ""));
+        Assert.assertEquals(filter.removeFrom(""), "");
+    }
+
+    @Test
+    public void testRemoveFromUnchanged() {
+        addDescription("Test that a string without any of the characters is returned as it is.");
+        String value = "Kjøbenhavn";
+        Assert.assertSame(new CharFilter("[]:;,").removeFrom(value), value);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonAsciiCharacter() {
+        addDescription("Test that only ASCII characters can be removed.");
+        new CharFilter("ø");
+    }
+}
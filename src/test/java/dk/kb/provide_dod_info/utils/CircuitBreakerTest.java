@@ -0,0 +1,78 @@
+package dk.kb.provide_dod_info.utils;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CircuitBreakerTest extends ExtendedTestCase {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        addDescription("Test that the circuit only opens after the threshold of failures in a row.");
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 1000, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        Assert.assertFalse(breaker.isOpen());
+        breaker.recordFailure();
+        Assert.assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void testProbeClosesCircuit() {
+        addDescription("Test that a caller is paused while the circuit is open, and let through as the probe "
+                + "when the pause has passed.");
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 200, 60000);
+        breaker.recordFailure();
+        long start = System.currentTimeMillis();
+        breaker.acquire();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+        breaker.recordSuccess();
+        Assert.assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void testTryAcquire() throws InterruptedException {
+        addDescription("Test that tryAcquire tells the time to wait while the circuit is open, and lets a single "
+                + "probe through when the pause has passed.");
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 100, 60000);
+        Assert.assertEquals(breaker.tryAcquire(), 0L);
+        breaker.recordFailure();
+        long waitMs = breaker.tryAcquire();
+        Assert.assertTrue(waitMs > 0 && waitMs <= 100, "Wait " + waitMs);
+        Thread.sleep(waitMs + 10);
+        Assert.assertEquals(breaker.tryAcquire(), 0L);
+        Assert.assertTrue(breaker.tryAcquire() > 0, "Only one probe at a time");
+        breaker.recordSuccess();
+        Assert.assertEquals(breaker.tryAcquire(), 0L);
+    }
+
+    @Test
+    public void testReleaseProbe() throws InterruptedException {
+        addDescription("Test that a probe, which ends without a result, lets the next caller through as the probe, "
+                + "and leaves the circuit open.");
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 100, 60000);
+        breaker.releaseProbe();
+        Assert.assertEquals(breaker.tryAcquire(), 0L);
+        breaker.recordFailure();
+        Thread.sleep(110);
+        Assert.assertEquals(breaker.tryAcquire(), 0L);
+        Assert.assertTrue(breaker.tryAcquire() > 0, "Only one probe at a time");
+        breaker.releaseProbe();
+        Assert.assertTrue(breaker.isOpen());
+        Assert.assertEquals(breaker.tryAcquire(), 0L);
+    }
+
+    @Test(expectedExceptions = CircuitBreaker.CircuitOpenException.class)
+    public void testGivesUpWhenOpenTooLong() {
+        addDescription("Test that the callers are given up, when the circuit stays open too long.");
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 50, 300);
+        breaker.recordFailure();
+        while (true) {
+            breaker.acquire();
+            breaker.recordFailure();
+        }
+    }
+}
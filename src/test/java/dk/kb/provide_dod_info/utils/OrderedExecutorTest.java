@@ -0,0 +1,45 @@
+package dk.kb.provide_dod_info.utils;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class OrderedExecutorTest extends ExtendedTestCase {
+
+    @Test
+    public void testResultsAreDeliveredInSubmissionOrder() {
+        addDescription("Test that the results are delivered in the order the tasks were submitted, "
+                + "even though the tasks finish in random order.");
+        List<Integer> results = new ArrayList<>();
+        try (OrderedExecutor<Integer> executor = new OrderedExecutor<>(4, "test", results::add)) {
+            for (int i = 0; i < 100; i++) {
+                int value = i;
+                executor.submit(() -> {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+                    return value;
+                });
+            }
+            executor.finish();
+        }
+        Assert.assertEquals(results.size(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(results.get(i).intValue(), i);
+        }
+    }
+
+    @Test
+    public void testSingleWorkerRunsOnCallingThread() {
+        addDescription("Test that the tasks are run on the calling thread, when there is only one worker.");
+        List<Thread> threads = new ArrayList<>();
+        try (OrderedExecutor<Thread> executor = new OrderedExecutor<>(1, "test", threads::add)) {
+            executor.submit(Thread::currentThread);
+            executor.finish();
+        }
+        Assert.assertEquals(threads.size(), 1);
+        Assert.assertEquals(threads.get(0), Thread.currentThread());
+    }
+}
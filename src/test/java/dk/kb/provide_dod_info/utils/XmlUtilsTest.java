@@ -0,0 +1,119 @@
+package dk.kb.provide_dod_info.utils;
+
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static dk.kb.provide_dod_info.Constants.XP_MARC_FIND_AUTHOR;
+import static dk.kb.provide_dod_info.Constants.XPATH_NUM_RESULTS;
+
+public class XmlUtilsTest extends ExtendedTestCase {
+
+    File SRU_RESPONSE = new File("src/test/resources/sru/batch_response.xml");
+    String XPATH_RECORD_DATA = "/*[local-name()='searchRetrieveResponse']/*[local-name()='records']"
+            + "/*[local-name()='record']/*[local-name()='recordData']";
+
+    @Test
+    public void testParseAndEvaluate() throws Exception {
+        addDescription("Test that the XPATHs are evaluated on both namespace aware and plain documents, and that the "
+                + "compiled expressions are reused by the thread.");
+        Document doc = XmlUtils.parse(SRU_RESPONSE, true);
+        Assert.assertEquals(XmlUtils.evaluateString(XPATH_NUM_RESULTS, doc).trim(), "3");
+        Assert.assertEquals(XmlUtils.evaluateNodes(XPATH_RECORD_DATA, doc).getLength(), 3);
+        Assert.assertSame(XmlUtils.getXPathExpression(XPATH_NUM_RESULTS),
+                XmlUtils.getXPathExpression(XPATH_NUM_RESULTS));
+
+        Document marc = XmlUtils.parse(new File("src/test/resources/metadata/marc_record.xml"), false);
+        Assert.assertEquals(XmlUtils.evaluateString(XP_MARC_FIND_AUTHOR, marc), "Andersen, H.C.");
+    }
+
+    @Test
+    public void testWriteIndented() throws Exception {
+        addDescription("Test that a node is written as indented XML with a declaration, and with its namespace.");
+        NodeList records = XmlUtils.evaluateNodes(XPATH_RECORD_DATA, XmlUtils.parse(SRU_RESPONSE, true));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeIndented(records.item(0), out);
+
+        String xml = out.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\""), xml);
+        Assert.assertTrue(xml.contains("\n    <record xmlns=\"http://www.loc.gov/MARC21/slim\">"), xml);
+        Assert.assertTrue(xml.contains("<controlfield tag=\"001\">99122058486905763</controlfield>"), xml);
+    }
+
+    @Test
+    public void testWriteIndentedWithoutPlatformLineSeparator() throws Exception {
+        addDescription("Test that the lines end with '\\n' regardless of the platform line separator, and that the "
+                + "line separator is not changed.");
+        NodeList records = XmlUtils.evaluateNodes(XPATH_RECORD_DATA, XmlUtils.parse(SRU_RESPONSE, true));
+        String lineSeparator = System.getProperty("line.separator");
+        System.setProperty("line.separator", "\r\n");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XmlUtils.writeIndented(records.item(0), out);
+            Assert.assertFalse(out.toString(StandardCharsets.UTF_8).contains("\r"));
+            Assert.assertEquals(System.getProperty("line.separator"), "\r\n");
+        } finally {
+            System.setProperty("line.separator", lineSeparator);
+        }
+    }
+
+    @Test
+    public void testWriteCompact() throws Exception {
+        addDescription("Test that a node is written without whitespace between the elements, with the namespaces "
+                + "of its ancestors, and that it has the same content as the indented node.");
+        NodeList records = XmlUtils.evaluateNodes(XPATH_RECORD_DATA, XmlUtils.parse(SRU_RESPONSE, true));
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        XmlUtils.writeCompact(records.item(0), compact);
+        ByteArrayOutputStream indented = new ByteArrayOutputStream();
+        XmlUtils.writeIndented(records.item(0), indented);
+
+        String xml = compact.toString(StandardCharsets.UTF_8);
+        Assert.assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<recordData xmlns=\"http://www.loc.gov/zing/srw/\"><record xmlns=\"http://www.loc.gov/MARC21/slim\">"
+                + "<leader>"), xml);
+        Assert.assertFalse(xml.contains("\n"), xml);
+        Assert.assertTrue(compact.size() < indented.size());
+
+        Document compactDoc = XmlUtils.parse(new ByteArrayInputStream(compact.toByteArray()), false);
+        Document indentedDoc = XmlUtils.parse(new ByteArrayInputStream(indented.toByteArray()), false);
+        Assert.assertEquals(XmlUtils.evaluateString(XP_MARC_FIND_AUTHOR, compactDoc), "Andersen, H.C.");
+        Assert.assertEquals(compactDoc.getDocumentElement().getTextContent().replaceAll("\\s+", ""),
+                indentedDoc.getDocumentElement().getTextContent().replaceAll("\\s+", ""));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        addDescription("Test that many threads can parse, query and write at the same time.");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> {
+                    Document doc = XmlUtils.parse(SRU_RESPONSE, true);
+                    NodeList records = XmlUtils.evaluateNodes(XPATH_RECORD_DATA, doc);
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    XmlUtils.writeIndented(records.item(records.getLength() - 1), out);
+                    return XmlUtils.evaluateString(XPATH_NUM_RESULTS, doc).trim() + out.size();
+                }));
+            }
+            String expected = futures.get(0).get();
+            for (Future<String> future : futures) {
+                Assert.assertEquals(future.get(), expected);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
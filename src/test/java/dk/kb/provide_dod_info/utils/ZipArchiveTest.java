@@ -0,0 +1,84 @@
+package dk.kb.provide_dod_info.utils;
+
+import dk.kb.provide_dod_info.DataHandler;
+import dk.kb.provide_dod_info.testutils.TestFileUtils;
+import org.jaccept.structure.ExtendedTestCase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ZipArchiveTest extends ExtendedTestCase {
+
+    @Test
+    public void testAddEntriesAndDirectory() throws Exception {
+        addDescription("Test that the streamed entries and the files of a directory are written once to the zip file, "
+                + "which is only moved into place, when it is finished.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/zip-archive");
+        try {
+            File outDir = new File(dir, "texts");
+            File yearDir = TestFileUtils.createEmptyDirectory(outDir.getPath() + "/1650to1699");
+            TestFileUtils.createFile(new File(yearDir, "1.marc.xml"), "<record/>");
+            File zipFile = new File(dir, "texts.zip");
+
+            try (ZipArchive archive = new ZipArchive(zipFile)) {
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                text.write("Hello World\n\f".getBytes(StandardCharsets.UTF_8));
+                archive.addEntry("texts/1650to1699/1.txt", text);
+                archive.addDirectory(outDir, outDir.getName());
+                Assert.assertFalse(zipFile.exists());
+                archive.finish();
+                Assert.assertEquals(archive.getEntries(), 1);
+                Assert.assertEquals(archive.getBytes(), text.size());
+            }
+
+            Assert.assertTrue(zipFile.isFile());
+            Assert.assertFalse(new File(dir, "texts.zip.part").exists());
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                List<String> names = new ArrayList<>();
+                zip.stream().map(ZipEntry::getName).forEach(names::add);
+                Assert.assertEquals(names, List.of("texts/1650to1699/1.txt", "texts/", "texts/1650to1699/",
+                        "texts/1650to1699/1.marc.xml"));
+                String content = new String(zip.getInputStream(zip.getEntry("texts/1650to1699/1.txt")).readAllBytes(),
+                        StandardCharsets.UTF_8);
+                Assert.assertEquals(content, "Hello World\n\f");
+            }
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+
+    @Test
+    public void testCloseWithoutFinish() throws Exception {
+        addDescription("Test that an archive, which is closed without being finished, leaves no zip file behind.");
+        File dir = TestFileUtils.createEmptyDirectory("tempDir/zip-archive-unfinished");
+        try {
+            File zipFile = new File(dir, "texts.zip");
+            try (ZipArchive archive = new ZipArchive(zipFile)) {
+                archive.addEntry("texts/1.txt", new ByteArrayOutputStream());
+            }
+            Assert.assertFalse(zipFile.exists());
+            Assert.assertFalse(new File(dir, "texts.zip.part").exists());
+        } finally {
+            TestFileUtils.deleteFile(dir);
+        }
+    }
+
+    @Test
+    public void testYearDirectory() {
+        addDescription("Test that the texts are placed in the same directories of years as the sorted files.");
+        Assert.assertEquals(DataHandler.getYearDirectory("1400"), "1400to1449");
+        Assert.assertEquals(DataHandler.getYearDirectory("1687"), "1650to1699");
+        Assert.assertEquals(DataHandler.getYearDirectory("1899"), "1850to1899");
+        Assert.assertNull(DataHandler.getYearDirectory("1399"));
+        Assert.assertNull(DataHandler.getYearDirectory("1900"));
+        Assert.assertNull(DataHandler.getYearDirectory("16xx"));
+        Assert.assertNull(DataHandler.getYearDirectory(null));
+    }
+}